@@ -0,0 +1,77 @@
+package com.samsung.microbit.core;
+
+import android.content.Intent;
+
+import com.samsung.microbit.MBApp;
+import com.samsung.microbit.data.constants.EventCategories;
+import com.samsung.microbit.data.constants.IPCConstants;
+import com.samsung.microbit.service.IPCService;
+import com.samsung.microbit.utils.Utils;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process bus for events going to the micro:bit. Presenters publish event category and sub code,
+ * subscribers deliver them to the bluetooth service. Publishing takes no locks, so it can be done
+ * directly from sensor and broadcast callbacks.
+ * <p/>
+ * If no subscriber is able to deliver an event, it is sent through {@link IPCService}.
+ */
+public class MicroBitEventBus {
+
+    /**
+     * Receiver of published events.
+     */
+    public interface Subscriber {
+        /**
+         * Called on the publishing thread for every published event.
+         *
+         * @param event Event value, see {@link Utils#makeMicroBitValue(int, int)}.
+         * @return True if the event is delivered.
+         */
+        boolean onEvent(int event);
+    }
+
+    private static final MicroBitEventBus instance = new MicroBitEventBus();
+
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private MicroBitEventBus() {
+    }
+
+    public static MicroBitEventBus getInstance() {
+        return instance;
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.addIfAbsent(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Publishes event to the micro:bit.
+     *
+     * @param category Event category, e.g. {@link EventCategories#SAMSUNG_DEVICE_INFO_ID}.
+     * @param subCode  Event sub code, e.g. {@link com.samsung.microbit.data.constants.EventSubCodes#SAMSUNG_INCOMING_SMS}.
+     */
+    public void publish(int category, int subCode) {
+        int event = Utils.makeMicroBitValue(category, subCode);
+
+        boolean delivered = false;
+        for(Subscriber subscriber : subscribers) {
+            delivered |= subscriber.onEvent(event);
+        }
+
+        if(!delivered) {
+            MBApp application = MBApp.getApp();
+
+            Intent intent = new Intent(application, IPCService.class);
+            intent.putExtra(IPCConstants.INTENT_TYPE, EventCategories.IPC_BLE_NOTIFICATION_CHARACTERISTIC_CHANGED);
+            intent.putExtra(IPCConstants.INTENT_CHARACTERISTIC_MESSAGE, event);
+            application.startService(intent);
+        }
+    }
+}
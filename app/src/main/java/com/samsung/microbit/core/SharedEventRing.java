@@ -0,0 +1,268 @@
+package com.samsung.microbit.core;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Single-producer/single-consumer ring buffer of micro:bit events shared between processes.
+ * {@link com.samsung.microbit.service.BLEService} writes events coming from the micro:bit and
+ * {@link com.samsung.microbit.service.PluginService} reads them, so an event costs neither a
+ * {@link android.os.Bundle} nor a Parcel copy. Binder is used only as a doorbell: the producer
+ * rings it when the consumer has drained the ring and is waiting for new events.
+ * <p/>
+ * The ring lives in a memory mapped file in the application private directory. Both services
+ * belong to the same application, so each of them maps the file by its path.
+ * <p/>
+ * Layout of the file: write index, read index and doorbell flag, each on its own 64 byte line,
+ * followed by {@link #CAPACITY} records of {@link #RECORD_SIZE} bytes (event source, event and
+ * sequence stamp). Indexes grow monotonically, a record position is the index modulo {@link #CAPACITY}.
+ * <p/>
+ * The stamp of a record is its index + 1 and is written after the event. The consumer accepts a
+ * record only when its stamp matches the read index, so it never takes a record left from a previous
+ * turn of the ring for a new one, even if it sees the write index before the record.
+ */
+public class SharedEventRing {
+    private static final String TAG = SharedEventRing.class.getSimpleName();
+
+    private static final String FILE_NAME = "event_ring";
+
+    /**
+     * Number of records. Must be a power of two.
+     */
+    public static final int CAPACITY = 256;
+
+    public static final int RECORD_SIZE = 12;
+
+    private static final int STAMP_OFFSET = 8;
+
+    /**
+     * Number of times the consumer yields waiting for the stamp of a published record, before it
+     * leaves the record for the next drain.
+     */
+    private static final int MAX_STAMP_WAITS = 1000;
+
+    private static final int WRITE_INDEX_OFFSET = 0;
+    private static final int READ_INDEX_OFFSET = 64;
+    private static final int DOORBELL_OFFSET = 128;
+    private static final int RECORDS_OFFSET = 192;
+
+    private static final int FILE_SIZE = RECORDS_OFFSET + CAPACITY * RECORD_SIZE;
+
+    /**
+     * Results of {@link #offer(int[], int[], int)}.
+     */
+    public static final int OFFER_FULL = 0;
+    public static final int OFFER_WRITTEN = 1;
+    public static final int OFFER_RING_DOORBELL = 2;
+
+    /**
+     * Receiver of events read from the ring.
+     */
+    public interface Consumer {
+        void onEvent(int eventSrc, int event);
+    }
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Accessed between writes (reads) of an event and of its stamp. The Java memory model says nothing
+     * about another process, but ART and Dalvik implement volatile accesses with hardware memory
+     * barriers, which order accesses to the shared pages as seen by any CPU. The stamps make the
+     * consumer check what it reads instead of trusting the ordering of the write index.
+     */
+    private volatile int fence;
+
+    private SharedEventRing(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Maps the ring shared by the application processes.
+     *
+     * @param context Context.
+     * @return Ring, or null if it cannot be mapped.
+     */
+    public static SharedEventRing open(Context context) {
+        File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            if(randomAccessFile.length() < FILE_SIZE) {
+                randomAccessFile.setLength(FILE_SIZE);
+            }
+
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            buffer.order(ByteOrder.nativeOrder());
+
+            SharedEventRing ring = new SharedEventRing(buffer);
+            ring.validate();
+            return ring;
+        } catch(IOException e) {
+            Log.e(TAG, "Cannot map event ring: " + e.toString());
+            return null;
+        } finally {
+            if(randomAccessFile != null) {
+                try {
+                    // The mapping stays valid after the file is closed.
+                    randomAccessFile.close();
+                } catch(IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Resets indexes left inconsistent, e.g. by a process killed in the middle of writing them.
+     */
+    private void validate() {
+        int pending = buffer.getInt(WRITE_INDEX_OFFSET) - buffer.getInt(READ_INDEX_OFFSET);
+        if(pending < 0 || pending > CAPACITY) {
+            Log.e(TAG, "Event ring is inconsistent. Resetting it");
+            buffer.putInt(READ_INDEX_OFFSET, buffer.getInt(WRITE_INDEX_OFFSET));
+        }
+    }
+
+    /**
+     * Empties the ring and clears the doorbell, so records and the doorbell left by processes killed before
+     * are not taken for new ones. Must be called by the producer only, when it starts.
+     */
+    public synchronized void reset() {
+        buffer.putInt(READ_INDEX_OFFSET, 0);
+        buffer.putInt(WRITE_INDEX_OFFSET, 0);
+        buffer.putInt(DOORBELL_OFFSET, 0);
+        for(int i = 0; i < CAPACITY; i++) {
+            buffer.putInt(RECORDS_OFFSET + i * RECORD_SIZE + STAMP_OFFSET, 0);
+        }
+    }
+
+    /**
+     * Writes a batch of events to the ring, so the consumer is woken up at most once for all of them.
+     * Either all events are written, or none of them. Must be called by the producer only.
+     *
+     * @param eventSrcs Event sources.
+     * @param events    Events.
+     * @param count     Number of events in the batch.
+     * @return {@link #OFFER_RING_DOORBELL} if events are written and the consumer should be woken up,
+     * {@link #OFFER_WRITTEN} if events are written and the consumer is already woken up,
+     * or {@link #OFFER_FULL} if the ring has no room for all of them.
+     */
+    public synchronized int offer(int[] eventSrcs, int[] events, int count) {
+        int writeIndex = buffer.getInt(WRITE_INDEX_OFFSET);
+        int readIndex = buffer.getInt(READ_INDEX_OFFSET);
+        if(writeIndex - readIndex + count > CAPACITY) {
+            return OFFER_FULL;
+        }
+
+        for(int i = 0; i < count; i++) {
+            putRecord(writeIndex + i, eventSrcs[i], events[i]);
+        }
+        return publish(writeIndex + count);
+    }
+
+    private void putRecord(int index, int eventSrc, int event) {
+        int offset = RECORDS_OFFSET + (index & (CAPACITY - 1)) * RECORD_SIZE;
+        buffer.putInt(offset, eventSrc);
+        buffer.putInt(offset + 4, event);
+        fence = index;
+        buffer.putInt(offset + STAMP_OFFSET, index + 1);
+    }
+
+    /**
+     * Makes written records visible to the consumer.
+     *
+     * @param writeIndex New write index.
+     * @return {@link #OFFER_RING_DOORBELL} if the consumer should be woken up, {@link #OFFER_WRITTEN} otherwise.
+     */
+    private int publish(int writeIndex) {
+        fence = writeIndex - 1;
+        buffer.putInt(WRITE_INDEX_OFFSET, writeIndex);
+        fence = writeIndex;
+
+        if(buffer.getInt(DOORBELL_OFFSET) == 0) {
+            buffer.putInt(DOORBELL_OFFSET, 1);
+            return OFFER_RING_DOORBELL;
+        }
+
+        return OFFER_WRITTEN;
+    }
+
+    /**
+     * Reads all events in the ring. Must be called by the consumer only, when the doorbell rings.
+     *
+     * @param consumer Receiver of events.
+     * @return Number of read events.
+     */
+    public int drain(Consumer consumer) {
+        // Cleared before reading, so an event written after the last read rings the doorbell again.
+        buffer.putInt(DOORBELL_OFFSET, 0);
+        fence = 0;
+
+        int count = 0;
+        int readIndex = buffer.getInt(READ_INDEX_OFFSET);
+        int writeIndex;
+        while((writeIndex = buffer.getInt(WRITE_INDEX_OFFSET)) != readIndex) {
+            while(readIndex != writeIndex) {
+                int offset = RECORDS_OFFSET + (readIndex & (CAPACITY - 1)) * RECORD_SIZE;
+                if(!awaitStamp(offset + STAMP_OFFSET, readIndex + 1)) {
+                    Log.w(TAG, "Event " + readIndex + " is not written yet. Leaving it for the next drain");
+                    return count;
+                }
+                loadFence();
+                int eventSrc = buffer.getInt(offset);
+                int event = buffer.getInt(offset + 4);
+                readIndex++;
+                buffer.putInt(READ_INDEX_OFFSET, readIndex);
+
+                consumer.onEvent(eventSrc, event);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Drops all events in the ring without reading them. Must be called by the consumer only.
+     *
+     * @return Number of dropped events.
+     */
+    public int skip() {
+        buffer.putInt(DOORBELL_OFFSET, 0);
+        fence = 0;
+
+        int readIndex = buffer.getInt(READ_INDEX_OFFSET);
+        int writeIndex = buffer.getInt(WRITE_INDEX_OFFSET);
+        buffer.putInt(READ_INDEX_OFFSET, writeIndex);
+
+        return writeIndex - readIndex;
+    }
+
+    /**
+     * Waits until the stamp of a published record is visible. The producer writes the stamp before
+     * the write index, so the wait is short.
+     *
+     * @return True if the record has the expected stamp.
+     */
+    private boolean awaitStamp(int stampOffset, int stamp) {
+        for(int i = 0; buffer.getInt(stampOffset) != stamp; i++) {
+            if(i == MAX_STAMP_WAITS) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    private void loadFence() {
+        int ignored = fence;
+    }
+}
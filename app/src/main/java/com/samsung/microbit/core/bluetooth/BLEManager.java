@@ -1,5 +1,6 @@
 package com.samsung.microbit.core.bluetooth;
 
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -8,9 +9,17 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
@@ -21,6 +30,9 @@ import static com.samsung.microbit.BuildConfig.DEBUG;
 /**
  * Bluetooth low energy manager. Provides methods to establish
  * and manage bluetooth low energy connection.
+ * <p/>
+ * All GATT operations are put to a single queue and triggered one by one on the operation thread,
+ * so concurrent requests are served in order instead of being rejected.
  */
 public class BLEManager {
     private static final String TAG = BLEManager.class.getSimpleName();
@@ -29,6 +41,15 @@ public class BLEManager {
     public static final int BLE_CONNECTED = 0x0001;
     public static final int BLE_SERVICES_DISCOVERED = 0x0002;
 
+    /**
+     * Escalation steps of the stall watchdog, reported through {@link UnexpectedConnectionEventListener}.
+     * An operation whose callback does not come in time is cancelled, and the event is reported together
+     * with {@link #bleState}. After {@link #STALL_CLOSE_TIMEOUTS} consecutive cancelled operations the GATT
+     * is closed, and the listener is expected to connect afresh.
+     */
+    public static final int BLE_STALL_OPERATION_CANCELLED = 0x0100;
+    public static final int BLE_STALL_GATT_CLOSED = 0x0200;
+
     public static final int BLE_ERROR_OK = 0x00000000;
     public static final int BLE_ERROR_FAIL = 0x00010000;
     public static final int BLE_ERROR_TIMEOUT = 0x00020000;
@@ -36,8 +57,17 @@ public class BLEManager {
     public static final int BLE_ERROR_NOOP = 0xFFFF0000;
     public static final int BLE_ERROR_NOGATT = -2 & 0xFFFF0000;
 
+    /**
+     * Maximum time in milliseconds to wait for an operation callback, see {@link GattLatencyTracker}.
+     */
     public static final long BLE_WAIT_TIMEOUT = 10000;
 
+    /**
+     * Default ATT MTU. The payload of a single write or notification is the MTU minus {@link BLEManager#ATT_HEADER_SIZE}.
+     */
+    public static final int DEFAULT_MTU = 23;
+    public static final int ATT_HEADER_SIZE = 3;
+
     public static final int OP_NOOP = 0;
     public static final int OP_CONNECT = 1;
     public static final int OP_DISCOVER_SERVICES = 2;
@@ -50,6 +80,22 @@ public class BLEManager {
     public static final int OP_READ_REMOTE_RSSI = 9;
     public static final int OP_MTU_CHANGED = 10;
 
+    private static final int OP_DISCONNECT = 11;
+
+    private static final int STALL_CLOSE_TIMEOUTS = 3;
+
+    /**
+     * Time in milliseconds after which a callback of a cancelled operation is considered lost.
+     */
+    private static final long CANCELLED_CALLBACK_TIMEOUT = BLE_WAIT_TIMEOUT;
+
+    private static HandlerThread operationThread;
+
+    /**
+     * Round trip times shared by all managers, so they outlive reconnections.
+     */
+    private static final GattLatencyTracker latencyTracker = new GattLatencyTracker();
+
     /**
      * It represents ble device state.
      * Can be one of possible values:
@@ -68,9 +114,23 @@ public class BLEManager {
      * {@link BLEManager#OP_WRITE_CHARACTERISTIC}, {@link BLEManager#OP_WRITE_DESCRIPTOR},
      */
     private volatile int inBleOp = OP_NOOP;
-    private volatile boolean callbackCompleted = false;
+
+    /**
+     * Operations waiting for the operation in progress to be completed.
+     */
+    private final ArrayDeque<GattOperation> operations = new ArrayDeque<>();
+    private GattOperation currentOperation;
+
+    /**
+     * Operations cancelled by their timeout whose callbacks may still come. The GATT delivers callbacks
+     * in order, so a late callback is taken by the oldest cancelled operation with the same target
+     * instead of completing the operation in progress. Accessed holding {@link #locker}.
+     */
+    private final ArrayDeque<GattOperation> cancelledOperations = new ArrayDeque<>();
+    private final Handler operationHandler = new Handler(getOperationLooper());
 
     private volatile int rssi;
+    private volatile int mtu = DEFAULT_MTU;
     private volatile BluetoothGattCharacteristic lastCharacteristic;
     private volatile BluetoothGattDescriptor lastDescriptor;
 
@@ -84,6 +144,11 @@ public class BLEManager {
 
     private int extendedError = 0;
 
+    /**
+     * Number of operations timed out since the last successful one.
+     */
+    private int consecutiveTimeouts;
+
     /**
      * Provides simplified way to log app informational messages.
      *
@@ -93,6 +158,30 @@ public class BLEManager {
         Log.i(TAG, "### " + Thread.currentThread().getId() + " # " + message);
     }
 
+    /**
+     * Returns looper of the thread which triggers queued GATT operations and delivers their callbacks.
+     * The thread is shared by all managers and started on first use.
+     *
+     * @return Operation thread looper.
+     */
+    private static synchronized Looper getOperationLooper() {
+        if(operationThread == null) {
+            operationThread = new HandlerThread(TAG);
+            operationThread.start();
+        }
+
+        return operationThread.getLooper();
+    }
+
+    /**
+     * Returns tracker of GATT round trip times, which derives operation timeouts and counts timed out operations.
+     *
+     * @return Latency tracker.
+     */
+    public static GattLatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
     public BLEManager(Context context, BluetoothDevice bluetoothDevice, CharacteristicChangeListener
             characteristicChangeListener, UnexpectedConnectionEventListener unexpectedDisconnectionListener) {
         if(DEBUG) {
@@ -149,21 +238,27 @@ public class BLEManager {
             logi("reset()");
         }
 
+        if(bleState != BLE_DISCONNECTED) {
+            disconnect();
+        }
+
         synchronized(locker) {
             if(bleState != BLE_DISCONNECTED) {
-                disconnect();
+                return false;
             }
 
-            if(bleState != BLE_DISCONNECTED) {
-                return false;
+            GattOperation operation;
+            while((operation = operations.poll()) != null) {
+                finishOperation(operation, BLE_ERROR_NOOP);
             }
+            cancelledOperations.clear();
 
             lastCharacteristic = null;
             lastDescriptor = null;
             rssi = 0;
+            mtu = DEFAULT_MTU;
             error = 0;
-            inBleOp = OP_NOOP;
-            callbackCompleted = false;
+            consecutiveTimeouts = 0;
             if(gatt != null) {
                 if(DEBUG) {
                     logi("reset() :: gatt != null : closing gatt");
@@ -188,66 +283,30 @@ public class BLEManager {
      * <strong>Simulating of synchronous request from asynchronous is making in following way:</strong><br/>
      * <ol>
      * <p/>
+     * <li>Put request to the operation queue and wait until all previously queued operations are done.</li>
      * <li>Trigger asynchronous request</li>
-     * <li>Wait for defined delay ({@link BLEManager#BLE_WAIT_TIMEOUT}) for asynchronous callback is invoked.</li>
+     * <li>Wait for defined delay for asynchronous callback is invoked. The delay is derived from recent
+     * round trips of the same operation type by {@link GattLatencyTracker}, and it is never longer than
+     * {@link BLEManager#BLE_WAIT_TIMEOUT}.</li>
      * <li>If callback is invoked in that time, then just return {@link BLEManager#bleState}.</li>
      * <li>Else mask error using
      * {@link BLEManager#BLE_ERROR_FAIL} and {@link BLEManager#BLE_ERROR_TIMEOUT} and {@link BLEManager#bleState} and
      * return it.</li>
      * </ol>
+     * {@link BLEManager#BLE_ERROR_NOOP} is returned only if request can not be triggered at all.
      *
      * @param autoReconnect Defines if connection is direct, or as soon as it become available.
      * @return Connection result with an appropriate error code if connection is failed.
      */
     public int connect(boolean autoReconnect) {
-        int rc = BLE_ERROR_NOOP;
-
-        if(gatt == null) {
-            if(DEBUG) {
-                logi("connectMaybeInit() :: gatt == null");
-            }
-
-            synchronized(locker) {
-                if(inBleOp == OP_NOOP) {
-                    inBleOp = OP_CONNECT;
-                    try {
-                        if(DEBUG) {
-                            logi("connectMaybeInit() :: bluetoothDevice.connectGatt(context, autoReconnect, bluetoothGattCallback)");
-                        }
-
-                        gatt = bluetoothDevice.connectGatt(context, autoReconnect, bluetoothGattCallback);
-
-                        if(gatt == null) {
-                            if(DEBUG) {
-                                logi("connectGatt failed with AutoReconnect = " + autoReconnect + ". Trying again.. !autoReconnect=" + !autoReconnect);
-                            }
-                            gatt = bluetoothDevice.connectGatt(context, !autoReconnect, bluetoothGattCallback);
-                        }
-
-                        if(gatt != null) {
-                            error = 0;
-                            locker.wait(BLE_WAIT_TIMEOUT);
-
-                            if(DEBUG) {
-                                logi("connectMaybeInit() :: remote device = " + gatt.getDevice().getAddress());
-                            }
-
-                            if(!callbackCompleted) {
-                                error = (BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
-                            }
+        if(DEBUG) {
+            logi("connectMaybeInit() :: start");
+        }
 
-                            rc = error | bleState;
-                        }
-                    } catch(InterruptedException e) {
-                        Log.e(TAG, e.toString());
-                    }
+        GattOperation operation = new GattOperation(OP_CONNECT, BLE_WAIT_TIMEOUT, null);
+        operation.autoReconnect = autoReconnect;
 
-                    inBleOp = OP_NOOP;
-                }
-            }
-        } else {
-            rc = gattConnect();
-        }
+        int rc = execute(operation);
 
         if(DEBUG) {
             logi("connectMaybeInit() :: rc = " + rc);
@@ -256,64 +315,17 @@ public class BLEManager {
     }
 
     /**
-     * Trigger connection to remote GATT device.
-     * <p/>
-     * Simulating of synchronous request from asynchronous. For description of that process,
-     * and result encoding see {@link BLEManager#connect(boolean)}
+     * Queues connection to remote GATT and returns immediately.
      *
-     * @return Connection result.
+     * @param autoReconnect Defines if connection is direct, or as soon as it become available.
+     * @param callback      Callback to be notified with the result, may be null.
      * @see BLEManager#connect(boolean)
      */
-    private int gattConnect() {
-        if(DEBUG) {
-            logi("gattConnect() :: start");
-        }
-
-        int rc = BLE_ERROR_NOOP;
-
-        synchronized(locker) {
-            if(gatt != null && inBleOp == OP_NOOP) {
-                if(DEBUG) {
-                    logi("gattConnect() :: gatt != null");
-                }
+    public void connect(boolean autoReconnect, @Nullable GattOperationCallback callback) {
+        GattOperation operation = new GattOperation(OP_CONNECT, BLE_WAIT_TIMEOUT, callback);
+        operation.autoReconnect = autoReconnect;
 
-                inBleOp = OP_CONNECT;
-                error = 0;
-                try {
-                    if(bleState == BLE_DISCONNECTED) {
-                        if(DEBUG) {
-                            logi("gattConnect() :: gatt.connectMaybeInit()");
-                        }
-
-                        callbackCompleted = false;
-
-                        boolean result = gatt.connect();
-                        logi("gatt.connectMaybeInit() returns = " + result);
-                        locker.wait(BLE_WAIT_TIMEOUT);
-
-                        if(DEBUG) {
-                            logi("gattConnect() :: remote device = " + gatt.getDevice().getAddress());
-                        }
-
-                        if(!callbackCompleted) {
-                            logi("BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT");
-                            error = (BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
-                        }
-                        rc = error | bleState;
-                    }
-                } catch(InterruptedException e) {
-                    Log.e(TAG, e.toString());
-                }
-
-                inBleOp = OP_NOOP;
-            }
-        }
-
-        if(DEBUG) {
-            logi("gattConnect() :: rc = " + rc);
-        }
-
-        return rc;
+        enqueue(operation);
     }
 
     /**
@@ -331,31 +343,7 @@ public class BLEManager {
             logi("disconnect() :: start");
         }
 
-        int rc = BLE_ERROR_NOOP;
-
-        synchronized(locker) {
-            if(gatt != null && inBleOp == OP_NOOP) {
-
-                inBleOp = OP_CONNECT;
-                try {
-                    error = 0;
-                    if(bleState != BLE_DISCONNECTED) {
-                        callbackCompleted = false;
-                        gatt.disconnect();
-                        locker.wait(BLE_WAIT_TIMEOUT);
-                        if(!callbackCompleted) {
-                            error = (BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
-                        }
-                    }
-
-                    rc = error | bleState;
-                } catch(InterruptedException e) {
-                    Log.e(TAG, e.toString());
-                }
-
-                inBleOp = OP_NOOP;
-            }
-        }
+        int rc = execute(new GattOperation(OP_DISCONNECT, BLE_WAIT_TIMEOUT, null));
 
         if(DEBUG) {
             logi("disconnect() :: rc = " + rc);
@@ -380,37 +368,140 @@ public class BLEManager {
             logi("discoverServices() :: start");
         }
 
-        int rc = BLE_ERROR_NOOP;
-        synchronized(locker) {
-            if(gatt != null && inBleOp == OP_NOOP) {
+        int rc = execute(new GattOperation(OP_DISCOVER_SERVICES, BLE_WAIT_TIMEOUT, null));
 
-                inBleOp = OP_DISCOVER_SERVICES;
-                error = 0;
-                try {
-                    callbackCompleted = false;
-                    if(gatt.discoverServices()) {
-                        locker.wait(BLE_WAIT_TIMEOUT);
-                        if(!callbackCompleted) {
-                            error = (BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
-                        }
+        if(DEBUG) {
+            logi("discoverServices() :: end : rc = " + rc);
+        }
 
-                        rc = error | bleState;
-                    }
-                } catch(InterruptedException e) {
-                    Log.e(TAG, e.toString());
-                }
+        return rc;
+    }
+
+    /**
+     * Queues service discovering and returns immediately.
+     *
+     * @param callback Callback to be notified with the result, may be null.
+     * @see BLEManager#discoverServices()
+     */
+    public void discoverServices(@Nullable GattOperationCallback callback) {
+        enqueue(new GattOperation(OP_DISCOVER_SERVICES, BLE_WAIT_TIMEOUT, callback));
+    }
+
+    /**
+     * Clears services of the device cached by the system, so the next {@link #discoverServices()}
+     * discovers them over the air. Should be called only when cached services are known to be stale,
+     * as the discovery takes much longer then.
+     *
+     * @return True if the cache is cleared.
+     */
+    public boolean refreshServices() {
+        synchronized(locker) {
+            if(gatt == null) {
+                return false;
+            }
 
-                inBleOp = OP_NOOP;
+            try {
+                // BluetoothGatt#refresh() is hidden, so it has to be called using reflection.
+                Method refresh = gatt.getClass().getMethod("refresh");
+                boolean result = (Boolean) refresh.invoke(gatt);
+                logi("refreshServices() :: result = " + result);
+                return result;
+            } catch(Exception e) {
+                Log.e(TAG, "refreshServices() :: failed", e);
+                return false;
             }
         }
+    }
+
+    /**
+     * Requests the given MTU from the connected GATT device. Available since Android 5.0.
+     * <p/>
+     * Simulating of synchronous request from asynchronous. For description of that process,
+     * and result encoding see {@link BLEManager#connect(boolean)}
+     * <p/>
+     * If the device refuses the request, the MTU stays {@link BLEManager#DEFAULT_MTU}. The negotiated
+     * payload size can be obtained via {@link #getMaxPayloadSize()} method.
+     *
+     * @param mtu Requested MTU.
+     * @return Result of MTU request.
+     * @see BLEManager#connect(boolean)
+     */
+    public int requestMtu(int mtu) {
+        if(DEBUG) {
+            logi("requestMtu() :: start");
+        }
+
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return BLE_ERROR_NOOP;
+        }
+
+        GattOperation operation = new GattOperation(OP_MTU_CHANGED, BLE_WAIT_TIMEOUT, null);
+        operation.mtu = mtu;
+
+        int rc = execute(operation);
 
         if(DEBUG) {
-            logi("discoverServices() :: end : rc = " + rc);
+            logi("requestMtu() :: end : rc = " + rc + " mtu = " + this.mtu);
         }
 
         return rc;
     }
 
+    /**
+     * Queues MTU request and returns immediately. If the Android version does not support it,
+     * the callback is notified with {@link BLEManager#BLE_ERROR_NOOP}.
+     *
+     * @param mtu      Requested MTU.
+     * @param callback Callback to be notified with the result, may be null.
+     * @see BLEManager#requestMtu(int)
+     */
+    public void requestMtu(int mtu, @Nullable GattOperationCallback callback) {
+        GattOperation operation = new GattOperation(OP_MTU_CHANGED, BLE_WAIT_TIMEOUT, callback);
+        operation.mtu = mtu;
+
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            finishOperation(operation, BLE_ERROR_NOOP);
+            return;
+        }
+
+        enqueue(operation);
+    }
+
+    /**
+     * Requests connection parameters of the given priority. Unlike other requests it has no callback,
+     * so it is not queued.
+     *
+     * @param priority Priority, e.g. {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}.
+     * @return True if the request is sent.
+     * @see ConnectionPriorityPolicy
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean requestConnectionPriority(int priority) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        synchronized(locker) {
+            if(gatt == null || !isConnected() || !gatt.requestConnectionPriority(priority)) {
+                return false;
+            }
+        }
+
+        // Round trips observed with the previous connection interval do not apply anymore
+        latencyTracker.clear();
+        return true;
+    }
+
+    /**
+     * Returns the maximum number of bytes which can be sent in a single write,
+     * based on the negotiated MTU.
+     *
+     * @return Maximum payload size.
+     */
+    public int getMaxPayloadSize() {
+        return mtu - ATT_HEADER_SIZE;
+    }
+
     public boolean isConnected() {
         return bleState == BLE_CONNECTED || bleState == BLE_SERVICES_DISCOVERED || bleState == (BLE_CONNECTED |
                 BLE_SERVICES_DISCOVERED);
@@ -431,32 +522,7 @@ public class BLEManager {
             logi("writeDescriptor() :: start");
         }
 
-        int rc = BLE_ERROR_NOOP;
-
-        synchronized(locker) {
-            if(gatt != null && inBleOp == OP_NOOP) {
-
-                inBleOp = OP_WRITE_DESCRIPTOR;
-                lastDescriptor = null;
-                error = 0;
-                try {
-                    if(gatt.writeDescriptor(descriptor)) {
-                        callbackCompleted = false;
-                        locker.wait(BLE_WAIT_TIMEOUT);
-                        if(!callbackCompleted) {
-                            error = (BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
-                        }
-
-                        rc = error | bleState;
-                    }
-
-                } catch(InterruptedException e) {
-                    Log.e(TAG, e.toString());
-                }
-
-                inBleOp = OP_NOOP;
-            }
-        }
+        int rc = execute(newDescriptorOperation(OP_WRITE_DESCRIPTOR, descriptor, BLE_WAIT_TIMEOUT, null));
 
         if(DEBUG) {
             logi("writeDescriptor() :: end : rc = " + rc);
@@ -465,6 +531,19 @@ public class BLEManager {
         return rc;
     }
 
+    /**
+     * Queues writing of descriptor to connected GATT device and returns immediately.
+     * The descriptor value is captured at the moment of the call.
+     *
+     * @param descriptor Descriptor for writing to remote GATT.
+     * @param timeout    Time in milliseconds to wait for the callback after the write is triggered.
+     * @param callback   Callback to be notified with the result, may be null.
+     */
+    public void writeDescriptor(BluetoothGattDescriptor descriptor, long timeout, @Nullable GattOperationCallback
+            callback) {
+        enqueue(newDescriptorOperation(OP_WRITE_DESCRIPTOR, descriptor, timeout, callback));
+    }
+
     /**
      * Reads descriptor from connected GATT device.
      * <p/>
@@ -480,31 +559,7 @@ public class BLEManager {
             logi("readDescriptor() :: start");
         }
 
-        int rc = BLE_ERROR_NOOP;
-
-        synchronized(locker) {
-            if(gatt != null && inBleOp > OP_NOOP) {
-
-                inBleOp = OP_READ_DESCRIPTOR;
-                lastDescriptor = null;
-                error = 0;
-                try {
-                    callbackCompleted = false;
-                    if(gatt.readDescriptor(descriptor)) {
-                        locker.wait(BLE_WAIT_TIMEOUT);
-                        if(!callbackCompleted) {
-                            error = (BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
-                        }
-
-                        rc = error | bleState;
-                    }
-                } catch(InterruptedException e) {
-                    Log.e(TAG, e.toString());
-                }
-
-                inBleOp = OP_NOOP;
-            }
-        }
+        int rc = execute(newDescriptorOperation(OP_READ_DESCRIPTOR, descriptor, BLE_WAIT_TIMEOUT, null));
 
         if(DEBUG) {
             logi("readDescriptor() :: end : rc = " + rc);
@@ -513,6 +568,18 @@ public class BLEManager {
         return rc;
     }
 
+    /**
+     * Queues reading of descriptor from connected GATT device and returns immediately.
+     *
+     * @param descriptor Descriptor for read to from remote GATT.
+     * @param timeout    Time in milliseconds to wait for the callback after the read is triggered.
+     * @param callback   Callback to be notified with the result, may be null.
+     */
+    public void readDescriptor(BluetoothGattDescriptor descriptor, long timeout, @Nullable GattOperationCallback
+            callback) {
+        enqueue(newDescriptorOperation(OP_READ_DESCRIPTOR, descriptor, timeout, callback));
+    }
+
     /**
      * Write characteristic to connected GATT device.
      * <p/>
@@ -528,39 +595,7 @@ public class BLEManager {
             logi("writeCharacteristic() :: start");
         }
 
-        int rc = BLE_ERROR_NOOP;
-
-        synchronized(locker) {
-            if(gatt != null && inBleOp == OP_NOOP) {
-                inBleOp = OP_WRITE_CHARACTERISTIC;
-                lastCharacteristic = null;
-                error = 0;
-                try {
-                    callbackCompleted = false;
-                    if(gatt.writeCharacteristic(characteristic)) {
-                        locker.wait(BLE_WAIT_TIMEOUT);
-                        if(!callbackCompleted) {
-                            error = (BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
-                        }
-
-                        rc = error | bleState;
-                    } else {
-                        if(DEBUG) {
-                            logi("writeCharacteristic() :: failed");
-                        }
-                    }
-
-
-                } catch(InterruptedException e) {
-                    Log.e(TAG, e.toString());
-                }
-
-                inBleOp = OP_NOOP;
-            } else {
-                logi("Couldn't write to characteristic");
-            }
-
-        }
+        int rc = execute(newCharacteristicOperation(OP_WRITE_CHARACTERISTIC, characteristic, BLE_WAIT_TIMEOUT, null));
 
         if(DEBUG) {
             logi("writeCharacteristic() :: end : rc = " + rc);
@@ -569,6 +604,20 @@ public class BLEManager {
         return rc;
     }
 
+    /**
+     * Queues writing of characteristic to connected GATT device and returns immediately.
+     * The characteristic value is captured at the moment of the call, so the same characteristic
+     * object can be reused for the next write right away.
+     *
+     * @param characteristic Characteristic for writing to remote GATT.
+     * @param timeout        Time in milliseconds to wait for the callback after the write is triggered.
+     * @param callback       Callback to be notified with the result, may be null.
+     */
+    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, long timeout, @Nullable
+            GattOperationCallback callback) {
+        enqueue(newCharacteristicOperation(OP_WRITE_CHARACTERISTIC, characteristic, timeout, callback));
+    }
+
     /**
      * Read characteristic from connected GATT device.
      * <p/>
@@ -584,34 +633,7 @@ public class BLEManager {
             logi("readCharacteristic() :: start");
         }
 
-        int rc = BLE_ERROR_NOOP;
-
-        synchronized(locker) {
-            if(gatt != null && inBleOp == OP_NOOP) {
-
-                inBleOp = OP_READ_CHARACTERISTIC;
-                lastCharacteristic = null;
-                error = 0;
-                int bleState = this.bleState;
-                try {
-                    callbackCompleted = false;
-                    if(gatt.readCharacteristic(characteristic)) {
-                        locker.wait(BLE_WAIT_TIMEOUT);
-                        if(!callbackCompleted) {
-                            error = (BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
-                        } else {
-                            bleState = this.bleState;
-                        }
-
-                        rc = error | bleState;
-                    }
-                } catch(InterruptedException e) {
-                    Log.e(TAG, e.toString());
-                }
-
-                inBleOp = OP_NOOP;
-            }
-        }
+        int rc = execute(newCharacteristicOperation(OP_READ_CHARACTERISTIC, characteristic, BLE_WAIT_TIMEOUT, null));
 
         if(DEBUG) {
             logi("readCharacteristic() :: end : rc = " + rc);
@@ -620,6 +642,19 @@ public class BLEManager {
         return rc;
     }
 
+    /**
+     * Queues reading of characteristic from connected GATT device and returns immediately.
+     * The read value is available via characteristic itself when callback is invoked.
+     *
+     * @param characteristic Characteristic for reading from remote GATT.
+     * @param timeout        Time in milliseconds to wait for the callback after the read is triggered.
+     * @param callback       Callback to be notified with the result, may be null.
+     */
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic, long timeout, @Nullable
+            GattOperationCallback callback) {
+        enqueue(newCharacteristicOperation(OP_READ_CHARACTERISTIC, characteristic, timeout, callback));
+    }
+
     public BluetoothGattCharacteristic getLastCharacteristic() {
         return lastCharacteristic;
     }
@@ -640,11 +675,9 @@ public class BLEManager {
         int rc = BLE_ERROR_NOOP;
 
         synchronized(locker) {
-            error = 0;
-
             if(gatt.setCharacteristicNotification(characteristic, enable)) {
                 logi("characteristic notif success");
-                rc = error | bleState;
+                rc = bleState;
 
                 descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE :
                         BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
@@ -654,6 +687,413 @@ public class BLEManager {
         return writeDescriptor(descriptor) | rc;
     }
 
+    /**
+     * Enables or disables notifications for a given characteristic, queueing the descriptor write
+     * and returning immediately. If notifications cannot be set locally, the callback is notified
+     * with {@link BLEManager#BLE_ERROR_NOOP}.
+     *
+     * @param characteristic The characteristic for which to enable notifications.
+     * @param descriptor     Bluetooth GATT descriptor.
+     * @param enable         Enable or disable notification.
+     * @param callback       Callback to be notified with the result of the descriptor write, may be null.
+     */
+    public void enableCharacteristicNotification(BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor
+            descriptor, boolean enable, @Nullable GattOperationCallback callback) {
+        GattOperation operation;
+        synchronized(locker) {
+            if(gatt == null || !gatt.setCharacteristicNotification(characteristic, enable)) {
+                operation = null;
+            } else {
+                descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE :
+                        BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                operation = newDescriptorOperation(OP_WRITE_DESCRIPTOR, descriptor, BLE_WAIT_TIMEOUT, callback);
+            }
+        }
+
+        if(operation == null) {
+            finishOperation(new GattOperation(OP_WRITE_DESCRIPTOR, BLE_WAIT_TIMEOUT, callback), BLE_ERROR_NOOP);
+            return;
+        }
+
+        enqueue(operation);
+    }
+
+    private GattOperation newCharacteristicOperation(int type, BluetoothGattCharacteristic characteristic, long
+            timeout, GattOperationCallback callback) {
+        GattOperation operation = new GattOperation(type, timeout, callback);
+        operation.characteristic = characteristic;
+        if(type == OP_WRITE_CHARACTERISTIC) {
+            operation.value = characteristic.getValue();
+        }
+        return operation;
+    }
+
+    private GattOperation newDescriptorOperation(int type, BluetoothGattDescriptor descriptor, long timeout,
+                                                 GattOperationCallback callback) {
+        GattOperation operation = new GattOperation(type, timeout, callback);
+        operation.descriptor = descriptor;
+        if(type == OP_WRITE_DESCRIPTOR) {
+            operation.value = descriptor.getValue();
+        }
+        return operation;
+    }
+
+    /**
+     * Puts operation to the end of the queue. Operations are triggered one by one in the order
+     * they were queued, the next one is triggered when the previous one is completed or timed out.
+     *
+     * @param operation Operation to queue.
+     */
+    private void enqueue(GattOperation operation) {
+        synchronized(locker) {
+            operations.add(operation);
+        }
+
+        operationHandler.post(executeNextOperation);
+    }
+
+    /**
+     * Queues operation and blocks the calling thread until the operation is completed.
+     *
+     * @param operation Operation to execute.
+     * @return Result of the operation.
+     */
+    private int execute(GattOperation operation) {
+        if(Looper.myLooper() == operationHandler.getLooper()) {
+            Log.e(TAG, "Synchronous operation " + operation.type + " is not allowed on the operation thread");
+            return BLE_ERROR_NOOP;
+        }
+
+        enqueue(operation);
+
+        synchronized(operation) {
+            try {
+                while(!operation.completed) {
+                    operation.wait();
+                }
+            } catch(InterruptedException e) {
+                Log.e(TAG, e.toString());
+            }
+        }
+
+        return operation.result;
+    }
+
+    /**
+     * Triggers the next queued operation if there is no operation in progress.
+     * Runs on the operation thread.
+     */
+    private final Runnable executeNextOperation = new Runnable() {
+        @Override
+        public void run() {
+            synchronized(locker) {
+                if(currentOperation != null || operations.isEmpty()) {
+                    return;
+                }
+
+                final GattOperation operation = operations.poll();
+
+                currentOperation = operation;
+                inBleOp = operation.type;
+                error = 0;
+                operation.timeoutTask = new Runnable() {
+                    @Override
+                    public void run() {
+                        int stallEvent = 0;
+                        synchronized(locker) {
+                            if(currentOperation == operation) {
+                                latencyTracker.onTimeout(operation.type);
+                                operation.cancelTime = SystemClock.elapsedRealtime();
+                                cancelledOperations.add(operation);
+                                logi("Operation " + operation.type + " timed out after " + operation.effectiveTimeout
+                                        + " ms, timeouts = " + latencyTracker.getTimeoutCount(operation.type));
+                                error = (BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
+                                completeOperation(operation, error | bleState);
+                                // Waiting for the device to come in range is not a stall
+                                if(!operation.autoReconnect) {
+                                    stallEvent = escalateStall();
+                                }
+                            }
+                        }
+
+                        // Listener may call synchronous operations, so it is notified without holding the lock.
+                        if(stallEvent != 0) {
+                            unexpectedDisconnectionListener.handleConnectionEvent(stallEvent,
+                                    (stallEvent & BLE_STALL_GATT_CLOSED) != 0);
+                        }
+                    }
+                };
+                // Connection waiting for the device to come in range can take any time
+                operation.effectiveTimeout = operation.autoReconnect ? operation.timeout : latencyTracker
+                        .getTimeout(operation.type, operation.timeout);
+                operation.startTime = SystemClock.elapsedRealtime();
+                operationHandler.postDelayed(operation.timeoutTask, operation.effectiveTimeout);
+
+                if(!startOperation(operation)) {
+                    completeOperation(operation, BLE_ERROR_NOOP);
+                }
+            }
+        }
+    };
+
+    /**
+     * Triggers asynchronous GATT request for the given operation. Must be called holding {@link #locker}.
+     *
+     * @param operation Operation to trigger.
+     * @return True if the request is triggered and the operation waits for the callback,
+     * or the operation is already completed.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean startOperation(GattOperation operation) {
+        if(gatt == null && operation.type != OP_CONNECT) {
+            return false;
+        }
+
+        switch(operation.type) {
+            case OP_CONNECT:
+                if(gatt == null) {
+                    if(DEBUG) {
+                        logi("connectMaybeInit() :: bluetoothDevice.connectGatt(context, autoReconnect, bluetoothGattCallback)");
+                    }
+
+                    gatt = bluetoothDevice.connectGatt(context, operation.autoReconnect, bluetoothGattCallback);
+
+                    if(gatt == null) {
+                        if(DEBUG) {
+                            logi("connectGatt failed with AutoReconnect = " + operation.autoReconnect + ". Trying " +
+                                    "again.. !autoReconnect=" + !operation.autoReconnect);
+                        }
+                        gatt = bluetoothDevice.connectGatt(context, !operation.autoReconnect, bluetoothGattCallback);
+                    }
+
+                    return gatt != null;
+                }
+
+                if(bleState == BLE_DISCONNECTED) {
+                    boolean result = gatt.connect();
+                    logi("gatt.connectMaybeInit() returns = " + result);
+                    return true;
+                }
+
+                return false;
+
+            case OP_DISCONNECT:
+                if(bleState != BLE_DISCONNECTED) {
+                    gatt.disconnect();
+                } else {
+                    completeOperation(operation, error | bleState);
+                }
+
+                return true;
+
+            case OP_DISCOVER_SERVICES:
+                return gatt.discoverServices();
+
+            case OP_MTU_CHANGED:
+                return gatt.requestMtu(operation.mtu);
+
+            case OP_READ_CHARACTERISTIC:
+                lastCharacteristic = null;
+                return gatt.readCharacteristic(operation.characteristic);
+
+            case OP_WRITE_CHARACTERISTIC:
+                lastCharacteristic = null;
+                operation.characteristic.setValue(operation.value);
+                if(!gatt.writeCharacteristic(operation.characteristic)) {
+                    if(DEBUG) {
+                        logi("writeCharacteristic() :: failed");
+                    }
+
+                    return false;
+                }
+
+                return true;
+
+            case OP_READ_DESCRIPTOR:
+                lastDescriptor = null;
+                return gatt.readDescriptor(operation.descriptor);
+
+            case OP_WRITE_DESCRIPTOR:
+                lastDescriptor = null;
+                operation.descriptor.setValue(operation.value);
+                return gatt.writeDescriptor(operation.descriptor);
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Completes the operation in progress, notifies waiting caller and callback,
+     * and triggers the next queued operation. Does nothing if the given operation is
+     * not in progress anymore, for example if it is already timed out.
+     *
+     * @param operation Operation to complete.
+     * @param rc        Result of the operation.
+     */
+    private void completeOperation(GattOperation operation, int rc) {
+        synchronized(locker) {
+            if(operation == null || currentOperation != operation) {
+                return;
+            }
+
+            currentOperation = null;
+            inBleOp = OP_NOOP;
+            if((rc & BLE_ERROR_FAIL) == 0) {
+                consecutiveTimeouts = 0;
+            }
+        }
+
+        if((rc & BLE_ERROR_FAIL) == 0 && !operation.autoReconnect) {
+            latencyTracker.addSample(operation.type, SystemClock.elapsedRealtime() - operation.startTime);
+        }
+
+        operationHandler.removeCallbacks(operation.timeoutTask);
+        finishOperation(operation, rc);
+        operationHandler.post(executeNextOperation);
+    }
+
+    /**
+     * Escalates after an operation is cancelled by its timeout. When too many operations in a row are
+     * cancelled, the GATT is considered stalled: it is closed and all queued operations fail.
+     * Must be called holding {@link #locker}.
+     *
+     * @return Stall event to report, {@link #BLE_STALL_OPERATION_CANCELLED} or {@link #BLE_STALL_GATT_CLOSED}.
+     */
+    private int escalateStall() {
+        consecutiveTimeouts++;
+        if(consecutiveTimeouts < STALL_CLOSE_TIMEOUTS || gatt == null) {
+            return BLE_STALL_OPERATION_CANCELLED | bleState;
+        }
+
+        Log.e(TAG, "GATT stalled after " + consecutiveTimeouts + " timed out operations. Closing it");
+        consecutiveTimeouts = 0;
+
+        gatt.disconnect();
+        gatt.close();
+        gatt = null;
+        bleState = BLE_DISCONNECTED;
+        mtu = DEFAULT_MTU;
+
+        GattOperation operation;
+        while((operation = operations.poll()) != null) {
+            finishOperation(operation, BLE_ERROR_FAIL | BLE_ERROR_TIMEOUT);
+        }
+        cancelledOperations.clear();
+
+        return BLE_STALL_GATT_CLOSED;
+    }
+
+    /**
+     * Finds the operation a GATT callback belongs to. A callback of an operation cancelled by its timeout
+     * is dropped, so it cannot complete a later operation of the same type. Must be called holding {@link #locker}.
+     *
+     * @param type           Operation type of the callback.
+     * @param characteristic Characteristic of the callback, or null.
+     * @param descriptor     Descriptor of the callback, or null.
+     * @return Operation in progress, or null if the callback belongs to a cancelled operation or to none.
+     */
+    @Nullable
+    private GattOperation findOperation(int type, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor
+            descriptor) {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<GattOperation> iterator = cancelledOperations.iterator();
+        while(iterator.hasNext()) {
+            GattOperation cancelled = iterator.next();
+            if(now - cancelled.cancelTime > CANCELLED_CALLBACK_TIMEOUT) {
+                // Its callback is lost
+                iterator.remove();
+            } else if(cancelled.matches(type, characteristic, descriptor)) {
+                iterator.remove();
+                logi("Dropping late callback of cancelled operation " + type);
+                return null;
+            }
+        }
+
+        GattOperation operation = currentOperation;
+        if(operation == null || !operation.matches(type, characteristic, descriptor)) {
+            return null;
+        }
+
+        return operation;
+    }
+
+    private void finishOperation(final GattOperation operation, final int rc) {
+        synchronized(operation) {
+            operation.result = rc;
+            operation.completed = true;
+            operation.notifyAll();
+        }
+
+        if(operation.callback != null) {
+            operationHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    operation.callback.onOperationCompleted(rc);
+                }
+            });
+        }
+    }
+
+    /**
+     * Single queued GATT operation.
+     */
+    private static final class GattOperation {
+        final int type;
+        final long timeout;
+        final GattOperationCallback callback;
+
+        BluetoothGattCharacteristic characteristic;
+        BluetoothGattDescriptor descriptor;
+        byte[] value;
+        boolean autoReconnect;
+        int mtu;
+
+        Runnable timeoutTask;
+        long effectiveTimeout;
+        long startTime;
+        long cancelTime;
+        int result = BLE_ERROR_NOOP;
+        boolean completed;
+
+        GattOperation(int type, long timeout, GattOperationCallback callback) {
+            this.type = type;
+            this.timeout = timeout;
+            this.callback = callback;
+        }
+
+        /**
+         * Checks if a GATT callback belongs to this operation.
+         *
+         * @param type           Operation type of the callback.
+         * @param characteristic Characteristic of the callback, or null.
+         * @param descriptor     Descriptor of the callback, or null.
+         * @return True if the callback has the type and the target of this operation.
+         */
+        boolean matches(int type, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor) {
+            if(this.type != type) {
+                return false;
+            }
+
+            if(this.descriptor != null) {
+                return descriptor != null && this.descriptor.getUuid().equals(descriptor.getUuid())
+                        && isSameCharacteristic(this.descriptor.getCharacteristic(), descriptor.getCharacteristic());
+            }
+
+            return this.characteristic == null || isSameCharacteristic(this.characteristic, characteristic);
+        }
+
+        private static boolean isSameCharacteristic(BluetoothGattCharacteristic first, BluetoothGattCharacteristic
+                second) {
+            if(first == second) {
+                return true;
+            }
+
+            return first != null && second != null && first.getUuid().equals(second.getUuid())
+                    && first.getInstanceId() == second.getInstanceId();
+        }
+    }
+
     /**
      * Callback for handling bluetooth GATT interaction.
      */
@@ -679,6 +1119,7 @@ public class BLEManager {
                         state = BLE_CONNECTED;
                     } else if(newState == BluetoothProfile.STATE_DISCONNECTED) {
                         state = BLE_DISCONNECTED;
+                        mtu = DEFAULT_MTU;
                         if(gatt != null) {
                             if(DEBUG) {
                                 logi("onConnectionStateChange() :: gatt != null : closing gatt");
@@ -704,8 +1145,15 @@ public class BLEManager {
                 error = BLE_ERROR_FAIL;
             }
 
+            boolean unexpected = false;
+
             synchronized(locker) {
-                if(inBleOp == OP_CONNECT) {
+                if(state == BLE_DISCONNECTED) {
+                    // Callbacks of cancelled operations will never come
+                    cancelledOperations.clear();
+                }
+
+                if(inBleOp == OP_CONNECT || inBleOp == OP_DISCONNECT) {
                     if(DEBUG) {
                         logi("BluetoothGattCallback.onConnectionStateChange() :: inBleOp == OP_CONNECT");
                     }
@@ -713,23 +1161,33 @@ public class BLEManager {
                     if(state != (bleState & BLE_CONNECTED)) {
                         bleState = state;
                     }
-                    callbackCompleted = true;
                     BLEManager.this.error = error;
                     extendedError = status;
-                    locker.notify();
+                    completeOperation(currentOperation, error | bleState);
                 } else {
                     if(DEBUG) {
                         logi("onConnectionStateChange() :: inBleOp != OP_CONNECT");
                     }
 
                     bleState = state;
-                    unexpectedDisconnectionListener.handleConnectionEvent(bleState, gattForceClosed);
-                }
+                    unexpected = true;
 
-                if(DEBUG) {
-                    logi("BluetoothGattCallback.onConnectionStateChange() :: end");
+                    if(state == BLE_DISCONNECTED && currentOperation != null) {
+                        // Callback of the operation in progress will never come.
+                        BLEManager.this.error = BLE_ERROR_FAIL;
+                        completeOperation(currentOperation, BLE_ERROR_FAIL | bleState);
+                    }
                 }
             }
+
+            // Listener may call synchronous operations, so it is notified without holding the lock.
+            if(unexpected) {
+                unexpectedDisconnectionListener.handleConnectionEvent(state, gattForceClosed);
+            }
+
+            if(DEBUG) {
+                logi("BluetoothGattCallback.onConnectionStateChange() :: end");
+            }
         }
 
         @Override
@@ -743,7 +1201,8 @@ public class BLEManager {
                     logi("BluetoothGattCallback.onServicesDiscovered() :: start : status = " + status);
                 }
 
-                if(inBleOp == OP_DISCOVER_SERVICES) {
+                GattOperation operation = findOperation(OP_DISCOVER_SERVICES, null, null);
+                if(operation != null) {
                     if(DEBUG) {
                         logi("BluetoothGattCallback.onServicesDiscovered() :: inBleOp == OP_DISCOVER_SERVICES");
                     }
@@ -755,8 +1214,7 @@ public class BLEManager {
                         bleState &= (~state);
                     }
 
-                    callbackCompleted = true;
-                    locker.notify();
+                    completeOperation(operation, error | bleState);
                 }
 
                 if(DEBUG) {
@@ -774,7 +1232,8 @@ public class BLEManager {
                     logi("BluetoothGattCallback.onCharacteristicRead() :: start : status = " + status);
                 }
 
-                if(inBleOp == OP_READ_CHARACTERISTIC) {
+                GattOperation operation = findOperation(OP_READ_CHARACTERISTIC, characteristic, null);
+                if(operation != null) {
                     if(DEBUG) {
                         logi("BluetoothGattCallback.onCharacteristicRead() :: inBleOp == OP_READ_CHARACTERISTIC");
                     }
@@ -786,8 +1245,7 @@ public class BLEManager {
                     }
 
                     lastCharacteristic = characteristic;
-                    callbackCompleted = true;
-                    locker.notify();
+                    completeOperation(operation, error | bleState);
                 }
 
                 if(DEBUG) {
@@ -805,7 +1263,8 @@ public class BLEManager {
                     logi("BluetoothGattCallback.onCharacteristicWrite() :: start : status = " + status);
                 }
 
-                if(inBleOp == OP_WRITE_CHARACTERISTIC) {
+                GattOperation operation = findOperation(OP_WRITE_CHARACTERISTIC, characteristic, null);
+                if(operation != null) {
                     if(DEBUG) {
                         logi("BluetoothGattCallback.onCharacteristicWrite() :: inBleOp == OP_WRITE_CHARACTERISTIC");
                     }
@@ -817,8 +1276,7 @@ public class BLEManager {
                     }
 
                     lastCharacteristic = characteristic;
-                    callbackCompleted = true;
-                    locker.notify();
+                    completeOperation(operation, error | bleState);
                 }
 
                 if(DEBUG) {
@@ -850,7 +1308,8 @@ public class BLEManager {
                     logi("BluetoothGattCallback.onDescriptorRead() :: start : status = " + status);
                 }
 
-                if(inBleOp == OP_READ_DESCRIPTOR) {
+                GattOperation operation = findOperation(OP_READ_DESCRIPTOR, null, descriptor);
+                if(operation != null) {
                     if(DEBUG) {
                         logi("BluetoothGattCallback.onDescriptorRead() :: inBleOp == OP_READ_DESCRIPTOR");
                     }
@@ -861,8 +1320,7 @@ public class BLEManager {
                     }
 
                     lastDescriptor = descriptor;
-                    callbackCompleted = true;
-                    locker.notify();
+                    completeOperation(operation, error | bleState);
                 }
 
                 if(DEBUG) {
@@ -880,7 +1338,8 @@ public class BLEManager {
                     logi("BluetoothGattCallback.onDescriptorWrite() :: start : status = " + status);
                 }
 
-                if(inBleOp == OP_WRITE_DESCRIPTOR) {
+                GattOperation operation = findOperation(OP_WRITE_DESCRIPTOR, null, descriptor);
+                if(operation != null) {
                     if(DEBUG) {
                         logi("BluetoothGattCallback.onDescriptorWrite() :: inBleOp == OP_WRITE_DESCRIPTOR");
                     }
@@ -892,8 +1351,7 @@ public class BLEManager {
                     }
 
                     lastDescriptor = descriptor;
-                    callbackCompleted = true;
-                    locker.notify();
+                    completeOperation(operation, error | bleState);
                 }
 
                 if(DEBUG) {
@@ -917,8 +1375,10 @@ public class BLEManager {
                     error = BLE_ERROR_FAIL;
                 }
 
-                callbackCompleted = true;
-                locker.notify();
+                GattOperation operation = findOperation(OP_RELIABLE_WRITE_COMPLETED, null, null);
+                if(operation != null) {
+                    completeOperation(operation, error | bleState);
+                }
 
                 if(DEBUG) {
                     logi("BluetoothGattCallback.onReliableWriteCompleted() :: end");
@@ -935,7 +1395,8 @@ public class BLEManager {
                     logi("BluetoothGattCallback.onReadRemoteRssi() :: start");
                 }
 
-                if(inBleOp == OP_READ_REMOTE_RSSI) {
+                GattOperation operation = findOperation(OP_READ_REMOTE_RSSI, null, null);
+                if(operation != null) {
                     if(DEBUG) {
                         logi("BluetoothGattCallback.onReadRemoteRssi() :: inBleOp == OP_READ_REMOTE_RSSI");
                     }
@@ -947,8 +1408,7 @@ public class BLEManager {
                     }
 
                     BLEManager.this.rssi = rssi;
-                    callbackCompleted = true;
-                    locker.notify();
+                    completeOperation(operation, error | bleState);
                 }
 
                 if(DEBUG) {
@@ -963,15 +1423,29 @@ public class BLEManager {
 
             synchronized(locker) {
                 if(DEBUG) {
-                    logi("BluetoothGattCallback.onMtuChanged() :: start");
+                    logi("BluetoothGattCallback.onMtuChanged() :: start : status = " + status + " mtu = " + mtu);
                 }
 
                 if(status == BluetoothGatt.GATT_SUCCESS) {
                     error = BLE_ERROR_OK;
+                    if(BLEManager.this.mtu != mtu) {
+                        // Round trips of writes observed with the previous MTU do not apply anymore
+                        latencyTracker.clear();
+                    }
+                    BLEManager.this.mtu = mtu;
                 } else {
                     error = BLE_ERROR_FAIL;
                 }
 
+                GattOperation operation = findOperation(OP_MTU_CHANGED, null, null);
+                if(operation != null) {
+                    if(DEBUG) {
+                        logi("BluetoothGattCallback.onMtuChanged() :: inBleOp == OP_MTU_CHANGED");
+                    }
+
+                    completeOperation(operation, error | bleState);
+                }
+
                 if(DEBUG) {
                     logi("BluetoothGattCallback.onMtuChanged() :: end");
                 }
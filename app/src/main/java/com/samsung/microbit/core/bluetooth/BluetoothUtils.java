@@ -7,6 +7,7 @@ import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.gson.Gson;
@@ -173,6 +174,8 @@ public class BluetoothUtils {
                 sConnectedDevice.mPairingCode = 0;
                 sConnectedDevice.mfirmware_version = null;
                 sConnectedDevice.mlast_connection_time = 0;
+                sConnectedDevice.mServicesLayout = 0;
+                sConnectedDevice.mServicesLayoutFirmware = null;
 
                 setPairedMicroBit(ctx, null);
             }
@@ -197,4 +200,88 @@ public class BluetoothUtils {
 
         editor.apply();
     }
+
+    /**
+     * Returns layout of services stored for the paired micro:bit, if it was discovered with the given
+     * address and firmware revision. A layout stored without firmware revision is keyed by the address alone.
+     *
+     * @param ctx      Context.
+     * @param address  Address of the device.
+     * @param firmware Firmware revision the device reports, or null if the device has no device information service.
+     * @return Bit mask of {@link com.samsung.microbit.data.constants.GattHandles}, or 0 if no valid layout is stored.
+     */
+    public static int getServicesLayout(Context ctx, String address, String firmware) {
+        SharedPreferences pairedDevicePref = ctx.getApplicationContext().getSharedPreferences(PREFERENCES_KEY,
+                Context.MODE_MULTI_PROCESS);
+        if(pairedDevicePref.contains(PREFERENCES_PAIREDDEV_KEY) && address != null) {
+            String pairedDeviceString = pairedDevicePref.getString(PREFERENCES_PAIREDDEV_KEY, null);
+            ConnectedDevice deviceInSharedPref = new Gson().fromJson(pairedDeviceString, ConnectedDevice.class);
+            if(address.equals(deviceInSharedPref.mAddress) && TextUtils.equals(firmware, deviceInSharedPref
+                    .mServicesLayoutFirmware)) {
+                return deviceInSharedPref.mServicesLayout;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Checks if a layout of services is stored for the paired micro:bit with the given address,
+     * whatever firmware revision it was discovered with.
+     *
+     * @param ctx     Context.
+     * @param address Address of the device.
+     * @return True if a layout is stored.
+     */
+    public static boolean hasServicesLayout(Context ctx, String address) {
+        SharedPreferences pairedDevicePref = ctx.getApplicationContext().getSharedPreferences(PREFERENCES_KEY,
+                Context.MODE_MULTI_PROCESS);
+        if(pairedDevicePref.contains(PREFERENCES_PAIREDDEV_KEY) && address != null) {
+            String pairedDeviceString = pairedDevicePref.getString(PREFERENCES_PAIREDDEV_KEY, null);
+            ConnectedDevice deviceInSharedPref = new Gson().fromJson(pairedDeviceString, ConnectedDevice.class);
+            return address.equals(deviceInSharedPref.mAddress) && deviceInSharedPref.mServicesLayout != 0;
+        }
+        return false;
+    }
+
+    /**
+     * Stores layout of services discovered on the paired micro:bit, so the next connection can check
+     * the services it gets from the system cache.
+     *
+     * @param ctx      Context.
+     * @param address  Address of the device.
+     * @param firmware Firmware revision the device reports, or null to key the layout by the address alone.
+     * @param layout   Bit mask of {@link com.samsung.microbit.data.constants.GattHandles} found on the device.
+     */
+    public static void updateServicesLayout(Context ctx, String address, String firmware, int layout) {
+        SharedPreferences pairedDevicePref = ctx.getApplicationContext().getSharedPreferences(PREFERENCES_KEY,
+                Context.MODE_MULTI_PROCESS);
+        if(pairedDevicePref.contains(PREFERENCES_PAIREDDEV_KEY)) {
+            String pairedDeviceString = pairedDevicePref.getString(PREFERENCES_PAIREDDEV_KEY, null);
+            logi("Updating the microbit services layout");
+            ConnectedDevice deviceInSharedPref = new Gson().fromJson(pairedDeviceString, ConnectedDevice.class);
+            if(address != null && address.equals(deviceInSharedPref.mAddress)) {
+                deviceInSharedPref.mServicesLayout = layout;
+                deviceInSharedPref.mServicesLayoutFirmware = firmware;
+                setPairedMicroBit(ctx, deviceInSharedPref);
+            }
+        }
+    }
+
+    /**
+     * Forgets layout of services of the paired micro:bit. Should be called when the micro:bit is
+     * flashed, as a new program may have other services.
+     *
+     * @param ctx Context.
+     */
+    public static void invalidateServicesLayout(Context ctx) {
+        SharedPreferences pairedDevicePref = ctx.getApplicationContext().getSharedPreferences(PREFERENCES_KEY,
+                Context.MODE_MULTI_PROCESS);
+        if(pairedDevicePref.contains(PREFERENCES_PAIREDDEV_KEY)) {
+            String pairedDeviceString = pairedDevicePref.getString(PREFERENCES_PAIREDDEV_KEY, null);
+            ConnectedDevice deviceInSharedPref = new Gson().fromJson(pairedDeviceString, ConnectedDevice.class);
+            deviceInSharedPref.mServicesLayout = 0;
+            deviceInSharedPref.mServicesLayoutFirmware = null;
+            setPairedMicroBit(ctx, deviceInSharedPref);
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package com.samsung.microbit.core.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Chooses connection priority of a connected micro:bit from its event traffic.
+ * <p/>
+ * A burst of events, at least {@link #BURST_EVENTS} within {@link #BURST_WINDOW}, requests
+ * {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}, so events wait for a short connection interval.
+ * When there is no traffic for {@link #BURST_HOLD} the priority drops back to
+ * {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED}, and after {@link #IDLE_DELAY} to
+ * {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}, which saves battery of both devices.
+ * <p/>
+ * Every transition is logged together with the time spent in the previous priority.
+ */
+public class ConnectionPriorityPolicy {
+    private static final String TAG = ConnectionPriorityPolicy.class.getSimpleName();
+
+    public static final int PRIORITY_NONE = -1;
+
+    private static final int BURST_EVENTS = 4;
+    private static final long BURST_WINDOW = 1000;
+
+    /**
+     * Time in milliseconds without traffic after which high priority drops to balanced.
+     */
+    private static final long BURST_HOLD = 2000;
+
+    /**
+     * Time in milliseconds without traffic after which the priority drops to low power.
+     */
+    private static final long IDLE_DELAY = 30000;
+
+    private final Handler handler;
+
+    private BLEManager bleManager;
+    private int priority = PRIORITY_NONE;
+    private long priorityTime;
+    private long lastTrafficTime;
+    private long burstStartTime;
+    private int burstEvents;
+
+    private final Runnable decayTask = new Runnable() {
+        @Override
+        public void run() {
+            decay();
+        }
+    };
+
+    /**
+     * @param handler Handler running transitions triggered by the lack of traffic.
+     */
+    public ConnectionPriorityPolicy(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Starts choosing priority of a connection which has just been set up.
+     *
+     * @param bleManager Manager of the connection.
+     */
+    public synchronized void start(BLEManager bleManager) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        this.bleManager = bleManager;
+        priority = PRIORITY_NONE;
+        priorityTime = lastTrafficTime = SystemClock.elapsedRealtime();
+        burstEvents = 0;
+
+        setPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        handler.removeCallbacks(decayTask);
+        handler.postDelayed(decayTask, IDLE_DELAY);
+    }
+
+    /**
+     * Stops choosing priority, e.g. when the connection is lost.
+     */
+    public synchronized void stop() {
+        handler.removeCallbacks(decayTask);
+        if(bleManager != null) {
+            logTransition(PRIORITY_NONE, SystemClock.elapsedRealtime());
+        }
+
+        bleManager = null;
+        priority = PRIORITY_NONE;
+    }
+
+    /**
+     * Counts events sent to or received from the micro:bit.
+     *
+     * @param events Number of events.
+     */
+    public synchronized void onTraffic(int events) {
+        if(bleManager == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        lastTrafficTime = now;
+
+        if(now - burstStartTime > BURST_WINDOW) {
+            burstStartTime = now;
+            burstEvents = 0;
+        }
+        burstEvents += events;
+
+        if(priority != BluetoothGatt.CONNECTION_PRIORITY_HIGH && burstEvents >= BURST_EVENTS) {
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            handler.removeCallbacks(decayTask);
+            handler.postDelayed(decayTask, BURST_HOLD);
+        } else if(priority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+            // Traffic after a long idle time is likely followed by more of it
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            handler.removeCallbacks(decayTask);
+            handler.postDelayed(decayTask, IDLE_DELAY);
+        }
+    }
+
+    /**
+     * @return Current priority, or {@link #PRIORITY_NONE} if not started.
+     */
+    public synchronized int getPriority() {
+        return priority;
+    }
+
+    private synchronized void decay() {
+        if(bleManager == null) {
+            return;
+        }
+
+        long idle = SystemClock.elapsedRealtime() - lastTrafficTime;
+        switch(priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                if(idle < BURST_HOLD) {
+                    handler.postDelayed(decayTask, BURST_HOLD - idle);
+                } else {
+                    setPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+                    handler.postDelayed(decayTask, Math.max(0, IDLE_DELAY - idle));
+                }
+                break;
+
+            case BluetoothGatt.CONNECTION_PRIORITY_BALANCED:
+                if(idle < IDLE_DELAY) {
+                    handler.postDelayed(decayTask, IDLE_DELAY - idle);
+                } else {
+                    setPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+                }
+                break;
+
+            default:
+        }
+    }
+
+    private void setPriority(int newPriority) {
+        if(!bleManager.requestConnectionPriority(newPriority)) {
+            Log.e(TAG, "Connection priority " + newPriority + " not requested");
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        logTransition(newPriority, now);
+        priority = newPriority;
+        priorityTime = now;
+    }
+
+    private void logTransition(int newPriority, long now) {
+        Log.i(TAG, "Connection priority " + priority + " -> " + newPriority + " after " + (now - priorityTime) + " ms");
+    }
+}
@@ -0,0 +1,332 @@
+package com.samsung.microbit.core.bluetooth;
+
+import android.os.SystemClock;
+import android.util.SparseIntArray;
+
+import com.samsung.microbit.data.constants.EventCategories;
+import com.samsung.microbit.data.constants.EventSubCodes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects events going to the micro:bit event service and hands them out one per write.
+ * <p/>
+ * Events describing a state (signal strength, orientation, display on/off) are coalesced,
+ * so only the most recent value of such category is sent and a value equal to the one
+ * already sent is dropped. Other events (shake, incoming call or sms, ...) are always sent.
+ * <p/>
+ * Event service accepts exactly one event in a write, encoded as little endian uint32 value,
+ * see {@link com.samsung.microbit.utils.Utils#makeMicroBitValue(int, int)}.
+ * <p/>
+ * While the connection is lost, pending events are kept up to {@link #MAX_PENDING_EVENTS}, so they can
+ * be replayed when it comes back. Every event has a time to live depending on its category: a state
+ * stays meaningful for long, while a shake sent a minute late is rather confusing.
+ * <p/>
+ * A polled event stays in flight until its write is completed. If the write fails for a reason which
+ * may go away, the event is put back to the head of the batch, at most {@link #MAX_WRITE_ATTEMPTS} times.
+ */
+public class EventBatcher {
+    /**
+     * Time in milliseconds to collect events before they are sent.
+     */
+    public static final long BATCH_WINDOW = 20;
+
+    public static final int EVENT_SIZE = 4;
+
+    /**
+     * Maximum number of pending events. When it is reached, the oldest event is dropped.
+     */
+    public static final int MAX_PENDING_EVENTS = 64;
+
+    /**
+     * Maximum number of writes of a single event.
+     */
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    /**
+     * Time in milliseconds to keep events describing a state.
+     */
+    private static final long STATE_TIME_TO_LIVE = 60000;
+
+    /**
+     * Time in milliseconds to keep incoming call and sms events.
+     */
+    private static final long NOTIFICATION_TIME_TO_LIVE = 30000;
+
+    /**
+     * Time in milliseconds to keep other events.
+     */
+    private static final long EVENT_TIME_TO_LIVE = 5000;
+
+    private static final int NO_KEY = -1;
+
+    private static final class PendingEvent {
+        final int event;
+        final long expirationTime;
+        boolean held;
+        int attempts;
+        byte[] payload;
+
+        PendingEvent(int event, long expirationTime) {
+            this.event = event;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    private final List<PendingEvent> pendingEvents = new ArrayList<>();
+    private final List<PendingEvent> inFlightEvents = new ArrayList<>();
+    private final SparseIntArray lastSentEvents = new SparseIntArray();
+
+    private int droppedEvents;
+    private int replayedEvents;
+
+    /**
+     * Adds event to the pending batch.
+     *
+     * @param event Event value.
+     * @return True if the batch was empty before, so it should be scheduled for sending.
+     */
+    public synchronized boolean add(int event) {
+        boolean wasEmpty = pendingEvents.isEmpty();
+
+        int key = coalescingKey(event);
+        if(key != NO_KEY) {
+            for(int i = 0; i < pendingEvents.size(); i++) {
+                if(coalescingKey(pendingEvents.get(i).event) == key) {
+                    pendingEvents.remove(i);
+                    break;
+                }
+            }
+
+            if(lastSentEvents.get(key, event + 1) == event) {
+                return false;
+            }
+        }
+
+        if(pendingEvents.size() >= MAX_PENDING_EVENTS) {
+            pendingEvents.remove(0);
+            droppedEvents++;
+        }
+
+        pendingEvents.add(new PendingEvent(event, elapsedRealtime() + timeToLive(event, key)));
+        return wasEmpty;
+    }
+
+    /**
+     * Keeps pending events until the connection comes back, dropping the expired ones.
+     */
+    public synchronized void hold() {
+        dropExpired();
+        for(PendingEvent pendingEvent : pendingEvents) {
+            pendingEvent.held = true;
+        }
+    }
+
+    private void dropExpired() {
+        long now = elapsedRealtime();
+        for(int i = pendingEvents.size() - 1; i >= 0; i--) {
+            if(pendingEvents.get(i).expirationTime <= now) {
+                pendingEvents.remove(i);
+                droppedEvents++;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest pending event. It stays in flight until {@link #onWriteCompleted(byte[], boolean, boolean)}
+     * is called with the returned payload.
+     *
+     * @return Event packed into one write, or null if there are no pending events.
+     */
+    public synchronized byte[] poll() {
+        dropExpired();
+        if(pendingEvents.isEmpty()) {
+            return null;
+        }
+
+        PendingEvent pendingEvent = pendingEvents.remove(0);
+        if(pendingEvent.held && pendingEvent.attempts == 0) {
+            replayedEvents++;
+        }
+
+        int event = pendingEvent.event;
+        byte[] payload = new byte[EVENT_SIZE];
+        putEvent(payload, 0, event);
+        pendingEvent.payload = payload;
+        pendingEvent.attempts++;
+        inFlightEvents.add(pendingEvent);
+
+        int key = coalescingKey(event);
+        if(key != NO_KEY) {
+            lastSentEvents.put(key, event);
+        }
+
+        return payload;
+    }
+
+    /**
+     * Completes the write of an event taken by {@link #poll()}. A failed event is put back to the head of the batch
+     * if the failure may go away, it has not expired, it has not been replaced by a newer value and it has not been
+     * written too many times. Otherwise it is counted as dropped.
+     *
+     * @param payload   Payload returned by {@link #poll()}.
+     * @param success   True if the event is written.
+     * @param retryable True if the failure may go away, e.g. the write timed out or the connection is lost.
+     * @return True if the event is put back, so the batch should be scheduled for sending.
+     */
+    public synchronized boolean onWriteCompleted(byte[] payload, boolean success, boolean retryable) {
+        PendingEvent pendingEvent = null;
+        for(int i = 0; i < inFlightEvents.size(); i++) {
+            if(inFlightEvents.get(i).payload == payload) {
+                pendingEvent = inFlightEvents.remove(i);
+                break;
+            }
+        }
+
+        // Dropped meanwhile
+        if(pendingEvent == null || success) {
+            return false;
+        }
+
+        int event = pendingEvent.event;
+        int key = coalescingKey(event);
+        if(key != NO_KEY) {
+            if(lastSentEvents.get(key, event + 1) == event) {
+                lastSentEvents.delete(key);
+            }
+
+            for(PendingEvent newer : pendingEvents) {
+                if(coalescingKey(newer.event) == key) {
+                    return false;
+                }
+            }
+        }
+
+        if(!retryable || pendingEvent.attempts >= MAX_WRITE_ATTEMPTS
+                || pendingEvent.expirationTime <= elapsedRealtime()) {
+            droppedEvents++;
+            return false;
+        }
+
+        boolean wasEmpty = pendingEvents.isEmpty();
+        if(pendingEvents.size() >= MAX_PENDING_EVENTS) {
+            pendingEvents.remove(pendingEvents.size() - 1);
+            droppedEvents++;
+        }
+
+        pendingEvents.add(0, pendingEvent);
+        return wasEmpty;
+    }
+
+    /**
+     * Encodes event as little endian uint32 value.
+     *
+     * @param payload Payload to write to.
+     * @param offset  Offset of the event in the payload.
+     * @param event   Event value.
+     */
+    public static void putEvent(byte[] payload, int offset, int event) {
+        payload[offset] = (byte) event;
+        payload[offset + 1] = (byte) (event >> 8);
+        payload[offset + 2] = (byte) (event >> 16);
+        payload[offset + 3] = (byte) (event >> 24);
+    }
+
+    /**
+     * Drops pending events and forgets events in flight.
+     */
+    public synchronized void clear() {
+        droppedEvents += pendingEvents.size();
+        pendingEvents.clear();
+        inFlightEvents.clear();
+    }
+
+    /**
+     * Forgets values sent before, so they are sent again. Should be called when the connection
+     * is lost, as micro:bit may be reset meanwhile.
+     */
+    public synchronized void forgetSentEvents() {
+        lastSentEvents.clear();
+    }
+
+    /**
+     * Drops pending events and forgets values sent before.
+     */
+    public synchronized void reset() {
+        clear();
+        lastSentEvents.clear();
+    }
+
+    /**
+     * @return Number of events dropped because they expired, did not fit, were cleared or could not be written.
+     */
+    public synchronized int getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    /**
+     * @return Number of events sent after they were held during a connection loss.
+     */
+    public synchronized int getReplayedEvents() {
+        return replayedEvents;
+    }
+
+    /**
+     * Returns time in milliseconds used for the time to live of events. Overridden by tests to control the clock.
+     */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns time to live of the event.
+     *
+     * @param event Event value.
+     * @param key   Coalescing key of the event.
+     * @return Time in milliseconds.
+     */
+    private static long timeToLive(int event, int key) {
+        if(key != NO_KEY) {
+            return STATE_TIME_TO_LIVE;
+        }
+
+        int category = event & 0xFFFF;
+        int subCode = event >>> 16;
+        if(category == EventCategories.SAMSUNG_DEVICE_INFO_ID && (subCode == EventSubCodes.SAMSUNG_INCOMING_CALL ||
+                subCode == EventSubCodes.SAMSUNG_INCOMING_SMS)) {
+            return NOTIFICATION_TIME_TO_LIVE;
+        }
+
+        return EVENT_TIME_TO_LIVE;
+    }
+
+    /**
+     * Returns key of the state the event describes. Events with the same key replace each other.
+     *
+     * @param event Event value.
+     * @return Coalescing key or {@link #NO_KEY} if the event should not be coalesced.
+     */
+    private static int coalescingKey(int event) {
+        int category = event & 0xFFFF;
+        int subCode = event >>> 16;
+
+        if(category == EventCategories.SAMSUNG_SIGNAL_STRENGTH_ID) {
+            return category;
+        }
+
+        if(category == EventCategories.SAMSUNG_DEVICE_INFO_ID) {
+            switch(subCode) {
+                case EventSubCodes.SAMSUNG_DEVICE_ORIENTATION_LANDSCAPE:
+                case EventSubCodes.SAMSUNG_DEVICE_ORIENTATION_PORTRAIT:
+                    return category | (EventSubCodes.SAMSUNG_DEVICE_ORIENTATION_LANDSCAPE << 16);
+
+                case EventSubCodes.SAMSUNG_DEVICE_DISPLAY_OFF:
+                case EventSubCodes.SAMSUNG_DEVICE_DISPLAY_ON:
+                    return category | (EventSubCodes.SAMSUNG_DEVICE_DISPLAY_OFF << 16);
+            }
+        }
+
+        return NO_KEY;
+    }
+}
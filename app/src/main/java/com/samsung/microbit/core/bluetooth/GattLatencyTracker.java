@@ -0,0 +1,139 @@
+package com.samsung.microbit.core.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * Tracks round trip times of GATT operations and derives operation timeouts from them.
+ * <p/>
+ * A timeout is a multiple of the recent {@link #PERCENTILE}th percentile of round trip times of the same
+ * operation type, never shorter than the type minimum and never longer than the given ceiling. Until enough
+ * round trips are observed the ceiling is used. A timeout forgets the observed round trips of its type,
+ * so a too tight estimate falls back to the ceiling instead of failing again.
+ */
+public class GattLatencyTracker {
+    /**
+     * Number of recent round trips kept for every operation type.
+     */
+    private static final int SAMPLES = 32;
+
+    /**
+     * Number of round trips needed before the timeout is derived from them.
+     */
+    private static final int MIN_SAMPLES = 8;
+
+    private static final int PERCENTILE = 95;
+
+    private static final int PERCENTILE_MULTIPLIER = 3;
+
+    /**
+     * Minimum timeout in milliseconds of reads and writes. A few connection intervals of a slow
+     * connection, or a retransmission, easily take several hundred milliseconds.
+     */
+    private static final long MIN_TIMEOUT = 1500;
+
+    /**
+     * Minimum timeout in milliseconds of connection and services discovery, which may take
+     * much longer than usual when the device is not cached.
+     */
+    private static final long MIN_CONNECTION_TIMEOUT = 3000;
+
+    private static final int TYPES = 16;
+
+    private final long[][] samples = new long[TYPES][SAMPLES];
+    private final int[] sampleCounts = new int[TYPES];
+    private final int[] nextSamples = new int[TYPES];
+    private final int[] timeouts = new int[TYPES];
+
+    private final long[] sortedSamples = new long[SAMPLES];
+
+    /**
+     * Adds round trip time of a completed operation.
+     *
+     * @param type    Operation type, e.g. {@link BLEManager#OP_READ_CHARACTERISTIC}.
+     * @param latency Time in milliseconds from triggering the operation to its callback.
+     */
+    public synchronized void addSample(int type, long latency) {
+        if(!isValid(type)) {
+            return;
+        }
+
+        samples[type][nextSamples[type]] = latency;
+        nextSamples[type] = (nextSamples[type] + 1) % SAMPLES;
+        if(sampleCounts[type] < SAMPLES) {
+            sampleCounts[type]++;
+        }
+    }
+
+    /**
+     * Counts timed out operation and forgets round trips observed before.
+     *
+     * @param type Operation type.
+     */
+    public synchronized void onTimeout(int type) {
+        if(!isValid(type)) {
+            return;
+        }
+
+        timeouts[type]++;
+        sampleCounts[type] = 0;
+        nextSamples[type] = 0;
+    }
+
+    /**
+     * Forgets round trips of all operation types observed before. Should be called when the connection
+     * interval or the MTU changes, as they do not apply anymore.
+     */
+    public synchronized void clear() {
+        Arrays.fill(sampleCounts, 0);
+        Arrays.fill(nextSamples, 0);
+    }
+
+    /**
+     * Returns timeout for the next operation of the given type.
+     *
+     * @param type    Operation type.
+     * @param ceiling Maximum timeout in milliseconds.
+     * @return Timeout in milliseconds.
+     */
+    public synchronized long getTimeout(int type, long ceiling) {
+        long percentile = getPercentile(type);
+        if(percentile < 0) {
+            return ceiling;
+        }
+
+        long minTimeout = (type == BLEManager.OP_CONNECT || type == BLEManager.OP_DISCOVER_SERVICES) ?
+                MIN_CONNECTION_TIMEOUT : MIN_TIMEOUT;
+
+        return Math.min(ceiling, Math.max(minTimeout, percentile * PERCENTILE_MULTIPLIER));
+    }
+
+    /**
+     * Returns the {@link #PERCENTILE}th percentile of recent round trip times of the given operation type.
+     *
+     * @param type Operation type.
+     * @return Time in milliseconds, or -1 if not enough round trips are observed.
+     */
+    public synchronized long getPercentile(int type) {
+        if(!isValid(type) || sampleCounts[type] < MIN_SAMPLES) {
+            return -1;
+        }
+
+        int count = sampleCounts[type];
+        System.arraycopy(samples[type], 0, sortedSamples, 0, count);
+        Arrays.sort(sortedSamples, 0, count);
+
+        return sortedSamples[(count * PERCENTILE + 99) / 100 - 1];
+    }
+
+    /**
+     * @param type Operation type.
+     * @return Number of timed out operations of the given type.
+     */
+    public synchronized int getTimeoutCount(int type) {
+        return isValid(type) ? timeouts[type] : 0;
+    }
+
+    private static boolean isValid(int type) {
+        return type >= 0 && type < TYPES;
+    }
+}
@@ -0,0 +1,13 @@
+package com.samsung.microbit.core.bluetooth;
+
+public interface GattOperationCallback {
+    /**
+     * Callback triggered when a queued GATT operation is completed, failed or timed out.
+     * It is invoked on the {@link BLEManager} operation thread, so it must not call
+     * synchronous methods of {@link BLEManager}.
+     *
+     * @param result Operation result encoded the same way as the result of synchronous
+     *               operations, see {@link BLEManager#connect(boolean)}.
+     */
+    void onOperationCompleted(int result);
+}
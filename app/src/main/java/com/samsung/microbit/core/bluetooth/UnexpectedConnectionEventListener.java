@@ -4,7 +4,8 @@ public interface UnexpectedConnectionEventListener {
     /**
      * Callback that handles some unexpected connection events.
      *
-     * @param event           Unexpected connection event.
+     * @param event           Unexpected connection event, a connection state or an escalation step of the stall
+     *                        watchdog, e.g. {@link BLEManager#BLE_STALL_GATT_CLOSED}.
      * @param gattForceClosed Defines if connection is force closed.
      */
     void handleConnectionEvent(int event, boolean gattForceClosed);
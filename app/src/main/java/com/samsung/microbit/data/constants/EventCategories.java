@@ -17,6 +17,9 @@ public class EventCategories {
     public static final int IPC_WRITE_CHARACTERISTIC = 4;
     public static final int IPC_DISCONNECT_FOR_FLASH = 5;
     public static final int IPC_PLUGIN_STOP_PLAYING = 6;
+    public static final int IPC_REGISTER_EVENT_RING = 11;
+    public static final int IPC_EVENT_RING_DOORBELL = 12;
+    public static final int IPC_SET_CLIENT_REQUIREMENTS = 13;
 
     public static final int CATEGORY_REPLY = 8;
 
@@ -0,0 +1,70 @@
+package com.samsung.microbit.data.constants;
+
+import java.util.UUID;
+
+/**
+ * Contains integer handles of characteristics used by {@link com.samsung.microbit.service.BLEService}.
+ * A handle identifies a service/characteristic pair together with the format of written value,
+ * so an IPC message needs to carry only the handle and the value. Handles are also indexes
+ * of the table of characteristics resolved after services discovery.
+ *
+ * @see com.samsung.microbit.utils.ServiceUtils#composeWriteCharacteristicMessage(int, int)
+ */
+public class GattHandles {
+    private GattHandles() {
+    }
+
+    public static final int ES_CLIENT_EVENT = 0;
+    public static final int ES_CLIENT_REQUIREMENTS = 1;
+    public static final int ES_MICROBIT_EVENT = 2;
+    public static final int ES_MICROBIT_REQUIREMENTS = 3;
+    public static final int FIRMWARE_REVISION = 4;
+
+    public static final int COUNT = 5;
+
+    private static final int NOT_WRITABLE = 0;
+
+    private static final UUID[] SERVICES = {
+            GattServiceUUIDs.EVENT_SERVICE,
+            GattServiceUUIDs.EVENT_SERVICE,
+            GattServiceUUIDs.EVENT_SERVICE,
+            GattServiceUUIDs.EVENT_SERVICE,
+            GattServiceUUIDs.DEVICE_INFORMATION_SERVICE
+    };
+
+    private static final UUID[] CHARACTERISTICS = {
+            CharacteristicUUIDs.ES_CLIENT_EVENT,
+            CharacteristicUUIDs.ES_CLIENT_REQUIREMENTS,
+            CharacteristicUUIDs.ES_MICROBIT_EVENT,
+            CharacteristicUUIDs.ES_MICROBIT_REQUIREMENTS,
+            CharacteristicUUIDs.FIRMWARE_REVISION_UUID
+    };
+
+    private static final int[] FORMATS = {
+            GattFormats.FORMAT_UINT32,
+            GattFormats.FORMAT_UINT32,
+            NOT_WRITABLE,
+            NOT_WRITABLE,
+            NOT_WRITABLE
+    };
+
+    public static boolean isValid(int handle) {
+        return handle >= 0 && handle < COUNT;
+    }
+
+    public static boolean isWritable(int handle) {
+        return isValid(handle) && FORMATS[handle] != NOT_WRITABLE;
+    }
+
+    public static UUID getService(int handle) {
+        return SERVICES[handle];
+    }
+
+    public static UUID getCharacteristic(int handle) {
+        return CHARACTERISTICS[handle];
+    }
+
+    public static int getFormat(int handle) {
+        return FORMATS[handle];
+    }
+}
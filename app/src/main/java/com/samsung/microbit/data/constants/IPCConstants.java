@@ -15,6 +15,7 @@ public class IPCConstants {
     public static final String BUNDLE_CHARACTERISTIC_TYPE = "BUNDLE_CHARACTERISTIC_TYPE";
     public static final String BUNDLE_CHARACTERISTIC_VALUE = "BUNDLE_CHARACTERISTIC_VALUE";
     public static final String BUNDLE_DEVICE_ADDRESS = "BUNDLE_DEVICE_ADDRESS";
+    public static final String BUNDLE_CLIENT_REQUIREMENTS = "BUNDLE_CLIENT_REQUIREMENTS";
 
     public static final String INTENT_BLE_NOTIFICATION = "com.samsung.microbit.service.IPCService" +
             ".INTENT_BLE_NOTIFICATION";
@@ -15,6 +15,19 @@ public class ConnectedDevice {
     public String mfirmware_version;
     public long mlast_connection_time;
 
+    /**
+     * Bit mask of {@link com.samsung.microbit.data.constants.GattHandles} found when services of
+     * the device were discovered last time, see
+     * {@link com.samsung.microbit.core.bluetooth.BluetoothUtils#updateServicesLayout(android.content.Context, String, String, int)}.
+     * Zero if the layout is unknown.
+     */
+    public int mServicesLayout;
+
+    /**
+     * Firmware revision the device reported when {@link #mServicesLayout} was discovered.
+     */
+    public String mServicesLayoutFirmware;
+
     public ConnectedDevice() {
     }
 
@@ -34,6 +34,7 @@ public class InformationPlugin implements AbstractPlugin {
 
     private List<Presenter> activePresenters = new ArrayList<>();
     private List<Integer> alertTypes = new ArrayList<>();
+    private List<Presenter> startedPresenters = new ArrayList<>();
 
     @Override
     public void handleEntry(CmdArg cmd) {
@@ -55,11 +56,11 @@ public class InformationPlugin implements AbstractPlugin {
                         presenter = signalStrengthPresenter;
                     }
 
-                    presenter.start();
+                    startPresenter(presenter);
                 } else {
                     Presenter presenter = findPresenterByType(AlertType.TYPE_SIGNAL_STRENGTH);
                     if(presenter != null) {
-                        presenter.stop();
+                        stopPresenter(presenter);
                     }
                 }
                 break;
@@ -75,11 +76,11 @@ public class InformationPlugin implements AbstractPlugin {
                         presenter = orientationChangedPresenter;
                     }
 
-                    presenter.start();
+                    startPresenter(presenter);
                 } else {
                     Presenter presenter = findPresenterByType(AlertType.TYPE_ORIENTATION);
                     if(presenter != null) {
-                        presenter.stop();
+                        stopPresenter(presenter);
                     }
                 }
                 break;
@@ -96,11 +97,11 @@ public class InformationPlugin implements AbstractPlugin {
                         presenter = shakePresenter;
                     }
 
-                    presenter.start();
+                    startPresenter(presenter);
                 } else {
                     Presenter presenter = findPresenterByType(AlertType.TYPE_SHAKE);
                     if(presenter != null) {
-                        presenter.stop();
+                        stopPresenter(presenter);
                     }
                 }
                 break;
@@ -117,11 +118,11 @@ public class InformationPlugin implements AbstractPlugin {
                         presenter = batteryPresenter;
                     }
 
-                    presenter.start();
+                    startPresenter(presenter);
                 } else {
                     Presenter presenter = findPresenterByType(AlertType.TYPE_BATTERY);
                     if(presenter != null) {
-                        presenter.stop();
+                        stopPresenter(presenter);
                     }
                 }
                 break;
@@ -138,11 +139,11 @@ public class InformationPlugin implements AbstractPlugin {
                         presenter = temperaturePresenter;
                     }
 
-                    presenter.start();
+                    startPresenter(presenter);
                 } else {
                     Presenter presenter = findPresenterByType(AlertType.TYPE_TEMPERATURE);
                     if(presenter != null) {
-                        presenter.stop();
+                        stopPresenter(presenter);
                     }
                 }
                 break;
@@ -157,11 +158,11 @@ public class InformationPlugin implements AbstractPlugin {
                         presenter = screenOnOffPresenter;
                     }
 
-                    presenter.start();
+                    startPresenter(presenter);
                 } else {
                     Presenter presenter = findPresenterByType(AlertType.TYPE_SCREEN_ON_OFF);
                     if(presenter != null) {
-                        presenter.stop();
+                        stopPresenter(presenter);
                     }
                 }
                 break;
@@ -175,6 +176,27 @@ public class InformationPlugin implements AbstractPlugin {
         ServiceUtils.sendReplyCommand(mbsService, cmd);
     }
 
+    /**
+     * Checks if the plugin has any presenter sending events to the micro:bit.
+     *
+     * @return True if at least one presenter is started.
+     */
+    public boolean hasStartedPresenters() {
+        return !startedPresenters.isEmpty();
+    }
+
+    private void startPresenter(Presenter presenter) {
+        presenter.start();
+        if(!startedPresenters.contains(presenter)) {
+            startedPresenters.add(presenter);
+        }
+    }
+
+    private void stopPresenter(Presenter presenter) {
+        presenter.stop();
+        startedPresenters.remove(presenter);
+    }
+
     private Presenter findPresenterByType(@AlertType int alertType) {
         int index = alertTypes.indexOf(alertType);
 
@@ -192,6 +214,7 @@ public class InformationPlugin implements AbstractPlugin {
             presenter.destroy();
         }
         activePresenters.clear();
+        startedPresenters.clear();
     }
 
     @Retention(RetentionPolicy.RUNTIME)
@@ -6,6 +6,8 @@ import android.util.SparseArray;
 
 import com.samsung.microbit.data.constants.EventCategories;
 
+import java.util.Arrays;
+
 import static com.samsung.microbit.BuildConfig.DEBUG;
 
 /**
@@ -18,6 +20,16 @@ public class PluginsCreator {
         Log.i(TAG, "### " + Thread.currentThread().getId() + " # " + message);
     }
 
+    /**
+     * Categories of commands the micro:bit sends to plugins. Plugins handling them are created
+     * when the first command comes, so the categories are always required.
+     */
+    public static final int[] COMMAND_CATEGORIES = {
+            EventCategories.SAMSUNG_REMOTE_CONTROL_ID,
+            EventCategories.SAMSUNG_CAMERA_ID,
+            EventCategories.SAMSUNG_ALERTS_ID
+    };
+
     private SparseArray<AbstractPlugin> cachedPlugins = new SparseArray<>();
 
     /**
@@ -79,6 +91,28 @@ public class PluginsCreator {
         return abstractPlugin;
     }
 
+    /**
+     * Returns categories of micro:bit events plugins are interested in: categories of commands, and
+     * categories of information plugins which have started presenters.
+     *
+     * @return Sorted categories.
+     */
+    public int[] getClientRequirements() {
+        int[] requirements = Arrays.copyOf(COMMAND_CATEGORIES, COMMAND_CATEGORIES.length + cachedPlugins.size());
+        int count = COMMAND_CATEGORIES.length;
+
+        for(int i = 0; i < cachedPlugins.size(); i++) {
+            AbstractPlugin plugin = cachedPlugins.valueAt(i);
+            if(plugin instanceof InformationPlugin && ((InformationPlugin) plugin).hasStartedPresenters()) {
+                requirements[count++] = cachedPlugins.keyAt(i);
+            }
+        }
+
+        requirements = Arrays.copyOf(requirements, count);
+        Arrays.sort(requirements);
+        return requirements;
+    }
+
     /**
      * Free plugin resources.
      */
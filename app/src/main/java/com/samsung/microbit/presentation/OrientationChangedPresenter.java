@@ -1,7 +1,6 @@
 package com.samsung.microbit.presentation;
 
 import android.content.Context;
-import android.content.Intent;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -9,11 +8,9 @@ import android.hardware.SensorManager;
 import android.util.Log;
 
 import com.samsung.microbit.MBApp;
+import com.samsung.microbit.core.MicroBitEventBus;
 import com.samsung.microbit.data.constants.EventCategories;
 import com.samsung.microbit.data.constants.EventSubCodes;
-import com.samsung.microbit.data.constants.IPCConstants;
-import com.samsung.microbit.service.IPCService;
-import com.samsung.microbit.utils.Utils;
 
 public class OrientationChangedPresenter implements Presenter {
 
@@ -39,13 +36,7 @@ public class OrientationChangedPresenter implements Presenter {
             }
 
             if(previousOrientation != orientation) {
-                MBApp application = MBApp.getApp();
-
-                Intent intent = new Intent(application, IPCService.class);
-                intent.putExtra(IPCConstants.INTENT_TYPE, EventCategories.IPC_BLE_NOTIFICATION_CHARACTERISTIC_CHANGED);
-                intent.putExtra(IPCConstants.INTENT_CHARACTERISTIC_MESSAGE, Utils.makeMicroBitValue
-                        (EventCategories.SAMSUNG_DEVICE_INFO_ID, orientation));
-                application.startService(intent);
+                MicroBitEventBus.getInstance().publish(EventCategories.SAMSUNG_DEVICE_INFO_ID, orientation);
 
                 previousOrientation = orientation;
             }
@@ -1,21 +1,18 @@
 package com.samsung.microbit.presentation;
 
 import android.content.Context;
-import android.content.Intent;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 
 import com.samsung.microbit.MBApp;
+import com.samsung.microbit.core.MicroBitEventBus;
 import com.samsung.microbit.data.constants.EventCategories;
 import com.samsung.microbit.data.constants.EventSubCodes;
-import com.samsung.microbit.data.constants.IPCConstants;
 import com.samsung.microbit.data.model.CmdArg;
 import com.samsung.microbit.plugin.InformationPlugin;
-import com.samsung.microbit.service.IPCService;
 import com.samsung.microbit.service.PluginService;
-import com.samsung.microbit.utils.Utils;
 
 public class ShakePresenter implements Presenter {
     private static final String TAG = ShakePresenter.class.getSimpleName();
@@ -58,14 +55,8 @@ public class ShakePresenter implements Presenter {
                             informationPlugin.sendReplyCommand(PluginService.INFORMATION, cmd);
                         }
 
-                        MBApp application = MBApp.getApp();
-
-                        Intent intent = new Intent(application, IPCService.class);
-                        intent.putExtra(IPCConstants.INTENT_TYPE, EventCategories.IPC_BLE_NOTIFICATION_CHARACTERISTIC_CHANGED);
-                        intent.putExtra(IPCConstants.INTENT_CHARACTERISTIC_MESSAGE, Utils
-                                .makeMicroBitValue(EventCategories.SAMSUNG_DEVICE_INFO_ID,
-                                        EventSubCodes.SAMSUNG_DEVICE_GESTURE_DEVICE_SHAKEN));
-                        application.startService(intent);
+                        MicroBitEventBus.getInstance().publish(EventCategories.SAMSUNG_DEVICE_INFO_ID,
+                                EventSubCodes.SAMSUNG_DEVICE_GESTURE_DEVICE_SHAKEN);
 
                         mSwingCount = 0;
                     }
@@ -13,26 +13,32 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 import android.widget.Toast;
 
 import com.samsung.microbit.MBApp;
 import com.samsung.microbit.R;
+import com.samsung.microbit.core.SharedEventRing;
 import com.samsung.microbit.core.bluetooth.BLEManager;
 import com.samsung.microbit.core.bluetooth.BluetoothUtils;
 import com.samsung.microbit.core.bluetooth.CharacteristicChangeListener;
+import com.samsung.microbit.core.bluetooth.ConnectionPriorityPolicy;
+import com.samsung.microbit.core.bluetooth.EventBatcher;
+import com.samsung.microbit.core.bluetooth.GattOperationCallback;
 import com.samsung.microbit.core.bluetooth.UnexpectedConnectionEventListener;
 import com.samsung.microbit.data.constants.CharacteristicUUIDs;
 import com.samsung.microbit.data.constants.Constants;
 import com.samsung.microbit.data.constants.EventCategories;
-import com.samsung.microbit.data.constants.GattFormats;
+import com.samsung.microbit.data.constants.GattHandles;
 import com.samsung.microbit.data.constants.GattServiceUUIDs;
 import com.samsung.microbit.data.constants.IPCConstants;
 import com.samsung.microbit.data.constants.RegistrationIds;
@@ -41,6 +47,7 @@ import com.samsung.microbit.data.constants.UUIDs;
 import com.samsung.microbit.data.model.CmdArg;
 import com.samsung.microbit.data.model.ConnectedDevice;
 import com.samsung.microbit.data.model.NameValuePair;
+import com.samsung.microbit.plugin.PluginsCreator;
 import com.samsung.microbit.utils.ServiceUtils;
 
 import java.lang.ref.WeakReference;
@@ -67,8 +74,8 @@ public class BLEService extends Service {
     private static final class BLEHandler extends Handler {
         private WeakReference<BLEService> bleServiceWeakReference;
 
-        private BLEHandler(BLEService bleService) {
-            super();
+        private BLEHandler(BLEService bleService, Looper looper) {
+            super(looper);
             bleServiceWeakReference = new WeakReference<>(bleService);
         }
 
@@ -83,6 +90,61 @@ public class BLEService extends Service {
 
     public static final boolean AUTO_RECONNECT = false;
 
+    /**
+     * Delay in milliseconds before a simulated remote control event is sent.
+     */
+    private static final long SIMULATE_DELAY = 10000;
+
+    /**
+     * Internal message carrying result of a connection step, see {@link ConnectionStepCallback}.
+     */
+    private static final int MESSAGE_CONNECTION_STEP = 100;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_WAITING = 1;
+    private static final int STATE_CONNECTING = 2;
+    private static final int STATE_DISCOVERING = 3;
+    private static final int STATE_VALIDATING = 4;
+    private static final int STATE_MTU = 5;
+    private static final int STATE_REGISTERING = 6;
+    private static final int STATE_SUBSCRIBING = 7;
+    private static final int STATE_CONNECTED = 8;
+
+    /**
+     * Posts result of an asynchronous connection step to the BLE thread, where the connection
+     * state machine moves on.
+     */
+    private final class ConnectionStepCallback implements GattOperationCallback {
+        private final int state;
+        private final int attempt;
+
+        private ConnectionStepCallback(int state) {
+            this.state = state;
+            this.attempt = connectionAttempt;
+        }
+
+        @Override
+        public void onOperationCompleted(int result) {
+            bleHandler.obtainMessage(MESSAGE_CONNECTION_STEP, state, result, this).sendToTarget();
+        }
+    }
+
+    /**
+     * MTU requested after services are discovered. The micro:bit may refuse it,
+     * then the default payload of 20 bytes is used.
+     */
+    private static final int PREFERRED_MTU = 247;
+
+    /**
+     * Delay in milliseconds before categories whose registration failed are written again.
+     */
+    private static final long REQUIREMENTS_RETRY_DELAY = 500;
+
+    /**
+     * Maximum number of failed category writes retried during one connection.
+     */
+    private static final int MAX_REQUIREMENTS_RETRIES = 5;
+
     private BLEManager bleManager;
 
     private BluetoothManager bluetoothManager;
@@ -95,14 +157,131 @@ public class BLEService extends Service {
 
     private Messenger inputMessenger;
 
+    /**
+     * Categories of micro:bit events plugins are interested in, reported by {@link PluginService}.
+     * Accessed only on {@link #bleThread}.
+     */
+    private int[] clientRequirements = PluginsCreator.COMMAND_CATEGORIES;
+
+    /**
+     * Categories registered in {@link CharacteristicUUIDs#ES_CLIENT_REQUIREMENTS} during the current connection.
+     * Accessed only on {@link #bleThread}.
+     */
+    private final SparseBooleanArray subscribedRequirements = new SparseBooleanArray();
+
+    /**
+     * Categories whose write to {@link CharacteristicUUIDs#ES_CLIENT_REQUIREMENTS} is not completed yet.
+     * Accessed only on {@link #bleThread}.
+     */
+    private final SparseBooleanArray pendingRequirements = new SparseBooleanArray();
+
+    /**
+     * Number of failed category writes retried during the current connection. Accessed only on {@link #bleThread}.
+     */
+    private int requirementsRetries;
+
+    /**
+     * Ring of events going to {@link PluginService}, see {@link SharedEventRing}.
+     */
+    private SharedEventRing eventRing;
+
+    /**
+     * Messenger of {@link PluginService} used as the doorbell of {@link #eventRing}.
+     */
+    private volatile Messenger eventRingMessenger;
+
+    /**
+     * Thread handling incoming messages and setting up the connection, so neither blocks the main thread.
+     */
+    private HandlerThread bleThread;
+
     private BLEHandler bleHandler;
 
+    /**
+     * State of the connection set up. Accessed only on {@link #bleThread}.
+     */
+    private int connectionState = STATE_IDLE;
+
+    /**
+     * Incremented on every new connection attempt and reset, so results of an abandoned attempt are ignored.
+     * Accessed only on {@link #bleThread}.
+     */
+    private int connectionAttempt;
+
+    /**
+     * Set when services cached by the system were found stale and discovered once again during the current
+     * connection attempt, so they are not refreshed twice. Accessed only on {@link #bleThread}.
+     */
+    private boolean servicesRefreshed;
+
     private ServiceConnection connection;
 
+    /**
+     * Events going to {@link CharacteristicUUIDs#ES_CLIENT_EVENT}. They are collected during
+     * {@link EventBatcher#BATCH_WINDOW} and then written back-to-back.
+     */
+    private final EventBatcher eventBatcher = new EventBatcher();
+
+    /**
+     * Chooses connection priority from event traffic while connected.
+     */
+    private ConnectionPriorityPolicy priorityPolicy;
+
+    /**
+     * Characteristics listed in {@link GattHandles}, resolved once after services are discovered.
+     * Null when services are not discovered.
+     */
+    private volatile BluetoothGattCharacteristic[] characteristics;
+
+    /**
+     * Firmware revision read after services are discovered. Null when services are not discovered
+     * or the micro:bit has no device information service.
+     */
+    private volatile String firmwareRevision;
+
+    private final Runnable flushEventsTask = new Runnable() {
+        @Override
+        public void run() {
+            flushEvents();
+        }
+    };
+
+    private final Runnable updateRequirementsTask = new Runnable() {
+        @Override
+        public void run() {
+            if(connectionState == STATE_CONNECTED) {
+                updateClientRequirements();
+            }
+        }
+    };
+
+    private final Runnable setupBLETask = new Runnable() {
+        @Override
+        public void run() {
+            setupBLE();
+        }
+    };
+
+    private final Runnable simulateTask = new Runnable() {
+        @Override
+        public void run() {
+            sendMessage(EventCategories.SAMSUNG_REMOTE_CONTROL_ID, 10);
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
 
+        bleThread = new HandlerThread(TAG);
+        bleThread.start();
+        priorityPolicy = new ConnectionPriorityPolicy(new Handler(bleThread.getLooper()));
+
+        eventRing = SharedEventRing.open(this);
+        if(eventRing != null) {
+            eventRing.reset();
+        }
+
         connection = new ServiceConnection() {
             @Override
             public void onServiceConnected(ComponentName name, IBinder service) {
@@ -124,13 +303,15 @@ public class BLEService extends Service {
         if(connection != null) {
             unbindService(connection);
         }
+        priorityPolicy.stop();
+        bleThread.quitSafely();
         super.onDestroy();
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        bleHandler = new BLEHandler(this);
+        bleHandler = new BLEHandler(this, bleThread.getLooper());
 
         return new Messenger(bleHandler).getBinder();
     }
@@ -146,38 +327,44 @@ public class BLEService extends Service {
     }
 
     private void handleMessage(Message msg) {
-        inputMessenger = msg.replyTo;
+        if(msg.what == MESSAGE_CONNECTION_STEP) {
+            handleConnectionStep((ConnectionStepCallback) msg.obj, msg.arg2);
+            return;
+        }
+
+        if(msg.what == IPCConstants.MESSAGE_ANDROID && msg.arg1 == EventCategories.IPC_REGISTER_EVENT_RING) {
+            logi("handleMessage() :: event ring consumer registered");
+            eventRingMessenger = msg.replyTo;
+            return;
+        }
+
+        if(msg.replyTo != null) {
+            inputMessenger = msg.replyTo;
+        }
         logi("handleIncomingMessage()");
-        Bundle bundle = msg.getData();
         if(msg.what == IPCConstants.MESSAGE_ANDROID) {
             logi("IPCMessageManager.MESSAGE_ANDROID msg.arg1 = " + msg.arg1);
             if(msg.arg1 == SIMULATE) {
-                try {
-                    Thread.sleep(10000);
-                } catch(InterruptedException e) {
-                    Log.e(TAG, e.toString());
-                }
-                sendMessage(EventCategories.SAMSUNG_REMOTE_CONTROL_ID, 10);
+                bleHandler.postDelayed(simulateTask, SIMULATE_DELAY);
                 return;
             }
 
             switch(msg.arg1) {
                 case EventCategories.IPC_BLE_CONNECT:
                     int justPaired = msg.arg2;
+                    bleHandler.removeCallbacks(setupBLETask);
                     if(justPaired == IPCConstants.JUST_PAIRED) {
                         Log.e(TAG, "just paired delay");
-                        try {
-                            Thread.sleep(Constants.JUST_PAIRED_DELAY_ON_CONNECTION);
-                        } catch(InterruptedException e) {
-                            Log.e(TAG, e.toString());
-                        }
+                        connectionState = STATE_WAITING;
+                        bleHandler.postDelayed(setupBLETask, Constants.JUST_PAIRED_DELAY_ON_CONNECTION);
                     } else {
                         Log.e(TAG, "paired earlier");
+                        setupBLE();
                     }
-                    setupBLE();
                     break;
 
                 case EventCategories.IPC_BLE_DISCONNECT:
+                    bleHandler.removeCallbacks(setupBLETask);
                     initBLEManager();
                     if(reset()) {
                         setNotification(false, ERROR_NONE);
@@ -185,7 +372,18 @@ public class BLEService extends Service {
 
                     break;
 
+                case EventCategories.IPC_SET_CLIENT_REQUIREMENTS:
+                    int[] requirements = msg.getData().getIntArray(IPCConstants.BUNDLE_CLIENT_REQUIREMENTS);
+                    if(requirements != null) {
+                        clientRequirements = requirements;
+                        if(connectionState == STATE_CONNECTED) {
+                            updateClientRequirements();
+                        }
+                    }
+                    break;
+
                 case EventCategories.IPC_BLE_RECONNECT:
+                    bleHandler.removeCallbacks(setupBLETask);
                     if(reset()) {
                         setupBLE();
                     }
@@ -196,13 +394,14 @@ public class BLEService extends Service {
             }
         } else if(msg.what == IPCConstants.MESSAGE_MICROBIT) {
             logi("IPCMessageManager.MESSAGE_MICROBIT msg.arg1 = " + msg.arg1);
-            switch(msg.arg1) {
+            switch(ServiceUtils.getEventCategory(msg)) {
                 case EventCategories.IPC_WRITE_CHARACTERISTIC:
-                    String service = (String) bundle.getSerializable(IPCConstants.BUNDLE_SERVICE_GUID);
-                    String characteristic = (String) bundle.getSerializable(IPCConstants.BUNDLE_CHARACTERISTIC_GUID);
-                    int value = (int) bundle.getSerializable(IPCConstants.BUNDLE_CHARACTERISTIC_VALUE);
-                    int type = (int) bundle.getSerializable(IPCConstants.BUNDLE_CHARACTERISTIC_TYPE);
-                    writeCharacteristic(service, characteristic, value, type);
+                    int handle = ServiceUtils.getCharacteristicHandle(msg);
+                    if(handle == GattHandles.ES_CLIENT_EVENT) {
+                        queueEvent(msg.arg2);
+                    } else {
+                        writeCharacteristic(handle, msg.arg2);
+                    }
                     break;
 
                 default:
@@ -228,8 +427,14 @@ public class BLEService extends Service {
      */
     private boolean reset() {
         boolean rc = false;
+        connectionAttempt++;
+        connectionState = STATE_IDLE;
+        priorityPolicy.stop();
         if(bleManager != null) {
             disconnectAll();
+            eventBatcher.reset();
+            characteristics = null;
+            firmwareRevision = null;
             rc = bleManager.reset();
             if(rc) {
                 bleManager = null;
@@ -241,35 +446,54 @@ public class BLEService extends Service {
 
     private void disconnectAll() {
         logi("disconnectAll()");
-        registerNotifications(false);
+        unregisterNotifications();
     }
 
-    private boolean registerNotifications(boolean enable) {
-        logi("registerNotifications() : " + enable);
-
-        //Read micro:bit firmware version
-        BluetoothGattService deviceInfoService = getService(GattServiceUUIDs.DEVICE_INFORMATION_SERVICE);
-        if(deviceInfoService != null) {
-            BluetoothGattCharacteristic firmwareCharacteristic = deviceInfoService.getCharacteristic
-                    (CharacteristicUUIDs.FIRMWARE_REVISION_UUID);
-            if(firmwareCharacteristic != null) {
-                String firmware = "";
-                BluetoothGattCharacteristic characteristic = readCharacteristic(firmwareCharacteristic);
-                if(characteristic != null && characteristic.getValue() != null && characteristic.getValue().length != 0) {
-                    firmware = firmwareCharacteristic.getStringValue(0);
-                }
-                sendMicrobitFirmware(firmware);
-                logi("Micro:bit firmware version String = " + firmware);
-            }
+    /**
+     * Unregisters listeners of phone events and disables notifications of the event service.
+     */
+    private void unregisterNotifications() {
+        logi("unregisterNotifications()");
+
+        registerForSignalStrength(false);
+        registerForDeviceInfo(false);
+
+        BluetoothGattCharacteristic microbit_requirements = getCharacteristic(GattHandles.ES_MICROBIT_REQUIREMENTS);
+        BluetoothGattDescriptor microbit_requirementsDescriptor = getClientDescriptor(microbit_requirements);
+        if(microbit_requirementsDescriptor != null) {
+            enableCharacteristicNotification(microbit_requirements, microbit_requirementsDescriptor, false);
+        }
+
+        BluetoothGattCharacteristic microbit_events = getCharacteristic(GattHandles.ES_MICROBIT_EVENT);
+        BluetoothGattDescriptor microbit_eventsDescriptor = getClientDescriptor(microbit_events);
+        if(microbit_eventsDescriptor != null) {
+            enableCharacteristicNotification(microbit_events, microbit_eventsDescriptor, false);
+        }
+    }
+
+    /**
+     * Starts registering for notifications of the event service. The micro:bit requirements are read first,
+     * see {@link #readMicrobitRequirements()}, then the events from the micro:bit are subscribed,
+     * see {@link #subscribeMicroBitEvents()}.
+     */
+    private void registerNotifications() {
+        logi("registerNotifications()");
+        connectionState = STATE_REGISTERING;
+
+        //Micro:bit firmware version is read when services are discovered
+        String firmware = firmwareRevision;
+        if(firmware != null) {
+            sendMicrobitFirmware(firmware);
+            logi("Micro:bit firmware version String = " + firmware);
         } else {
             Log.e(TAG, "Not found DeviceInformationService");
         }
 
-        BluetoothGattService eventService = getService(GattServiceUUIDs.EVENT_SERVICE);
-        if(eventService == null) {
+        if(getService(GattServiceUUIDs.EVENT_SERVICE) == null) {
             Log.e(TAG, "Not found EventService");
             logi("registerNotifications() :: not found service : Constants.EVENT_SERVICE");
-            return false;
+            connectionFailed(ERROR_UNKNOWN_2);
+            return;
         }
 
         logi("Constants.EVENT_SERVICE   = " + GattServiceUUIDs.EVENT_SERVICE.toString());
@@ -277,20 +501,12 @@ public class BLEService extends Service {
         logi("Constants.ES_CLIENT_EVENT   = " + CharacteristicUUIDs.ES_CLIENT_EVENT.toString());
         logi("Constants.ES_MICROBIT_EVENT   = " + CharacteristicUUIDs.ES_MICROBIT_EVENT.toString());
         logi("Constants.ES_CLIENT_REQUIREMENTS   = " + CharacteristicUUIDs.ES_CLIENT_REQUIREMENTS.toString());
-        if(!registerMicrobitRequirements(eventService, enable)) {
+        if(!readMicrobitRequirements()) {
             if(DEBUG) {
                 logi("***************** Cannot Register Microbit Requirements.. Will continue ************** ");
             }
+            subscribeMicroBitEvents();
         }
-
-        register_AppRequirement(eventService, enable);
-
-        if(!registerMicroBitEvents(eventService, enable)) {
-            logi("Failed to registerMicroBitEvents");
-            return false;
-        }
-        logi("registerNotifications() : done");
-        return true;
     }
 
     private BluetoothGattService getService(UUID uuid) {
@@ -302,21 +518,58 @@ public class BLEService extends Service {
     }
 
     /**
-     * Reads the requested characteristic from the associated remote device.
+     * Returns characteristic resolved after services discovery.
      *
-     * @param characteristic Characteristic to read from the remote device.
-     * @return Operation result code.
+     * @param handle Characteristic handle listed in {@link GattHandles}.
+     * @return Characteristic, or null if it is not found or services are not discovered.
      */
-    private BluetoothGattCharacteristic readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if(bleManager != null) {
-            int rc = bleManager.readCharacteristic(characteristic);
-            rc = interpretCode(rc);
-            if(rc == ERROR_NONE) {
-                return bleManager.getLastCharacteristic();
+    @Nullable
+    private BluetoothGattCharacteristic getCharacteristic(int handle) {
+        BluetoothGattCharacteristic[] characteristics = this.characteristics;
+        return characteristics != null ? characteristics[handle] : null;
+    }
+
+    /**
+     * Resolves all characteristics listed in {@link GattHandles}, so later reads and writes
+     * skip searching through the services list.
+     */
+    private void resolveCharacteristics() {
+        BluetoothGattCharacteristic[] resolved = new BluetoothGattCharacteristic[GattHandles.COUNT];
+
+        BluetoothGattService service = null;
+        for(int handle = 0; handle < GattHandles.COUNT; handle++) {
+            UUID serviceUuid = GattHandles.getService(handle);
+            if(service == null || !service.getUuid().equals(serviceUuid)) {
+                service = getService(serviceUuid);
+            }
+
+            if(service != null) {
+                resolved[handle] = service.getCharacteristic(GattHandles.getCharacteristic(handle));
             }
         }
 
-        return null;
+        characteristics = resolved;
+    }
+
+    /**
+     * Returns layout of resolved characteristics, which is stored to check services of the next connection.
+     *
+     * @return Bit mask with a bit set for every resolved handle listed in {@link GattHandles}.
+     */
+    private int getServicesLayout() {
+        BluetoothGattCharacteristic[] characteristics = this.characteristics;
+        if(characteristics == null) {
+            return 0;
+        }
+
+        int layout = 0;
+        for(int handle = 0; handle < GattHandles.COUNT; handle++) {
+            if(characteristics[handle] != null) {
+                layout |= 1 << handle;
+            }
+        }
+
+        return layout;
     }
 
     /**
@@ -371,29 +624,45 @@ public class BLEService extends Service {
      * give you <10,3> the second <15,2>, the third will give you a zero length value.
      * You can send events to the micro:bit that haven't been asked for, but as no-one will
      * be listening, they will be silently dropped.
+     * <p/>
+     * Every read is asynchronous, its result is handled by {@link #handleMicrobitRequirement(int)}.
      *
-     * @param eventService Bluetooth GATT service.
-     * @param enable       Enable or disable.
-     * @return True, if successful.
+     * @return True if the first read is queued.
      */
-    private boolean registerMicrobitRequirements(BluetoothGattService eventService, boolean enable) {
-        BluetoothGattCharacteristic microbit_requirements = eventService.getCharacteristic(CharacteristicUUIDs
-                .ES_MICROBIT_REQUIREMENTS);
+    private boolean readMicrobitRequirements() {
+        BluetoothGattCharacteristic microbit_requirements = getCharacteristic(GattHandles.ES_MICROBIT_REQUIREMENTS);
         if(microbit_requirements == null) {
             logi("register_eventsFromMicrobit() :: ES_MICROBIT_REQUIREMENTS Not found");
             return false;
         }
 
-        BluetoothGattDescriptor microbit_requirementsDescriptor = microbit_requirements.getDescriptor(UUIDs
-                .CLIENT_DESCRIPTOR);
-        if(microbit_requirementsDescriptor == null) {
+        if(getClientDescriptor(microbit_requirements) == null) {
             logi("register_eventsFromMicrobit() :: CLIENT_DESCRIPTOR Not found");
             return false;
         }
 
-        BluetoothGattCharacteristic characteristic = readCharacteristic(microbit_requirements);
-        while(characteristic != null && characteristic.getValue() != null && characteristic.getValue().length != 0) {
-            String service = BluetoothUtils.parse(characteristic);
+        bleManager.readCharacteristic(microbit_requirements, BLEManager.BLE_WAIT_TIMEOUT,
+                new ConnectionStepCallback(STATE_REGISTERING));
+        return true;
+    }
+
+    /**
+     * Handles a value read from (3). Reads the next one until a zero length value is read, then registers for
+     * phone events and enables notifications of micro:bit requirements.
+     *
+     * @param result Result of the read.
+     */
+    private void handleMicrobitRequirement(int result) {
+        BluetoothGattCharacteristic microbit_requirements = getCharacteristic(GattHandles.ES_MICROBIT_REQUIREMENTS);
+        BluetoothGattDescriptor microbit_requirementsDescriptor = getClientDescriptor(microbit_requirements);
+        if(microbit_requirementsDescriptor == null) {
+            subscribeMicroBitEvents();
+            return;
+        }
+
+        byte[] value = microbit_requirements.getValue();
+        if(interpretCode(result) == ERROR_NONE && value != null && value.length != 0) {
+            String service = BluetoothUtils.parse(microbit_requirements);
             logi("microbit interested in  = " + service);
             if(service.equalsIgnoreCase("4F-04-07-00")) //Incoming Call service
             {
@@ -403,15 +672,28 @@ public class BLEService extends Service {
             {
                 sendMicroBitNeedsSmsNotification();
             }
-            characteristic = readCharacteristic(microbit_requirements);
+            bleManager.readCharacteristic(microbit_requirements, BLEManager.BLE_WAIT_TIMEOUT,
+                    new ConnectionStepCallback(STATE_REGISTERING));
+            return;
         }
 
-        registerForSignalStrength(enable);
-        registerForDeviceInfo(enable);
+        registerForSignalStrength(true);
+        registerForDeviceInfo(true);
 
         logi("registerMicrobitRequirements() :: found Constants.ES_MICROBIT_REQUIREMENTS ");
-        enableCharacteristicNotification(microbit_requirements, microbit_requirementsDescriptor, enable);
-        return true;
+        bleManager.enableCharacteristicNotification(microbit_requirements, microbit_requirementsDescriptor, true, null);
+        subscribeMicroBitEvents();
+    }
+
+    /**
+     * Returns client configuration descriptor of the characteristic.
+     *
+     * @param characteristic Characteristic, may be null.
+     * @return Descriptor, or null if the characteristic or its descriptor is not found.
+     */
+    @Nullable
+    private static BluetoothGattDescriptor getClientDescriptor(@Nullable BluetoothGattCharacteristic characteristic) {
+        return characteristic != null ? characteristic.getDescriptor(UUIDs.CLIENT_DESCRIPTOR) : null;
     }
 
     private void sendMicroBitNeedsCallNotification() {
@@ -605,67 +887,204 @@ public class BLEService extends Service {
      * e.g. write <1,1> to register for a 'DOWN' event on ButtonA.
      * Any events matching this will then start to be delivered via the MicroBit Event characteristic.
      *
-     * @param eventService Bluetooth GATT service.
-     * @param enable       Enable or disable.
+     * @param enable Enable or disable.
      */
-    private void register_AppRequirement(BluetoothGattService eventService, boolean enable) {
+    private void register_AppRequirement(boolean enable) {
         if(!enable) {
             return;
         }
 
-        BluetoothGattCharacteristic app_requirements = eventService.getCharacteristic(CharacteristicUUIDs.ES_CLIENT_REQUIREMENTS);
-        if(app_requirements != null) {
-            logi("register_AppRequirement() :: found Constants.ES_CLIENT_REQUIREMENTS ");
-            /*
-            Registering for everything at the moment
-            <1,0> which means give me all the events from ButtonA.
-            <2,0> which means give me all the events from ButtonB.
-            <0,0> which means give me all the events from everything.
-            writeCharacteristic(Constants.EVENT_SERVICE.toString(), Constants.ES_CLIENT_REQUIREMENTS.toString(), 0, BluetoothGattCharacteristic.FORMAT_UINT32);
-            */
-            writeCharacteristic(GattServiceUUIDs.EVENT_SERVICE.toString(), CharacteristicUUIDs.ES_CLIENT_REQUIREMENTS.toString(),
-                    EventCategories.SAMSUNG_REMOTE_CONTROL_ID, GattFormats.FORMAT_UINT32);
-            writeCharacteristic(GattServiceUUIDs.EVENT_SERVICE.toString(), CharacteristicUUIDs.ES_CLIENT_REQUIREMENTS.toString(),
-                    EventCategories.SAMSUNG_CAMERA_ID, GattFormats.FORMAT_UINT32);
-            writeCharacteristic(GattServiceUUIDs.EVENT_SERVICE.toString(), CharacteristicUUIDs.ES_CLIENT_REQUIREMENTS.toString(),
-                    EventCategories.SAMSUNG_ALERTS_ID, GattFormats.FORMAT_UINT32);
-            writeCharacteristic(GattServiceUUIDs.EVENT_SERVICE.toString(), CharacteristicUUIDs.ES_CLIENT_REQUIREMENTS.toString(),
-                    EventCategories.SAMSUNG_SIGNAL_STRENGTH_ID, GattFormats.FORMAT_UINT32);
-            writeCharacteristic(GattServiceUUIDs.EVENT_SERVICE.toString(), CharacteristicUUIDs.ES_CLIENT_REQUIREMENTS.toString(),
-                    EventCategories.SAMSUNG_DEVICE_INFO_ID, GattFormats.FORMAT_UINT32);
-            //writeCharacteristic(GattServiceUUIDs.EVENT_SERVICE.toString(), CharacteristicUUIDs
-            //        .ES_CLIENT_REQUIREMENTS.toString(), EventCategories.SAMSUNG_TELEPHONY_ID,
-            //        GattFormats.FORMAT_UINT32);
+        // Subscriptions are lost with the connection
+        subscribedRequirements.clear();
+        pendingRequirements.clear();
+        requirementsRetries = 0;
+        bleHandler.removeCallbacks(updateRequirementsTask);
+        updateClientRequirements();
+    }
+
+    /**
+     * Registers for categories of events plugins are interested in and which are not registered yet.
+     * Each category is sent in a write of its own, encoded as <category,0> which means give me all
+     * the events from the category. A category is marked as registered only when its write succeeds,
+     * a failed one is retried after {@link #REQUIREMENTS_RETRY_DELAY}.
+     * <p/>
+     * Event service has no way to drop a registration, so categories plugins are not interested
+     * in anymore stay registered until the next connection.
+     */
+    private void updateClientRequirements() {
+        BluetoothGattCharacteristic app_requirements = getCharacteristic(GattHandles.ES_CLIENT_REQUIREMENTS);
+        if(app_requirements == null || bleManager == null) {
+            logi("updateClientRequirements() :: ES_CLIENT_REQUIREMENTS Not found");
+            return;
+        }
+
+        for(int category : clientRequirements) {
+            if(subscribedRequirements.get(category) || pendingRequirements.get(category)) {
+                continue;
+            }
+
+            byte[] payload = new byte[EventBatcher.EVENT_SIZE];
+            EventBatcher.putEvent(payload, 0, category);
+            app_requirements.setValue(payload);
+
+            pendingRequirements.put(category, true);
+            bleManager.writeCharacteristic(app_requirements, BLEManager.BLE_WAIT_TIMEOUT,
+                    new RequirementCallback(category));
         }
     }
 
-    private void writeCharacteristic(String serviceGuid, String characteristic, int value, int type) {
-        if(!isConnected()) {
-            logi("writeCharacteristic() :: Not connected. Returning");
+    /**
+     * Marks the category as registered when its write to {@link CharacteristicUUIDs#ES_CLIENT_REQUIREMENTS}
+     * succeeds, or schedules a retry when it fails. Results of writes made during a previous connection
+     * are ignored.
+     */
+    private final class RequirementCallback implements GattOperationCallback {
+        private final int category;
+        private final int attempt;
+
+        private RequirementCallback(int category) {
+            this.category = category;
+            this.attempt = connectionAttempt;
+        }
+
+        @Override
+        public void onOperationCompleted(final int result) {
+            bleHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(attempt != connectionAttempt) {
+                        return;
+                    }
+
+                    pendingRequirements.delete(category);
+                    int rc = interpretCode(result);
+                    logi("updateClientRequirements() :: category " + category + " registered. Return Value = 0x"
+                            + Integer.toHexString(rc));
+                    if(rc == ERROR_NONE) {
+                        subscribedRequirements.put(category, true);
+                    } else if(requirementsRetries < MAX_REQUIREMENTS_RETRIES) {
+                        requirementsRetries++;
+                        bleHandler.removeCallbacks(updateRequirementsTask);
+                        bleHandler.postDelayed(updateRequirementsTask, REQUIREMENTS_RETRY_DELAY);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes a value to the characteristic identified by handle.
+     *
+     * @param handle Characteristic handle listed in {@link GattHandles}.
+     * @param value  Value to write.
+     */
+    private void writeCharacteristic(int handle, int value) {
+        if(!GattHandles.isWritable(handle)) {
+            logi("writeCharacteristic() :: Unknown handle " + handle);
             return;
         }
 
-        BluetoothGattService s = getService(UUID.fromString(serviceGuid));
-        if(s == null) {
-            logi("writeCharacteristic() :: Service not found");
+        if(!isConnected()) {
+            logi("writeCharacteristic() :: Not connected. Returning");
             return;
         }
 
-        BluetoothGattCharacteristic c = s.getCharacteristic(UUID.fromString(characteristic));
+        BluetoothGattCharacteristic c = getCharacteristic(handle);
         if(c == null) {
             logi("writeCharacteristic() :: characteristic not found");
             return;
         }
 
-        c.setValue(value, type, 0);
+        c.setValue(value, GattHandles.getFormat(handle), 0);
         int ret = writeCharacteristic(c);
         logi("writeCharacteristic() :: returns - " + ret);
     }
 
+    /**
+     * Adds event to the batch going to the micro:bit event service and schedules sending.
+     *
+     * @param event Event value.
+     */
+    private void queueEvent(int event) {
+        if(eventBatcher.add(event)) {
+            bleHandler.postDelayed(flushEventsTask, EventBatcher.BATCH_WINDOW);
+        }
+    }
+
+    /**
+     * Writes all batched events to {@link CharacteristicUUIDs#ES_CLIENT_EVENT}, one event per write,
+     * as the event service accepts no more. Writes are queued in bluetooth manager without waiting
+     * for each other.
+     */
+    private void flushEvents() {
+        if(connectionState != STATE_CONNECTED && connectionState != STATE_IDLE) {
+            logi("flushEvents() :: Connection is being set up. Keeping events");
+            eventBatcher.hold();
+            return;
+        }
+
+        if(!isConnected()) {
+            if(bleManager == null) {
+                logi("flushEvents() :: Not connected. Dropping events");
+                eventBatcher.clear();
+            } else {
+                logi("flushEvents() :: Connection lost. Keeping events until reconnection");
+                eventBatcher.hold();
+            }
+            return;
+        }
+
+        BluetoothGattCharacteristic c = getCharacteristic(GattHandles.ES_CLIENT_EVENT);
+        if(c == null) {
+            logi("flushEvents() :: characteristic not found");
+            eventBatcher.clear();
+            return;
+        }
+
+        while(true) {
+            final byte[] payload = eventBatcher.poll();
+            if(payload == null) {
+                break;
+            }
+
+            priorityPolicy.onTraffic(1);
+
+            c.setValue(payload);
+            bleManager.writeCharacteristic(c, BLEManager.BLE_WAIT_TIMEOUT, new GattOperationCallback() {
+                @Override
+                public void onOperationCompleted(int result) {
+                    int rc = interpretCode(result);
+                    logi("flushEvents() :: event written. Return Value = 0x" + Integer.toHexString(rc));
+                    if(eventBatcher.onWriteCompleted(payload, rc == ERROR_NONE, isRetryableWriteError(result))) {
+                        bleHandler.postDelayed(flushEventsTask, EventBatcher.BATCH_WINDOW);
+                    }
+                }
+            });
+        }
+
+        logi("flushEvents() :: replayed events = " + eventBatcher.getReplayedEvents() + " dropped events = "
+                + eventBatcher.getDroppedEvents());
+    }
+
     private boolean isConnected() {
         return bleManager != null && bleManager.isConnected();
     }
 
+    /**
+     * Checks if a failed write may succeed when it is repeated: it timed out, could not be triggered, or the connection
+     * was lost meanwhile. A write rejected by the micro:bit fails again.
+     *
+     * @param result Result of the write, see {@link BLEManager#connect(boolean)}.
+     * @return True if the write may be repeated.
+     */
+    private static boolean isRetryableWriteError(int result) {
+        if(result == BLEManager.BLE_ERROR_NOOP || (result & BLEManager.BLE_ERROR_TIMEOUT) != 0) {
+            return true;
+        }
+
+        return (result & BLEManager.BLE_CONNECTED) == 0;
+    }
+
     /**
      * Writes a given characteristic and its values to the associated remote device.
      *
@@ -676,6 +1095,13 @@ public class BLEService extends Service {
         int rc = ERROR_UNKNOWN_1;
 
         if(bleManager != null) {
+            byte[] value = characteristic.getValue();
+            if(value != null && value.length > bleManager.getMaxPayloadSize()) {
+                Log.e(TAG, "writeCharacteristic() :: value of " + value.length + " bytes exceeds max payload size "
+                        + bleManager.getMaxPayloadSize());
+                return rc;
+            }
+
             rc = bleManager.writeCharacteristic(characteristic);
             rc = interpretCode(rc);
 
@@ -686,29 +1112,31 @@ public class BLEService extends Service {
     }
 
     /**
-     * Enables or disables micro:bit event by given event and enable/disable flag.
-     *
-     * @param eventService Bluetooth GATT service to be registered.
-     * @param enable       Enable or disable.
-     * @return True, if successful.
+     * Registers for events the plugins need and enables notifications of micro:bit events, the last step of
+     * the connection set up. Its result is handled by {@link #handleConnectionStep(ConnectionStepCallback, int)}.
      */
-    private boolean registerMicroBitEvents(BluetoothGattService eventService, boolean enable) {
+    private void subscribeMicroBitEvents() {
+        register_AppRequirement(true);
+
         // Read (or register for notify) on (1) to receive events generated by the micro:bit.
-        BluetoothGattCharacteristic microbit_requirements = eventService.getCharacteristic(CharacteristicUUIDs
-                .ES_MICROBIT_EVENT);
-        if(microbit_requirements == null) {
+        BluetoothGattCharacteristic microbit_events = getCharacteristic(GattHandles.ES_MICROBIT_EVENT);
+        if(microbit_events == null) {
             logi("register_eventsFromMicrobit() :: ES_MICROBIT_EVENT Not found");
-            return false;
+            logi("Failed to registerMicroBitEvents");
+            connectionFailed(ERROR_UNKNOWN_2);
+            return;
         }
-        BluetoothGattDescriptor microbit_requirementsDescriptor = microbit_requirements.getDescriptor(UUIDs
-                .CLIENT_DESCRIPTOR);
-        if(microbit_requirementsDescriptor == null) {
+        BluetoothGattDescriptor microbit_eventsDescriptor = getClientDescriptor(microbit_events);
+        if(microbit_eventsDescriptor == null) {
             logi("register_eventsFromMicrobit() :: CLIENT_DESCRIPTOR Not found");
-            return false;
+            logi("Failed to registerMicroBitEvents");
+            connectionFailed(ERROR_UNKNOWN_2);
+            return;
         }
 
-        enableCharacteristicNotification(microbit_requirements, microbit_requirementsDescriptor, enable);
-        return true;
+        connectionState = STATE_SUBSCRIBING;
+        bleManager.enableCharacteristicNotification(microbit_events, microbit_eventsDescriptor, true,
+                new ConnectionStepCallback(STATE_SUBSCRIBING));
     }
 
     /**
@@ -756,13 +1184,18 @@ public class BLEService extends Service {
                 },
                 new UnexpectedConnectionEventListener() {
                     @Override
-                    public void handleConnectionEvent(int event, boolean gattForceClosed) {
+                    public void handleConnectionEvent(final int event, final boolean gattForceClosed) {
                         logi("setupBLE().CharacteristicChangeListener.handleUnexpectedConnectionEvent()"
                                 + event);
 
-                        if(bleManager != null) {
-                            handleUnexpectedConnectionEvent(event, gattForceClosed);
-                        }
+                        bleHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if(bleManager != null) {
+                                    handleUnexpectedConnectionEvent(event, gattForceClosed);
+                                }
+                            }
+                        });
                     }
                 });
 
@@ -846,53 +1279,100 @@ public class BLEService extends Service {
         //TODO use notificationString, notifyMgr, and onGoingNotification
     }
 
+    /**
+     * Decodes all events packed into the notification value, each of them encoded as little endian uint32
+     * (event source in the lower half, event in the upper one), and passes them on as one batch.
+     */
     private void handleCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         String UUID = characteristic.getUuid().toString();
 
-        Integer integerValue = characteristic.getIntValue(GattFormats.FORMAT_UINT32, 0);
-
-        if(integerValue == null) {
-            return;
-        }
-        int value = integerValue;
-        int eventSrc = value & 0x0ffff;
-        if(eventSrc < 1001) {
+        byte[] value = characteristic.getValue();
+        if(value == null) {
             return;
         }
+
+        int records = value.length / EventBatcher.EVENT_SIZE;
+        int[] eventSrcs = new int[records];
+        int[] events = new int[records];
+        int count = 0;
+
         logi("Characteristic UUID = " + UUID);
-        logi("Characteristic Value = " + value);
-        logi("eventSrc = " + eventSrc);
+        for(int offset = 0; offset + EventBatcher.EVENT_SIZE <= value.length; offset += EventBatcher.EVENT_SIZE) {
+            int eventSrc = (value[offset] & 0xff) | ((value[offset + 1] & 0xff) << 8);
+            int event = (value[offset + 2] & 0xff) | ((value[offset + 3] & 0xff) << 8);
+            logi("eventSrc = " + eventSrc + " event = " + event);
 
-        int event = (value >> 16) & 0x0ffff;
-        logi("event = " + event);
-        sendMessage(eventSrc, event);
-    }
+            if(eventSrc < 1001) {
+                continue;
+            }
 
-    private void sendMessage(int eventSrc, int event) {
-        if(inputMessenger == null) {
-            Log.e(TAG, "wrong inputMessenger");
-            return;
+            if(!isPluginEventSource(eventSrc)) {
+                Log.e(TAG, "unknown category: " + eventSrc);
+                continue;
+            }
+
+            eventSrcs[count] = eventSrc;
+            events[count] = event;
+            count++;
         }
 
-        logi("Sending eventSrc " + eventSrc + "  event=" + event);
-        int msgService;
-        CmdArg cmd;
+        priorityPolicy.onTraffic(records);
+        sendMessages(eventSrcs, events, count);
+    }
+
+    private static boolean isPluginEventSource(int eventSrc) {
         switch(eventSrc) {
             case EventCategories.SAMSUNG_REMOTE_CONTROL_ID:
             case EventCategories.SAMSUNG_ALERTS_ID:
             case EventCategories.SAMSUNG_AUDIO_RECORDER_ID:
             case EventCategories.SAMSUNG_CAMERA_ID:
-                msgService = eventSrc;
-                cmd = new CmdArg(event, "1000");
-                break;
+                return true;
 
             default:
-                Log.e(TAG, "unknown category: " + eventSrc);
-                return;
+                return false;
+        }
+    }
+
+    /**
+     * Sends a batch of events to {@link PluginService}. The batch goes through the event ring at once
+     * if it fits, otherwise events are sent one by one.
+     *
+     * @param eventSrcs Event sources.
+     * @param events    Events.
+     * @param count     Number of events in the batch.
+     */
+    private void sendMessages(int[] eventSrcs, int[] events, int count) {
+        if(count == 0) {
+            return;
+        }
+
+        if(offerToEventRing(eventSrcs, events, count)) {
+            return;
+        }
+
+        for(int i = 0; i < count; i++) {
+            sendMessage(eventSrcs[i], events[i]);
+        }
+    }
+
+    private void sendMessage(int eventSrc, int event) {
+        logi("Sending eventSrc " + eventSrc + "  event=" + event);
+        if(!isPluginEventSource(eventSrc)) {
+            Log.e(TAG, "unknown category: " + eventSrc);
+            return;
+        }
+
+        if(offerToEventRing(new int[]{eventSrc}, new int[]{event}, 1)) {
+            return;
+        }
+
+        if(inputMessenger == null) {
+            Log.e(TAG, "wrong inputMessenger");
+            return;
         }
 
         Message message = ServiceUtils.composeMessage(IPCConstants.MESSAGE_MICROBIT,
-                msgService, ServiceIds.SERVICE_PLUGIN, cmd, null);
+                eventSrc, ServiceIds.SERVICE_PLUGIN, new CmdArg(event, "1000"), null);
         if(message != null) {
             try {
                 inputMessenger.send(message);
@@ -902,6 +1382,42 @@ public class BLEService extends Service {
         }
     }
 
+    /**
+     * Writes events to the ring shared with {@link PluginService} and rings the doorbell if
+     * the plugin service waits for events.
+     *
+     * @param eventSrcs Event sources.
+     * @param events    Events.
+     * @param count     Number of events.
+     * @return True if the events are written, false if they should be sent through {@link IPCService}.
+     */
+    private boolean offerToEventRing(int[] eventSrcs, int[] events, int count) {
+        Messenger messenger = eventRingMessenger;
+        if(eventRing == null || messenger == null) {
+            return false;
+        }
+
+        switch(eventRing.offer(eventSrcs, events, count)) {
+            case SharedEventRing.OFFER_RING_DOORBELL:
+                try {
+                    messenger.send(Message.obtain(null, IPCConstants.MESSAGE_ANDROID, EventCategories
+                            .IPC_EVENT_RING_DOORBELL, 0));
+                } catch(RemoteException e) {
+                    // Events stay in the ring and are read when the plugin service registers again.
+                    Log.e(TAG, e.toString());
+                    eventRingMessenger = null;
+                }
+                return true;
+
+            case SharedEventRing.OFFER_WRITTEN:
+                return true;
+
+            default:
+                logi("offerToEventRing() :: ring is full");
+                return false;
+        }
+    }
+
     private void handleUnexpectedConnectionEvent(int event, boolean gattForceClosed) {
         logi("handleUnexpectedConnectionEvent() :: event = " + event);
 
@@ -919,36 +1435,131 @@ public class BLEService extends Service {
             return;
         }*/
 
-        if((event & BLEManager.BLE_CONNECTED) != 0) {
+        if((event & BLEManager.BLE_STALL_GATT_CLOSED) != 0) {
+            logi("handleUnexpectedConnectionEvent() :: BLE_STALL_GATT_CLOSED");
+            priorityPolicy.stop();
+            // Connection is not reported as lost, the fresh one either succeeds or reports its failure.
+            eventBatcher.forgetSentEvents();
+            characteristics = null;
+            firmwareRevision = null;
+            bleManager.reset();
+            startupConnection();
+        } else if((event & BLEManager.BLE_STALL_OPERATION_CANCELLED) != 0) {
+            logi("handleUnexpectedConnectionEvent() :: BLE_STALL_OPERATION_CANCELLED, state = "
+                    + (event & ~BLEManager.BLE_STALL_OPERATION_CANCELLED));
+        } else if((event & BLEManager.BLE_CONNECTED) != 0) {
             logi("handleUnexpectedConnectionEvent() :: BLE_CONNECTED");
-            discoverServices();
-            registerNotifications(true);
-            setNotification(true, ERROR_NONE);
+            connectionAttempt++;
+            startDiscovery();
         } else if(event == BLEManager.BLE_DISCONNECTED) {
             logi("handleUnexpectedConnectionEvent() :: BLE_DISCONNECTED");
+            connectionAttempt++;
+            connectionState = STATE_IDLE;
+            priorityPolicy.stop();
+            eventBatcher.forgetSentEvents();
+            characteristics = null;
+            firmwareRevision = null;
             setNotification(false, ERROR_NONE);
         }
     }
 
     /**
-     * Provides asynchronous operation to discover for services. If the discovery was
-     * successful, the remote services can be accessed through {@link #getServices()} method.
+     * Starts discovering of services. When it is completed, the connection state machine
+     * validates services and registers notifications, see {@link #handleConnectionStep(ConnectionStepCallback, int)}.
+     */
+    private void startDiscovery() {
+        connectionState = STATE_DISCOVERING;
+        characteristics = null;
+        firmwareRevision = null;
+        servicesRefreshed = false;
+        bleManager.discoverServices(new ConnectionStepCallback(STATE_DISCOVERING));
+    }
+
+    /**
+     * Starts validation of discovered services by reading the micro:bit firmware revision, which keys the stored
+     * layout of services. The read value is checked by {@link #validateServices(String)}.
+     */
+    private void startValidation() {
+        connectionState = STATE_VALIDATING;
+
+        BluetoothGattCharacteristic firmwareCharacteristic = getCharacteristic(GattHandles.FIRMWARE_REVISION);
+        if(firmwareCharacteristic == null) {
+            validateServices(null);
+            return;
+        }
+
+        bleManager.readCharacteristic(firmwareCharacteristic, BLEManager.BLE_WAIT_TIMEOUT,
+                new ConnectionStepCallback(STATE_VALIDATING));
+    }
+
+    /**
+     * Returns the micro:bit firmware revision read by {@link #startValidation()}.
      *
-     * @return Result of discovering.
+     * @param result Result of the read.
+     * @return Firmware revision, empty string if it cannot be read, or null if the device has no
+     * device information service.
      */
-    private int discoverServices() {
-        int rc = ERROR_UNKNOWN_1;
+    @Nullable
+    private String getFirmwareRevision(int result) {
+        BluetoothGattCharacteristic firmwareCharacteristic = getCharacteristic(GattHandles.FIRMWARE_REVISION);
+        if(firmwareCharacteristic == null) {
+            return null;
+        }
 
-        if(bleManager != null) {
-            if(DEBUG) {
-                logi("discoverServices() :: bleManager != null");
-            }
+        byte[] value = firmwareCharacteristic.getValue();
+        if(interpretCode(result) == ERROR_NONE && value != null && value.length != 0) {
+            return firmwareCharacteristic.getStringValue(0);
+        }
+
+        return "";
+    }
+
+    /**
+     * Checks services got from the system cache against the layout stored for the micro:bit, keyed by its
+     * address and firmware revision, or by the address alone if the firmware revision is unknown. While the
+     * layout matches, cached services are trusted. If it differs, the cache is cleared and services are
+     * discovered over the air once again, then they are validated again and the new layout is stored.
+     * If nothing is stored for the micro:bit yet, the layout is stored without refreshing. The MTU is negotiated next.
+     *
+     * @param firmware Firmware revision of the micro:bit, or null if it has no device information service.
+     */
+    private void validateServices(@Nullable String firmware) {
+        Context appContext = getApplicationContext();
+
+        int layout = getServicesLayout();
+        int storedLayout = BluetoothUtils.getServicesLayout(appContext, deviceAddress, firmware);
 
-            rc = bleManager.discoverServices();
-            rc = interpretCode(rc, BLEManager.BLE_SERVICES_DISCOVERED);
+        if(storedLayout != 0 && storedLayout == layout) {
+            logi("validateServices() :: cached services are valid, layout = " + layout);
+            firmwareRevision = firmware;
+            negotiateMtu();
+            return;
         }
 
-        return rc;
+        logi("validateServices() :: layout = " + layout + " stored layout = " + storedLayout);
+
+        if(!servicesRefreshed && BluetoothUtils.hasServicesLayout(appContext, deviceAddress)
+                && bleManager.refreshServices()) {
+            servicesRefreshed = true;
+            connectionState = STATE_DISCOVERING;
+            characteristics = null;
+            bleManager.discoverServices(new ConnectionStepCallback(STATE_DISCOVERING));
+            return;
+        }
+
+        firmwareRevision = firmware;
+        BluetoothUtils.updateServicesLayout(appContext, deviceAddress, firmware, layout);
+
+        negotiateMtu();
+    }
+
+    /**
+     * Requests a bigger MTU, so more data can be sent in a single write. If the micro:bit refuses
+     * the request, the default MTU is kept and writes are limited to 20 bytes.
+     */
+    private void negotiateMtu() {
+        connectionState = STATE_MTU;
+        bleManager.requestMtu(PREFERRED_MTU, new ConnectionStepCallback(STATE_MTU));
     }
 
     /**
@@ -1015,63 +1626,99 @@ public class BLEService extends Service {
         return rc;
     }
 
+    /**
+     * Starts connection to the micro:bit. The connection is set up step by step: connect, discover
+     * and validate services, negotiate the MTU, then register notifications. Every step is triggered when the previous one is completed,
+     * so messages sent to the service keep being handled meanwhile.
+     */
     private void startupConnection() {
         logi("startupConnection() bleManager=" + bleManager);
 
-        boolean success = true;
-        int rc = connect();
-        if(rc == ERROR_NONE) {
-            logi("startupConnection() :: connectMaybeInit() == 0");
-            rc = discoverServices();
-            if(rc == ERROR_NONE) {
-
-                logi("startupConnection() :: discoverServices() == 0");
-                if(registerNotifications(true)) {
-                    setNotification(true, 0);
-                } else {
-                    rc = ERROR_UNKNOWN_2;
-                    success = false;
-                }
-            } else {
-                discoverFailed();
-                success = false;
-            }
-        } else {
-            Log.e(TAG, "connect failed");
-            success = false;
-        }
-
-        if(!success) {
-            logi("startupConnection() :: Failed ErrorCode = " + rc);
-            if(bleManager != null) {
-                reset();
-                setNotification(false, rc);
-                Toast.makeText(MBApp.getApp(), R.string.bluetooth_pairing_internal_error, Toast.LENGTH_LONG).show();
-            }
+        if(bleManager == null) {
+            return;
         }
 
-        logi("startupConnection() :: end");
-    }
-
-    private void discoverFailed() {
-        Log.e(TAG, "discover failed");
-        logi("startupConnection() :: discoverServices() != 0");
+        connectionAttempt++;
+        connectionState = STATE_CONNECTING;
+        bleManager.connect(AUTO_RECONNECT, new ConnectionStepCallback(STATE_CONNECTING));
     }
 
     /**
-     * Establishes a connection to a bluetooth device.
+     * Moves the connection state machine on when a connection step is completed.
      *
-     * @return Result code number.
+     * @param step   Callback of the completed step.
+     * @param result Result of the step, see {@link BLEManager#connect(boolean)}.
      */
-    private int connect() {
-        int rc = ERROR_UNKNOWN_1;
+    private void handleConnectionStep(ConnectionStepCallback step, int result) {
+        if(step.attempt != connectionAttempt || step.state != connectionState || bleManager == null) {
+            logi("handleConnectionStep() :: ignoring result of abandoned step " + step.state);
+            return;
+        }
 
+        int rc;
+        switch(step.state) {
+            case STATE_CONNECTING:
+                rc = interpretCode(result, BLEManager.BLE_CONNECTED);
+                if(rc == ERROR_NONE) {
+                    logi("startupConnection() :: connectMaybeInit() == 0");
+                    startDiscovery();
+                } else {
+                    Log.e(TAG, "connect failed");
+                    connectionFailed(rc);
+                }
+                break;
+
+            case STATE_DISCOVERING:
+                rc = interpretCode(result, BLEManager.BLE_SERVICES_DISCOVERED);
+                if(rc != ERROR_NONE) {
+                    discoverFailed();
+                    connectionFailed(rc);
+                    break;
+                }
+
+                logi("startupConnection() :: discoverServices() == 0");
+                resolveCharacteristics();
+                startValidation();
+                break;
+
+            case STATE_VALIDATING:
+                validateServices(getFirmwareRevision(result));
+                break;
+
+            case STATE_MTU:
+                logi("negotiateMtu() :: rc = " + result + " max payload size = " + bleManager.getMaxPayloadSize());
+                registerNotifications();
+                break;
+
+            case STATE_REGISTERING:
+                handleMicrobitRequirement(result);
+                break;
+
+            case STATE_SUBSCRIBING:
+                logi("registerNotifications() : done, rc = " + interpretCode(result));
+                connectionState = STATE_CONNECTED;
+                priorityPolicy.start(bleManager);
+                setNotification(true, ERROR_NONE);
+                flushEvents();
+                break;
+
+            default:
+        }
+    }
+
+    private void connectionFailed(int rc) {
+        logi("startupConnection() :: Failed ErrorCode = " + rc);
+        connectionState = STATE_IDLE;
         if(bleManager != null) {
-            rc = bleManager.connect(AUTO_RECONNECT);
-            rc = interpretCode(rc, BLEManager.BLE_CONNECTED);
+            reset();
+            setNotification(false, rc);
+            Toast.makeText(MBApp.getApp(), R.string.bluetooth_pairing_internal_error, Toast.LENGTH_LONG).show();
         }
+    }
 
-        return rc;
+    private void discoverFailed() {
+        Log.e(TAG, "discover failed");
+        logi("startupConnection() :: discoverServices() != 0");
     }
 
     private List<BluetoothGattService> getServices() {
@@ -111,7 +111,7 @@ public class IPCService extends Service {
             }
             case EventCategories.IPC_BLE_NOTIFICATION_CHARACTERISTIC_CHANGED: {
                 Message message = ServiceUtils.composeBLECharacteristicMessage(intent.getIntExtra(IPCConstants.INTENT_CHARACTERISTIC_MESSAGE, 0));
-                handleMessage(message);
+                sendMessageToService(BLEService.class.getName(), message);
                 break;
             }
             default:
@@ -133,24 +133,12 @@ public class IPCService extends Service {
         }
 
         if(replyToServiceName != null) {
-            ServiceUtils.IMessengerFinder messengerFinder = serviceConnector.getConnection();
-
-            if(messengerFinder != null) {
-                Messenger messenger = messengerFinder.getMessengerForService(replyToServiceName);
-                if(messenger != null) {
-                    Message newMessage = ServiceUtils.copyMessageFromOld(message, ServiceIds.SERVICE_NONE);
-                    newMessage.replyTo = serviceConnector.mClientMessenger;
-                    if(justPaired != 0) {
-                        newMessage.arg2 = justPaired;
-                        justPaired = 0;
-                    }
-                    try {
-                        messenger.send(newMessage);
-                    } catch(RemoteException e) {
-                        Log.e(TAG, e.toString());
-                    }
-                }
+            Message newMessage = ServiceUtils.copyMessageFromOld(message, ServiceIds.SERVICE_NONE);
+            if(justPaired != 0) {
+                newMessage.arg2 = justPaired;
+                justPaired = 0;
             }
+            sendMessageToService(replyToServiceName, newMessage);
         } else {
             if(message.what == IPCConstants.MESSAGE_ANDROID) {
                 Context appContext = getApplicationContext();
@@ -192,6 +180,28 @@ public class IPCService extends Service {
         }
     }
 
+    /**
+     * Sends message to the bound service as is.
+     *
+     * @param serviceName Class name of the service.
+     * @param message     Message to send.
+     */
+    private void sendMessageToService(String serviceName, Message message) {
+        ServiceUtils.IMessengerFinder messengerFinder = serviceConnector.getConnection();
+
+        if(messengerFinder != null) {
+            Messenger messenger = messengerFinder.getMessengerForService(serviceName);
+            if(messenger != null) {
+                message.replyTo = serviceConnector.mClientMessenger;
+                try {
+                    messenger.send(message);
+                } catch(RemoteException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+
     /**
      * Send some reply message to the ipc.
      *
@@ -1,23 +1,31 @@
 package com.samsung.microbit.service;
 
 import android.app.Service;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.samsung.microbit.core.MicroBitEventBus;
+import com.samsung.microbit.core.SharedEventRing;
 import com.samsung.microbit.data.constants.EventCategories;
 import com.samsung.microbit.data.constants.EventSubCodes;
+import com.samsung.microbit.data.constants.GattHandles;
 import com.samsung.microbit.data.constants.IPCConstants;
 import com.samsung.microbit.data.model.CmdArg;
 import com.samsung.microbit.plugin.AbstractPlugin;
 import com.samsung.microbit.plugin.PluginsCreator;
+import com.samsung.microbit.utils.ServiceUtils;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 import static com.samsung.microbit.BuildConfig.DEBUG;
 
@@ -57,24 +65,92 @@ public class PluginService extends Service {
 
     private PluginHandler pluginHandler;
 
+    /**
+     * Categories of micro:bit events last sent to {@link BLEService}, see {@link PluginsCreator#getClientRequirements()}.
+     */
+    private int[] clientRequirements;
+
+    /**
+     * Ring of events coming from {@link BLEService}, see {@link SharedEventRing}.
+     */
+    private SharedEventRing eventRing;
+
+    /**
+     * Set when this service has registered as the ring consumer once. Events left in the ring before are stale.
+     */
+    private boolean eventRingRegistered;
+
+    private final SharedEventRing.Consumer eventRingConsumer = new SharedEventRing.Consumer() {
+        @Override
+        public void onEvent(int eventSrc, int event) {
+            handleMicroBitEvent(eventSrc, new CmdArg(event, "1000"));
+        }
+    };
+
+    /**
+     * Messenger of {@link BLEService}. Events published by presenters are sent
+     * to it directly, without going through {@link IPCService}.
+     */
+    private volatile Messenger bleMessenger;
+
+    private final MicroBitEventBus.Subscriber eventSubscriber = new MicroBitEventBus.Subscriber() {
+        @Override
+        public boolean onEvent(int event) {
+            Messenger messenger = bleMessenger;
+            if(messenger == null) {
+                return false;
+            }
+
+            try {
+                messenger.send(ServiceUtils.composeWriteCharacteristicMessage(GattHandles.ES_CLIENT_EVENT, event));
+                return true;
+            } catch(RemoteException e) {
+                Log.e(TAG, e.toString());
+                return false;
+            }
+        }
+    };
+
+    private final ServiceConnection bleConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            bleMessenger = new Messenger(service);
+            MicroBitEventBus.getInstance().subscribe(eventSubscriber);
+            registerEventRing();
+            clientRequirements = null;
+            updateClientRequirements();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            MicroBitEventBus.getInstance().unsubscribe(eventSubscriber);
+            bleMessenger = null;
+        }
+    };
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        pluginHandler = new PluginHandler(this);
-
         return new Messenger(pluginHandler).getBinder();
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
+        pluginHandler = new PluginHandler(this);
         pluginsCreator = new PluginsCreator();
+        eventRing = SharedEventRing.open(this);
+        // BLEService is created by ServiceConnector, the binding only connects to it and does not keep it alive
+        bindService(new Intent(this, BLEService.class), bleConnection, 0);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         pluginsCreator.destroy();
+        MicroBitEventBus.getInstance().unsubscribe(eventSubscriber);
+        bleMessenger = null;
+        unbindService(bleConnection);
     }
 
     private static void logi(String message) {
@@ -83,6 +159,35 @@ public class PluginService extends Service {
         }
     }
 
+    /**
+     * Registers this service as the ring consumer in {@link BLEService}. Events left in the ring are dropped on the first
+     * registration, as they were written for a previous instance of this service, and read on the later ones.
+     */
+    private void registerEventRing() {
+        Messenger messenger = bleMessenger;
+        if(eventRing == null || messenger == null) {
+            return;
+        }
+
+        if(eventRingRegistered) {
+            eventRing.drain(eventRingConsumer);
+        } else {
+            int dropped = eventRing.skip();
+            if(dropped > 0) {
+                logi("registerEventRing() :: dropped stale events = " + dropped);
+            }
+            eventRingRegistered = true;
+        }
+
+        Message message = Message.obtain(null, IPCConstants.MESSAGE_ANDROID, EventCategories.IPC_REGISTER_EVENT_RING, 0);
+        message.replyTo = new Messenger(pluginHandler);
+        try {
+            messenger.send(message);
+        } catch(RemoteException e) {
+            Log.e(TAG, e.toString());
+        }
+    }
+
     private void handleMessage(Message msg) {
         logi("PluginService :: handleIncomingMessage()");
 
@@ -97,6 +202,35 @@ public class PluginService extends Service {
         }
     }
 
+    /**
+     * Sends categories of micro:bit events plugins are interested in to {@link BLEService}, if they have changed
+     * since the last time. They change only when micro:bit events are handled by plugins, so it is called after
+     * dispatching them.
+     */
+    private void updateClientRequirements() {
+        Messenger messenger = bleMessenger;
+        if(messenger == null) {
+            return;
+        }
+
+        int[] requirements = pluginsCreator.getClientRequirements();
+        if(Arrays.equals(requirements, clientRequirements)) {
+            return;
+        }
+
+        Message message = Message.obtain(null, IPCConstants.MESSAGE_ANDROID, EventCategories
+                .IPC_SET_CLIENT_REQUIREMENTS, 0);
+        Bundle data = new Bundle();
+        data.putIntArray(IPCConstants.BUNDLE_CLIENT_REQUIREMENTS, requirements);
+        message.setData(data);
+        try {
+            messenger.send(message);
+            clientRequirements = requirements;
+        } catch(RemoteException e) {
+            Log.e(TAG, e.toString());
+        }
+    }
+
     /**
      * Handler of incoming messages from BLEListener.
      */
@@ -107,7 +241,12 @@ public class PluginService extends Service {
         logi("handleMicrobitMessage() ## msg.arg1 = " + msg.arg1 + " ## data.getInt=" + data.getInt(IPCConstants
                 .BUNDLE_DATA) + " ## data.getString=" + data.getString(IPCConstants.BUNDLE_VALUE));
 
-        AbstractPlugin abstractPlugin = pluginsCreator.createPlugin(msg.arg1, pluginHandler);
+        handleMicroBitEvent(msg.arg1, cmd);
+        updateClientRequirements();
+    }
+
+    private void handleMicroBitEvent(int eventSrc, CmdArg cmd) {
+        AbstractPlugin abstractPlugin = pluginsCreator.createPlugin(eventSrc, pluginHandler);
 
         if(abstractPlugin != null) {
             abstractPlugin.handleEntry(cmd);
@@ -115,7 +254,12 @@ public class PluginService extends Service {
     }
 
     private void handleAndroidMessage(Message msg) {
-        if(msg.arg1 == EventCategories.IPC_PLUGIN_STOP_PLAYING) {
+        if(msg.arg1 == EventCategories.IPC_EVENT_RING_DOORBELL) {
+            if(eventRing != null) {
+                eventRing.drain(eventRingConsumer);
+                updateClientRequirements();
+            }
+        } else if(msg.arg1 == EventCategories.IPC_PLUGIN_STOP_PLAYING) {
             AbstractPlugin abstractPlugin = pluginsCreator.createPlugin(EventCategories.SAMSUNG_ALERTS_ID,
                     pluginHandler);
 
@@ -1170,6 +1170,8 @@ public class ProjectActivity extends Activity implements View.OnClickListener, B
 
                                 LocalBroadcastManager.getInstance(application).unregisterReceiver(dfuResultReceiver);
                                 dfuResultReceiver = null;
+                                //New program may have other services
+                                BluetoothUtils.invalidateServicesLayout(application);
                                 //Update Stats
                                 GoogleAnalyticsManager.getInstance().sendFlashStats(
                                         ProjectActivity.class.getSimpleName(),
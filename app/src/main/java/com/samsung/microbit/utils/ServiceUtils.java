@@ -7,10 +7,8 @@ import android.os.Message;
 import android.os.Messenger;
 
 import com.samsung.microbit.MBApp;
-import com.samsung.microbit.data.constants.CharacteristicUUIDs;
 import com.samsung.microbit.data.constants.EventCategories;
-import com.samsung.microbit.data.constants.GattFormats;
-import com.samsung.microbit.data.constants.GattServiceUUIDs;
+import com.samsung.microbit.data.constants.GattHandles;
 import com.samsung.microbit.data.constants.IPCConstants;
 import com.samsung.microbit.data.constants.ServiceIds;
 import com.samsung.microbit.data.model.CmdArg;
@@ -89,14 +87,42 @@ public class ServiceUtils {
      * @param value characteristic value for creating final message
      */
     public static Message composeBLECharacteristicMessage(int value) {
-        NameValuePair[] args = new NameValuePair[4];
-        args[0] = new NameValuePair(IPCConstants.BUNDLE_SERVICE_GUID, GattServiceUUIDs.EVENT_SERVICE.toString());
-        args[1] = new NameValuePair(IPCConstants.BUNDLE_CHARACTERISTIC_GUID, CharacteristicUUIDs.ES_CLIENT_EVENT.toString());
-        args[2] = new NameValuePair(IPCConstants.BUNDLE_CHARACTERISTIC_VALUE, value);
-        args[3] = new NameValuePair(IPCConstants.BUNDLE_CHARACTERISTIC_TYPE, GattFormats.FORMAT_UINT32);
-
-        return composeMessage(IPCConstants.MESSAGE_MICROBIT, EventCategories.IPC_WRITE_CHARACTERISTIC,
-                ServiceIds.SERVICE_BLE, null, args);
+        return composeWriteCharacteristicMessage(GattHandles.ES_CLIENT_EVENT, value);
+    }
+
+    /**
+     * Compose binary message for writing a value to the characteristic. Message has no data bundle:
+     * lower 16 bits of {@link Message#arg1} hold {@link EventCategories#IPC_WRITE_CHARACTERISTIC},
+     * upper 16 bits hold the characteristic handle and {@link Message#arg2} holds the value.
+     * Message should be sent to {@link com.samsung.microbit.service.BLEService} directly.
+     *
+     * @param handle Characteristic handle listed in {@link GattHandles}.
+     * @param value  Value to write, its format is defined by the handle.
+     */
+    public static Message composeWriteCharacteristicMessage(int handle, int value) {
+        return Message.obtain(null, IPCConstants.MESSAGE_MICROBIT, EventCategories.IPC_WRITE_CHARACTERISTIC |
+                (handle << 16), value);
+    }
+
+    /**
+     * Returns event category of the message, removing data packed to the upper bits of
+     * {@link Message#arg1}.
+     *
+     * @param message Message to get category from.
+     * @return Event category listed in {@link EventCategories}.
+     */
+    public static int getEventCategory(Message message) {
+        return message.arg1 & 0xFFFF;
+    }
+
+    /**
+     * Returns characteristic handle of the message composed by {@link #composeWriteCharacteristicMessage(int, int)}.
+     *
+     * @param message Message to get handle from.
+     * @return Characteristic handle listed in {@link GattHandles}.
+     */
+    public static int getCharacteristicHandle(Message message) {
+        return message.arg1 >>> 16;
     }
 
     /**
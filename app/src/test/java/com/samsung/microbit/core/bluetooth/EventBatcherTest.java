@@ -0,0 +1,271 @@
+package com.samsung.microbit.core.bluetooth;
+
+import com.samsung.microbit.data.constants.EventCategories;
+import com.samsung.microbit.data.constants.EventSubCodes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventBatcherTest {
+    private static final int SHAKE = event(EventCategories.SAMSUNG_DEVICE_INFO_ID,
+            EventSubCodes.SAMSUNG_DEVICE_GESTURE_DEVICE_SHAKEN);
+    private static final int LANDSCAPE = event(EventCategories.SAMSUNG_DEVICE_INFO_ID,
+            EventSubCodes.SAMSUNG_DEVICE_ORIENTATION_LANDSCAPE);
+    private static final int PORTRAIT = event(EventCategories.SAMSUNG_DEVICE_INFO_ID,
+            EventSubCodes.SAMSUNG_DEVICE_ORIENTATION_PORTRAIT);
+    private static final int ONE_BAR = event(EventCategories.SAMSUNG_SIGNAL_STRENGTH_ID,
+            EventSubCodes.SAMSUNG_SIGNAL_STRENGTH_EVT_ONE_BAR);
+    private static final int TWO_BARS = event(EventCategories.SAMSUNG_SIGNAL_STRENGTH_ID,
+            EventSubCodes.SAMSUNG_SIGNAL_STRENGTH_EVT_TWO_BAR);
+    private static final int INCOMING_CALL = event(EventCategories.SAMSUNG_DEVICE_INFO_ID,
+            EventSubCodes.SAMSUNG_INCOMING_CALL);
+
+    private EventBatcher batcher;
+
+    /**
+     * Controlled clock of the tested batcher, in milliseconds.
+     */
+    private long now = 1000;
+
+    @Before
+    public void setUp() {
+        batcher = new EventBatcher() {
+            @Override
+            long elapsedRealtime() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void encodesEventAsLittleEndian() {
+        byte[] payload = new byte[EventBatcher.EVENT_SIZE];
+
+        EventBatcher.putEvent(payload, 0, 0x12345678);
+
+        assertArrayEquals(new byte[]{0x78, 0x56, 0x34, 0x12}, payload);
+    }
+
+    @Test
+    public void reportsEmptyBatchOnce() {
+        assertTrue(batcher.add(SHAKE));
+        assertFalse(batcher.add(ONE_BAR));
+    }
+
+    @Test
+    public void pollsOneEventPerWrite() {
+        batcher.add(SHAKE);
+        batcher.add(ONE_BAR);
+
+        assertArrayEquals(payload(SHAKE), batcher.poll());
+        assertArrayEquals(payload(ONE_BAR), batcher.poll());
+        assertNull(batcher.poll());
+    }
+
+    @Test
+    public void coalescesPendingState() {
+        batcher.add(ONE_BAR);
+        batcher.add(LANDSCAPE);
+        batcher.add(TWO_BARS);
+        batcher.add(PORTRAIT);
+
+        assertArrayEquals(payload(TWO_BARS), batcher.poll());
+        assertArrayEquals(payload(PORTRAIT), batcher.poll());
+        assertNull(batcher.poll());
+    }
+
+    @Test
+    public void keepsEveryNotStateEvent() {
+        batcher.add(SHAKE);
+        batcher.add(SHAKE);
+
+        assertArrayEquals(payload(SHAKE), batcher.poll());
+        assertArrayEquals(payload(SHAKE), batcher.poll());
+    }
+
+    @Test
+    public void dropsOldestWhenFull() {
+        batcher.add(ONE_BAR);
+        for(int i = 0; i < EventBatcher.MAX_PENDING_EVENTS; i++) {
+            batcher.add(SHAKE);
+        }
+
+        assertEquals(1, batcher.getDroppedEvents());
+        assertArrayEquals(payload(SHAKE), batcher.poll());
+    }
+
+    @Test
+    public void forgetsWrittenEvent() {
+        batcher.add(SHAKE);
+        byte[] payload = batcher.poll();
+
+        assertFalse(batcher.onWriteCompleted(payload, true, false));
+        assertNull(batcher.poll());
+        assertEquals(0, batcher.getDroppedEvents());
+    }
+
+    @Test
+    public void putsBackRetryableFailure() {
+        batcher.add(SHAKE);
+        batcher.add(ONE_BAR);
+        byte[] payload = batcher.poll();
+
+        assertFalse(batcher.onWriteCompleted(payload, false, true));
+
+        assertArrayEquals(payload(SHAKE), batcher.poll());
+        assertArrayEquals(payload(ONE_BAR), batcher.poll());
+    }
+
+    @Test
+    public void reportsPutBackToEmptyBatch() {
+        batcher.add(SHAKE);
+        byte[] payload = batcher.poll();
+
+        assertTrue(batcher.onWriteCompleted(payload, false, true));
+    }
+
+    @Test
+    public void dropsPermanentFailure() {
+        batcher.add(SHAKE);
+        byte[] payload = batcher.poll();
+
+        assertFalse(batcher.onWriteCompleted(payload, false, false));
+
+        assertNull(batcher.poll());
+        assertEquals(1, batcher.getDroppedEvents());
+    }
+
+    @Test
+    public void dropsEventAfterMaxAttempts() {
+        batcher.add(SHAKE);
+
+        for(int i = 0; i < 2; i++) {
+            assertTrue(batcher.onWriteCompleted(batcher.poll(), false, true));
+        }
+        assertFalse(batcher.onWriteCompleted(batcher.poll(), false, true));
+
+        assertNull(batcher.poll());
+        assertEquals(1, batcher.getDroppedEvents());
+    }
+
+    @Test
+    public void dropsFailedStateReplacedMeanwhile() {
+        batcher.add(ONE_BAR);
+        byte[] payload = batcher.poll();
+        batcher.add(TWO_BARS);
+
+        assertFalse(batcher.onWriteCompleted(payload, false, true));
+
+        assertArrayEquals(payload(TWO_BARS), batcher.poll());
+        assertNull(batcher.poll());
+    }
+
+    @Test
+    public void ignoresWriteOfClearedEvent() {
+        batcher.add(SHAKE);
+        byte[] payload = batcher.poll();
+        batcher.clear();
+
+        assertFalse(batcher.onWriteCompleted(payload, false, true));
+        assertNull(batcher.poll());
+    }
+
+    @Test
+    public void countsReplayedEvents() {
+        batcher.add(SHAKE);
+        batcher.add(ONE_BAR);
+        batcher.hold();
+
+        batcher.onWriteCompleted(batcher.poll(), false, true);
+        batcher.poll();
+        batcher.poll();
+
+        assertEquals(2, batcher.getReplayedEvents());
+    }
+
+    @Test
+    public void clearCountsDroppedEvents() {
+        batcher.add(SHAKE);
+        batcher.add(ONE_BAR);
+
+        batcher.clear();
+
+        assertEquals(2, batcher.getDroppedEvents());
+        assertNull(batcher.poll());
+    }
+
+    @Test
+    public void expiresEventAfterTimeToLive() {
+        batcher.add(SHAKE);
+        now += 4999;
+        assertArrayEquals(payload(SHAKE), batcher.poll());
+
+        batcher.add(SHAKE);
+        now += 5000;
+        assertNull(batcher.poll());
+        assertEquals(1, batcher.getDroppedEvents());
+    }
+
+    @Test
+    public void keepsStateLongerThanEvent() {
+        batcher.add(SHAKE);
+        batcher.add(ONE_BAR);
+        now += 30000;
+
+        assertArrayEquals(payload(ONE_BAR), batcher.poll());
+        assertNull(batcher.poll());
+        assertEquals(1, batcher.getDroppedEvents());
+    }
+
+    @Test
+    public void keepsIncomingCallLongerThanEvent() {
+        batcher.add(INCOMING_CALL);
+        now += 29999;
+        assertArrayEquals(payload(INCOMING_CALL), batcher.poll());
+
+        batcher.add(INCOMING_CALL);
+        now += 30000;
+        assertNull(batcher.poll());
+    }
+
+    @Test
+    public void holdDropsExpiredEvents() {
+        batcher.add(SHAKE);
+        batcher.add(ONE_BAR);
+        now += 5000;
+
+        batcher.hold();
+
+        assertEquals(1, batcher.getDroppedEvents());
+        assertArrayEquals(payload(ONE_BAR), batcher.poll());
+        assertEquals(1, batcher.getReplayedEvents());
+    }
+
+    @Test
+    public void dropsExpiredFailedEvent() {
+        batcher.add(SHAKE);
+        byte[] payload = batcher.poll();
+        now += 5000;
+
+        assertFalse(batcher.onWriteCompleted(payload, false, true));
+
+        assertNull(batcher.poll());
+        assertEquals(1, batcher.getDroppedEvents());
+    }
+
+    private static int event(int category, int subCode) {
+        return category | (subCode << 16);
+    }
+
+    private static byte[] payload(int event) {
+        byte[] payload = new byte[EventBatcher.EVENT_SIZE];
+        EventBatcher.putEvent(payload, 0, event);
+        return payload;
+    }
+}
@@ -0,0 +1,105 @@
+package com.samsung.microbit.core.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class GattLatencyTrackerTest {
+    private static final long CEILING = 10000;
+
+    private GattLatencyTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new GattLatencyTracker();
+    }
+
+    @Test
+    public void usesCeilingUntilEnoughSamples() {
+        addSamples(BLEManager.OP_WRITE_CHARACTERISTIC, 7, 100);
+
+        assertEquals(-1, tracker.getPercentile(BLEManager.OP_WRITE_CHARACTERISTIC));
+        assertEquals(CEILING, tracker.getTimeout(BLEManager.OP_WRITE_CHARACTERISTIC, CEILING));
+    }
+
+    @Test
+    public void derivesTimeoutFromPercentile() {
+        addSamples(BLEManager.OP_WRITE_CHARACTERISTIC, 8, 1000);
+
+        assertEquals(1000, tracker.getPercentile(BLEManager.OP_WRITE_CHARACTERISTIC));
+        assertEquals(3000, tracker.getTimeout(BLEManager.OP_WRITE_CHARACTERISTIC, CEILING));
+    }
+
+    @Test
+    public void takesNinetyFifthPercentile() {
+        for(int i = 1; i <= 20; i++) {
+            tracker.addSample(BLEManager.OP_READ_CHARACTERISTIC, i * 10);
+        }
+
+        assertEquals(190, tracker.getPercentile(BLEManager.OP_READ_CHARACTERISTIC));
+    }
+
+    @Test
+    public void keepsOnlyRecentSamples() {
+        addSamples(BLEManager.OP_READ_CHARACTERISTIC, 32, 5000);
+        addSamples(BLEManager.OP_READ_CHARACTERISTIC, 32, 100);
+
+        assertEquals(100, tracker.getPercentile(BLEManager.OP_READ_CHARACTERISTIC));
+    }
+
+    @Test
+    public void appliesMinimumTimeout() {
+        addSamples(BLEManager.OP_WRITE_CHARACTERISTIC, 8, 10);
+        addSamples(BLEManager.OP_CONNECT, 8, 10);
+
+        assertEquals(1500, tracker.getTimeout(BLEManager.OP_WRITE_CHARACTERISTIC, CEILING));
+        assertEquals(3000, tracker.getTimeout(BLEManager.OP_CONNECT, CEILING));
+    }
+
+    @Test
+    public void appliesCeiling() {
+        addSamples(BLEManager.OP_WRITE_CHARACTERISTIC, 8, 5000);
+
+        assertEquals(CEILING, tracker.getTimeout(BLEManager.OP_WRITE_CHARACTERISTIC, CEILING));
+    }
+
+    @Test
+    public void timeoutForgetsSamplesOfItsType() {
+        addSamples(BLEManager.OP_WRITE_CHARACTERISTIC, 8, 1000);
+        addSamples(BLEManager.OP_READ_CHARACTERISTIC, 8, 1000);
+
+        tracker.onTimeout(BLEManager.OP_WRITE_CHARACTERISTIC);
+
+        assertEquals(1, tracker.getTimeoutCount(BLEManager.OP_WRITE_CHARACTERISTIC));
+        assertEquals(CEILING, tracker.getTimeout(BLEManager.OP_WRITE_CHARACTERISTIC, CEILING));
+        assertEquals(3000, tracker.getTimeout(BLEManager.OP_READ_CHARACTERISTIC, CEILING));
+    }
+
+    @Test
+    public void clearForgetsAllSamples() {
+        addSamples(BLEManager.OP_WRITE_CHARACTERISTIC, 8, 1000);
+        addSamples(BLEManager.OP_READ_CHARACTERISTIC, 8, 1000);
+
+        tracker.clear();
+
+        assertEquals(-1, tracker.getPercentile(BLEManager.OP_WRITE_CHARACTERISTIC));
+        assertEquals(-1, tracker.getPercentile(BLEManager.OP_READ_CHARACTERISTIC));
+    }
+
+    @Test
+    public void ignoresInvalidType() {
+        addSamples(-1, 8, 1000);
+        tracker.onTimeout(-1);
+
+        assertEquals(-1, tracker.getPercentile(-1));
+        assertEquals(0, tracker.getTimeoutCount(-1));
+        assertEquals(CEILING, tracker.getTimeout(-1, CEILING));
+    }
+
+    private void addSamples(int type, int count, long latency) {
+        for(int i = 0; i < count; i++) {
+            tracker.addSample(type, latency);
+        }
+    }
+}
@@ -24,13 +24,16 @@ package no.nordicsemi.android.dfu;
 
 import com.google.gson.Gson;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import no.nordicsemi.android.dfu.manifest.FileInfo;
@@ -43,8 +46,11 @@ import no.nordicsemi.android.dfu.manifest.SoftDeviceBootloaderFileInfo;
  * or follow the backward compatibility syntax: must contain only files with names: application.hex/bin, softdevice.hex/dat or bootloader.hex/bin, optionally also application.dat
  * and/or system.dat with init packets.</p>
  * <p>The ArchiveInputStream will read only files with types specified by <b>types</b> parameter of the constructor.</p>
+ * <p>When created from a {@link File} the archive is read in the streaming mode: the central directory is used to find the manifest and the images, and only
+ * the image that is being sent is read. The size of a HEX image is counted when it is found, without keeping its content, and the image is converted
+ * to BIN only when it is being sent. Otherwise all files are read into memory when the stream is created.</p>
  */
-public class ArchiveInputStream extends ZipInputStream {
+public class ArchiveInputStream extends ZipInputStream implements ImageSource {
 	/** The name of the manifest file is fixed. */
 	private static final String MANIFEST = "manifest.json";
 	// Those file names are for backwards compatibility mode
@@ -57,22 +63,27 @@ public class ArchiveInputStream extends ZipInputStream {
 	private static final String SYSTEM_INIT = "system.dat";
 	private static final String APPLICATION_INIT = "application.dat";
 
-	/** Contains bytes arrays with BIN files. HEX files are converted to BIN before being added to this map. */
+	/** Contains bytes arrays with BIN files. HEX files are converted to BIN before being added to this map. Not used in the streaming mode. */
 	private Map<String, byte[]> entries;
+	/** The ZIP file in the streaming mode, <code>null</code> otherwise. */
+	private ZipFile zipFile;
+	private final int mbrSize;
 	private Manifest manifest;
 
-	private byte[] applicationBytes;
-	private byte[] softDeviceBytes;
-	private byte[] bootloaderBytes;
-	private byte[] softDeviceAndBootloaderBytes;
+	private Image applicationImage;
+	private Image softDeviceImage;
+	private Image bootloaderImage;
+	private Image softDeviceAndBootloaderImage;
 	private byte[] systemInitBytes;
 	private byte[] applicationInitBytes;
-	private byte[] currentSource;
+	private Image currentSource;
+	private InputStream currentStream;
 	private int bytesReadFromCurrentSource;
 	private int softDeviceSize;
 	private int bootloaderSize;
 	private int applicationSize;
 	private int bytesRead;
+	private final PacketPool pool = new PacketPool();
 
 	/**
 	 * <p>
@@ -103,6 +114,7 @@ public class ArchiveInputStream extends ZipInputStream {
 		super(stream);
 
 		this.entries = new HashMap<>();
+		this.mbrSize = mbrSize;
 		this.bytesRead = 0;
 		this.bytesReadFromCurrentSource = 0;
 
@@ -112,142 +124,263 @@ public class ArchiveInputStream extends ZipInputStream {
 			 * The 'manifest.json' file, if exists, is converted to the manifestData String.
 			 */
 			parseZip(mbrSize);
+			selectImages(types);
+		} finally {
+			super.close();
+		}
+	}
 
-			/*
-			 * Let's read and parse the 'manifest.json' file.
-			 */
-			if (manifest != null) {
-				boolean valid = false;
+	/**
+	 * Creates the ArchiveInputStream in the streaming mode. The central directory of the ZIP file is used to read the 'manifest.json' file first
+	 * and to find the images, which are read and converted to BIN one at a time, when they are being sent. See
+	 * {@link #ArchiveInputStream(InputStream, int, int)} for the parameters.
+	 *
+	 * @param file
+	 *            the ZIP file
+	 * @param mbrSize
+	 *            The size of the MRB segment (Master Boot Record) on the device. The parser will cut data from addresses below that number from all HEX files.
+	 * @param types
+	 *            File types that are to be read from the ZIP. Use {@link DfuBaseService#TYPE_APPLICATION} etc.
+	 * @throws java.io.IOException
+	 */
+	public ArchiveInputStream(final File file, final int mbrSize, final int types) throws IOException {
+		super(new ByteArrayInputStream(new byte[0])); // the content is read using the ZipFile
 
-				// Read the application
-				if (manifest.getApplicationInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0)) {
-					final FileInfo application = manifest.getApplicationInfo();
-					applicationBytes = entries.get(application.getBinFileName());
-					applicationInitBytes = entries.get(application.getDatFileName());
+		this.zipFile = new ZipFile(file);
+		this.mbrSize = mbrSize;
+		this.bytesRead = 0;
+		this.bytesReadFromCurrentSource = 0;
 
-					if (applicationBytes == null)
-						throw new IOException("Application file " + application.getBinFileName() + " not found.");
+		try {
+			final byte[] manifestData = readEntry(MANIFEST);
+			if (manifestData != null) {
+				final ManifestFile manifestFile = new Gson().fromJson(new String(manifestData, "UTF-8"), ManifestFile.class);
+				manifest = manifestFile.getManifest();
+			}
+			selectImages(types);
+		} catch (final IOException e) {
+			zipFile.close();
+			throw e;
+		} catch (final RuntimeException e) {
+			zipFile.close();
+			throw e;
+		}
+	}
 
-					applicationSize = applicationBytes.length;
-					currentSource = applicationBytes;
-					valid = true;
-				}
+	/**
+	 * Selects the images to be sent, based on the manifest or, if there is no manifest, on the file names.
+	 *
+	 * @param types
+	 *            File types that are to be read from the ZIP
+	 * @throws java.io.IOException
+	 *             if the archive does not contain the required files
+	 */
+	private void selectImages(final int types) throws IOException {
+		/*
+		 * Let's read and parse the 'manifest.json' file.
+		 */
+		if (manifest != null) {
+			boolean valid = false;
+
+			// Read the application
+			if (manifest.getApplicationInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0)) {
+				final FileInfo application = manifest.getApplicationInfo();
+				applicationImage = findImage(application.getBinFileName());
+				applicationInitBytes = readEntry(application.getDatFileName());
+
+				if (applicationImage == null)
+					throw new IOException("Application file " + application.getBinFileName() + " not found.");
+
+				applicationSize = applicationImage.size;
+				currentSource = applicationImage;
+				valid = true;
+			}
 
-				// Read the Bootloader
-				if (manifest.getBootloaderInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_BOOTLOADER) > 0)) {
-					if (systemInitBytes != null)
-						throw new IOException("Manifest: softdevice and bootloader specified. Use softdevice_bootloader instead.");
+			// Read the Bootloader
+			if (manifest.getBootloaderInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_BOOTLOADER) > 0)) {
+				if (systemInitBytes != null)
+					throw new IOException("Manifest: softdevice and bootloader specified. Use softdevice_bootloader instead.");
 
-					final FileInfo bootloader = manifest.getBootloaderInfo();
-					bootloaderBytes = entries.get(bootloader.getBinFileName());
-					systemInitBytes = entries.get(bootloader.getDatFileName());
+				final FileInfo bootloader = manifest.getBootloaderInfo();
+				bootloaderImage = findImage(bootloader.getBinFileName());
+				systemInitBytes = readEntry(bootloader.getDatFileName());
 
-					if (bootloaderBytes == null)
-						throw new IOException("Bootloader file " + bootloader.getBinFileName() + " not found.");
+				if (bootloaderImage == null)
+					throw new IOException("Bootloader file " + bootloader.getBinFileName() + " not found.");
 
-					bootloaderSize = bootloaderBytes.length;
-					currentSource = bootloaderBytes;
-					valid = true;
-				}
+				bootloaderSize = bootloaderImage.size;
+				currentSource = bootloaderImage;
+				valid = true;
+			}
 
-				// Read the Soft Device
-				if (manifest.getSoftdeviceInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0)) {
-					final FileInfo softdevice = manifest.getSoftdeviceInfo();
-					softDeviceBytes = entries.get(softdevice.getBinFileName());
-					systemInitBytes = entries.get(softdevice.getDatFileName());
+			// Read the Soft Device
+			if (manifest.getSoftdeviceInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0)) {
+				final FileInfo softdevice = manifest.getSoftdeviceInfo();
+				softDeviceImage = findImage(softdevice.getBinFileName());
+				systemInitBytes = readEntry(softdevice.getDatFileName());
 
-					if (softDeviceBytes == null)
-						throw new IOException("SoftDevice file " + softdevice.getBinFileName() + " not found.");
+				if (softDeviceImage == null)
+					throw new IOException("SoftDevice file " + softdevice.getBinFileName() + " not found.");
 
-					softDeviceSize = softDeviceBytes.length;
-					currentSource = softDeviceBytes;
-					valid = true;
-				}
+				softDeviceSize = softDeviceImage.size;
+				currentSource = softDeviceImage;
+				valid = true;
+			}
+
+			// Read the combined Soft Device and Bootloader
+			if (manifest.getSoftdeviceBootloaderInfo() != null && (types == DfuBaseService.TYPE_AUTO ||
+					((types & DfuBaseService.TYPE_SOFT_DEVICE) > 0) && (types & DfuBaseService.TYPE_BOOTLOADER) > 0)) {
 
-				// Read the combined Soft Device and Bootloader
-				if (manifest.getSoftdeviceBootloaderInfo() != null && (types == DfuBaseService.TYPE_AUTO ||
-						((types & DfuBaseService.TYPE_SOFT_DEVICE) > 0) && (types & DfuBaseService.TYPE_BOOTLOADER) > 0)) {
+				if (systemInitBytes != null)
+					throw new IOException("Manifest: The softdevice_bootloader may not be used together with softdevice or bootloader.");
 
-					if (systemInitBytes != null)
-						throw new IOException("Manifest: The softdevice_bootloader may not be used together with softdevice or bootloader.");
+				final SoftDeviceBootloaderFileInfo system = manifest.getSoftdeviceBootloaderInfo();
+				softDeviceAndBootloaderImage = findImage(system.getBinFileName());
+				systemInitBytes = readEntry(system.getDatFileName());
 
-					final SoftDeviceBootloaderFileInfo system = manifest.getSoftdeviceBootloaderInfo();
-					softDeviceAndBootloaderBytes = entries.get(system.getBinFileName());
-					systemInitBytes = entries.get(system.getDatFileName());
+				if (softDeviceAndBootloaderImage == null)
+					throw new IOException("File " + system.getBinFileName() + " not found.");
 
-					if (softDeviceAndBootloaderBytes == null)
-						throw new IOException("File " + system.getBinFileName() + " not found.");
+				softDeviceSize = system.getSoftdeviceSize();
+				bootloaderSize = system.getBootloaderSize();
+				currentSource = softDeviceAndBootloaderImage;
+				valid = true;
+			}
 
-					softDeviceSize = system.getSoftdeviceSize();
-					bootloaderSize = system.getBootloaderSize();
-					currentSource = softDeviceAndBootloaderBytes;
+			if (!valid) {
+				throw new IOException("Manifest file must specify at least one file.");
+			}
+		} else {
+			/*
+			 * Compatibility mode. The 'manifest.json' file does not exist.
+			 *
+			 * In that case the ZIP file must contain one or more of the following files:
+			 *
+			 * - application.hex/dat
+			 *     + application.dat
+			 * - softdevice.hex/dat
+			 * - bootloader.hex/dat
+			 *     + system.dat
+			 */
+			boolean valid = false;
+			// Search for the application
+			if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0) {
+				applicationImage = findImage(APPLICATION_HEX); // the entry bytes has already been converted to BIN, just the name remained.
+				if (applicationImage == null)
+					applicationImage = findImage(APPLICATION_BIN);
+
+				if (applicationImage != null) {
+					applicationSize = applicationImage.size;
+					applicationInitBytes = readEntry(APPLICATION_INIT);
+					currentSource = applicationImage;
 					valid = true;
 				}
+			}
 
-				if (!valid) {
-					throw new IOException("Manifest file must specify at least one file.");
-				}
-			} else {
-				/*
-				 * Compatibility mode. The 'manifest.json' file does not exist.
-				 *
-				 * In that case the ZIP file must contain one or more of the following files:
-				 *
-				 * - application.hex/dat
-				 *     + application.dat
-				 * - softdevice.hex/dat
-				 * - bootloader.hex/dat
-				 *     + system.dat
-				 */
-				boolean valid = false;
-				// Search for the application
-				if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0) {
-					applicationBytes = entries.get(APPLICATION_HEX); // the entry bytes has already been converted to BIN, just the name remained.
-					if (applicationBytes == null)
-						applicationBytes = entries.get(APPLICATION_BIN);
-
-					if (applicationBytes != null) {
-						applicationSize = applicationBytes.length;
-						applicationInitBytes = entries.get(APPLICATION_INIT);
-						currentSource = applicationBytes;
-						valid = true;
-					}
-				}
+			// Search for theBootloader
+			if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_BOOTLOADER) > 0) {
+				bootloaderImage = findImage(BOOTLOADER_HEX); // the entry bytes has already been converted to BIN, just the name remained.
+				if (bootloaderImage == null)
+					bootloaderImage = findImage(BOOTLOADER_BIN);
 
-				// Search for theBootloader
-				if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_BOOTLOADER) > 0) {
-					bootloaderBytes = entries.get(BOOTLOADER_HEX); // the entry bytes has already been converted to BIN, just the name remained.
-					if (bootloaderBytes == null)
-						bootloaderBytes = entries.get(BOOTLOADER_BIN);
-
-					if (bootloaderBytes != null) {
-						bootloaderSize = bootloaderBytes.length;
-						systemInitBytes = entries.get(SYSTEM_INIT);
-						currentSource = bootloaderBytes;
-						valid = true;
-					}
+				if (bootloaderImage != null) {
+					bootloaderSize = bootloaderImage.size;
+					systemInitBytes = readEntry(SYSTEM_INIT);
+					currentSource = bootloaderImage;
+					valid = true;
 				}
+			}
 
-				// Search for the Soft Device
-				if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0) {
-					softDeviceBytes = entries.get(SOFTDEVICE_HEX); // the entry bytes has already been converted to BIN, just the name remained.
-					if (softDeviceBytes == null)
-						softDeviceBytes = entries.get(SOFTDEVICE_BIN);
-
-					if (softDeviceBytes != null) {
-						softDeviceSize = softDeviceBytes.length;
-						systemInitBytes = entries.get(SYSTEM_INIT);
-						currentSource = softDeviceBytes;
-						valid = true;
-					}
-				}
+			// Search for the Soft Device
+			if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0) {
+				softDeviceImage = findImage(SOFTDEVICE_HEX); // the entry bytes has already been converted to BIN, just the name remained.
+				if (softDeviceImage == null)
+					softDeviceImage = findImage(SOFTDEVICE_BIN);
 
-				if (!valid) {
-					throw new IOException("The ZIP file must contain an Application, a Soft Device and/or a Bootloader.");
+				if (softDeviceImage != null) {
+					softDeviceSize = softDeviceImage.size;
+					systemInitBytes = readEntry(SYSTEM_INIT);
+					currentSource = softDeviceImage;
+					valid = true;
 				}
 			}
+
+			if (!valid) {
+				throw new IOException("The ZIP file must contain an Application, a Soft Device and/or a Bootloader.");
+			}
+		}
+	}
+
+	/**
+	 * Returns the image with the given name or <code>null</code> if there is no such file in the archive. In the streaming mode the BIN size of a HEX file
+	 * is counted here, the content is decoded again by {@link #openImage(Image)}.
+	 */
+	private Image findImage(final String name) throws IOException {
+		if (zipFile == null) {
+			final byte[] bytes = entries.get(name);
+			return bytes != null ? new Image(name, bytes.length, bytes) : null;
+		}
+
+		final ZipEntry entry = zipFile.getEntry(name);
+		if (entry == null)
+			return null;
+
+		if (name.toLowerCase(Locale.US).endsWith("hex")) {
+			final InputStream entryStream = zipFile.getInputStream(entry);
+			try {
+				return new Image(name, HexInputStream.calculateBinSize(entryStream, mbrSize), null);
+			} finally {
+				entryStream.close();
+			}
+		}
+
+		if (entry.getSize() < 0 || entry.getSize() > Integer.MAX_VALUE)
+			throw new IOException("Invalid size of " + name);
+		return new Image(name, (int) entry.getSize(), null);
+	}
+
+	/**
+	 * Returns the content of a small file from the archive, f.e. an init packet, or <code>null</code> if there is no such file.
+	 */
+	private byte[] readEntry(final String name) throws IOException {
+		if (name == null)
+			return null;
+		if (zipFile == null)
+			return entries.get(name);
+
+		final ZipEntry entry = zipFile.getEntry(name);
+		if (entry == null)
+			return null;
+
+		final InputStream is = zipFile.getInputStream(entry);
+		try {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1024];
+			int count;
+			while ((count = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, count);
+			}
+			return baos.toByteArray();
 		} finally {
-			super.close();
+			is.close();
+		}
+	}
+
+	/**
+	 * Opens the stream with the BIN content of the image. In the streaming mode the file is read from the ZIP file now and a HEX file is converted to BIN.
+	 */
+	private InputStream openImage(final Image image) throws IOException {
+		if (zipFile == null)
+			return new ByteArrayInputStream(image.bytes);
+
+		final InputStream is = zipFile.getInputStream(zipFile.getEntry(image.name));
+		if (!image.name.toLowerCase(Locale.US).endsWith("hex"))
+			return is;
+
+		try {
+			return new HexInputStream(is, mbrSize);
+		} finally {
+			is.close();
 		}
 	}
 
@@ -269,13 +402,29 @@ public class ArchiveInputStream extends ZipInputStream {
 		while ((ze = getNextEntry()) != null) {
 			final String filename = ze.getName();
 
-			// Read file content to byte array
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			int count;
-			while ((count = super.read(buffer)) != -1) {
-				baos.write(buffer, 0, count);
+			// Read file content to byte array. When the entry size is known the content is read directly into an array of that size.
+			byte[] source;
+			final long entrySize = ze.getSize();
+			if (entrySize >= 0 && entrySize <= Integer.MAX_VALUE) {
+				source = new byte[(int) entrySize];
+				int offset = 0;
+				int count;
+				while (offset < source.length && (count = super.read(source, offset, source.length - offset)) != -1) {
+					offset += count;
+				}
+				if (offset < source.length)
+					throw new IOException("Unexpected end of ZIP entry " + filename);
+				// Read up to the end of the entry, so closing it does not depend on read(byte[], int, int) of this class
+				if (super.read(buffer, 0, buffer.length) != -1)
+					throw new IOException("ZIP entry " + filename + " is longer than its size");
+			} else {
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				int count;
+				while ((count = super.read(buffer, 0, buffer.length)) != -1) {
+					baos.write(buffer, 0, count);
+				}
+				source = baos.toByteArray();
 			}
-			byte[] source = baos.toByteArray();
 
 			// In case of HEX file convert it to BIN
 			if (filename.toLowerCase(Locale.US).endsWith("hex")) {
@@ -300,38 +449,75 @@ public class ArchiveInputStream extends ZipInputStream {
 
 	@Override
 	public void close() throws IOException {
-		softDeviceBytes = null;
-		bootloaderBytes = null;
-		softDeviceBytes = null;
-		softDeviceAndBootloaderBytes = null;
+		applicationImage = null;
+		softDeviceImage = null;
+		bootloaderImage = null;
+		softDeviceAndBootloaderImage = null;
 		softDeviceSize = bootloaderSize = applicationSize = 0;
+		closeCurrentStream();
 		currentSource = null;
 		bytesRead = bytesReadFromCurrentSource = 0;
+		if (zipFile != null)
+			zipFile.close();
 		super.close();
 	}
 
 	@Override
 	public int read(final byte[] buffer) throws IOException {
-		int maxSize = currentSource.length - bytesReadFromCurrentSource;
-		int size = buffer.length <= maxSize ? buffer.length : maxSize;
-		System.arraycopy(currentSource, bytesReadFromCurrentSource, buffer, 0, size);
-		bytesReadFromCurrentSource += size;
-		if (buffer.length > size) {
-			if (startNextFile() == null) {
-				bytesRead += size;
-				return size;
-			}
+		return readImages(buffer, 0, buffer.length);
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+		final int size = readImages(buffer, offset, count);
+		if (size == 0 && count > 0)
+			return -1;
+		return size;
+	}
 
-			maxSize = currentSource.length;
-			final int nextSize = buffer.length - size <= maxSize ? buffer.length - size : maxSize;
-			System.arraycopy(currentSource, 0, buffer, size, nextSize);
-			bytesReadFromCurrentSource += nextSize;
-			size += nextSize;
+	/**
+	 * Reads the BIN content of the selected images, one after another.
+	 *
+	 * @return the number of bytes read, 0 if all images have been read
+	 */
+	private int readImages(final byte[] buffer, final int offset, final int count) throws IOException {
+		int size = 0;
+		while (size < count && currentSource != null) {
+			if (currentStream == null)
+				currentStream = openImage(currentSource);
+
+			final int read = currentStream.read(buffer, offset + size, Math.min(count - size, currentSource.size - bytesReadFromCurrentSource));
+			if (read < 0)
+				throw new IOException("Unexpected end of " + currentSource.name);
+			bytesReadFromCurrentSource += read;
+			size += read;
+
+			if (bytesReadFromCurrentSource == currentSource.size)
+				startNextFile();
 		}
 		bytesRead += size;
 		return size;
 	}
 
+	@Override
+	public byte[] nextPacket(final int maxSize) throws IOException {
+		final int size = Math.min(maxSize, available());
+		if (size == 0)
+			return null;
+
+		final byte[] packet = pool.obtain(size);
+		read(packet);
+		return packet;
+	}
+
+	/**
+	 * Returns <code>true</code> if all images have been read into memory. In the streaming mode images are inflated and decoded while being sent.
+	 */
+	@Override
+	public boolean isRandomAccess() {
+		return zipFile == null;
+	}
+
 	/**
 	 * Returns the manifest object if it was specified in the ZIP file.
 	 * @return the manifest object
@@ -374,23 +560,23 @@ public class ArchiveInputStream extends ZipInputStream {
 		final int t = getContentType() & type;
 
 		if ((t & DfuBaseService.TYPE_SOFT_DEVICE) == 0) {
-			softDeviceBytes = null;
-			if (softDeviceAndBootloaderBytes != null) {
-				softDeviceAndBootloaderBytes = null;
+			softDeviceImage = null;
+			if (softDeviceAndBootloaderImage != null) {
+				softDeviceAndBootloaderImage = null;
 				bootloaderSize = 0;
 			}
 			softDeviceSize = 0;
 		}
 		if ((t & DfuBaseService.TYPE_BOOTLOADER) == 0) {
-			bootloaderBytes = null;
-			if (softDeviceAndBootloaderBytes != null) {
-				softDeviceAndBootloaderBytes = null;
+			bootloaderImage = null;
+			if (softDeviceAndBootloaderImage != null) {
+				softDeviceAndBootloaderImage = null;
 				softDeviceSize = 0;
 			}
 			bootloaderSize = 0;
 		}
 		if ((t & DfuBaseService.TYPE_APPLICATION) == 0) {
-			applicationBytes = null;
+			applicationImage = null;
 			applicationSize = 0;
 		}
 		return t;
@@ -401,12 +587,14 @@ public class ArchiveInputStream extends ZipInputStream {
 	 * 
 	 * @return the new source, the same as {@link #currentSource}
 	 */
-	private byte[] startNextFile() {
-		byte[] ret;
-		if (currentSource == softDeviceBytes && bootloaderBytes != null) {
-			ret = currentSource = bootloaderBytes;
-		} else if (currentSource != applicationBytes && applicationBytes != null) {
-			ret = currentSource = applicationBytes;
+	private Image startNextFile() {
+		closeCurrentStream();
+
+		Image ret;
+		if (currentSource == softDeviceImage && bootloaderImage != null) {
+			ret = currentSource = bootloaderImage;
+		} else if (currentSource != applicationImage && applicationImage != null) {
+			ret = currentSource = applicationImage;
 		} else {
 			ret = currentSource = null;
 		}
@@ -414,6 +602,17 @@ public class ArchiveInputStream extends ZipInputStream {
 		return ret;
 	}
 
+	private void closeCurrentStream() {
+		if (currentStream != null) {
+			try {
+				currentStream.close();
+			} catch (final IOException e) {
+				// do nothing
+			}
+			currentStream = null;
+		}
+	}
+
 	@Override
 	/**
 	 * Returns the number of bytes that has not been read yet. This value includes only firmwares matching the content type set by the construcotor or the {@link #setContentType(int)} method.
@@ -463,4 +662,20 @@ public class ArchiveInputStream extends ZipInputStream {
 	public byte[] getApplicationInit() {
 		return applicationInitBytes;
 	}
+
+	/**
+	 * A firmware image in the archive. In the streaming mode only the name and the BIN size are known until the image is opened.
+	 */
+	private static class Image {
+		private final String name;
+		private final int size;
+		/** The BIN content, or <code>null</code> in the streaming mode. */
+		private final byte[] bytes;
+
+		private Image(final String name, final int size, final byte[] bytes) {
+			this.name = name;
+			this.size = size;
+			this.bytes = bytes;
+		}
+	}
 }
@@ -0,0 +1,186 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Keeps the BIN content extracted from HEX files on disk, so a HEX file that has already been flashed does not have to be parsed again.
+ * <p>
+ * Entries are stored in the application cache directory and are keyed by the SHA-1 of the HEX file content and the address window the BIN content was
+ * extracted from. A modified HEX file gets a new key, so entries never have to be invalidated. Only the {@link #MAX_ENTRIES} most recently used entries
+ * are kept. Cached entries are memory-mapped when opened.
+ * </p>
+ */
+/* package */ class BinImageCache {
+	private static final String TAG = "BinImageCache";
+
+	private static final String CACHE_DIR = "dfu_images";
+	private static final String BIN_EXTENSION = ".bin";
+	private static final String TMP_EXTENSION = ".tmp";
+	private static final int MAX_ENTRIES = 16;
+	private static final int BUFFER_SIZE = 8192;
+	/** Changed when the BIN content is extracted differently, so entries extracted before are not used. */
+	private static final int KEY_VERSION = 3;
+
+	private final File mDirectory;
+
+	/* package */ BinImageCache(final Context context) {
+		mDirectory = new File(context.getCacheDir(), CACHE_DIR);
+	}
+
+	/**
+	 * Opens the BIN content of the given HEX file. If the content is not in the cache yet, the HEX file is decoded and the result is stored.
+	 *
+	 * @param hexFile
+	 *            the HEX file
+	 * @param mbrSize
+	 *            the MBR size, data below this address is skipped. If -1, only data from {@link DfuSettingsConstants#APP_CODE_BASE_START} to
+	 *            {@link DfuSettingsConstants#APP_CODE_BASE_END} is used.
+	 * @return the input stream with the BIN content
+	 * @throws java.io.IOException
+	 *             if the HEX file could not be read or is invalid
+	 */
+	/* package */ InputStream open(final File hexFile, final int mbrSize) throws IOException {
+		final String key = getKey(hexFile, mbrSize);
+		if (key != null) {
+			final File binFile = new File(mDirectory, key + BIN_EXTENSION);
+			if (binFile.isFile()) {
+				Log.d(TAG, "Using cached image " + binFile.getName());
+				binFile.setLastModified(System.currentTimeMillis());
+				return ByteBufferInputStream.map(binFile);
+			}
+		}
+
+		final InputStream is = new FileInputStream(hexFile);
+		final HexInputStream his = mbrSize == -1 ? new HexInputStream(is) : new HexInputStream(is, mbrSize);
+		if (key != null)
+			store(his, key);
+		return his;
+	}
+
+	/**
+	 * Writes the BIN content to the cache. The stream is reset afterwards, so it may be used for the upload. Errors are only logged, as the cache is optional.
+	 */
+	private void store(final HexInputStream his, final String key) throws IOException {
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			Log.w(TAG, "Unable to create cache directory");
+			return;
+		}
+
+		final File tmpFile = new File(mDirectory, key + TMP_EXTENSION);
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(tmpFile);
+			int size;
+			while ((size = his.readPacket(buffer)) > 0)
+				os.write(buffer, 0, size);
+			os.close();
+			os = null;
+
+			// The file is renamed only when fully written, so a partially written entry is never used
+			if (!tmpFile.renameTo(new File(mDirectory, key + BIN_EXTENSION)))
+				Log.w(TAG, "Unable to store image " + key);
+		} catch (final IOException e) {
+			Log.w(TAG, "Unable to store image " + key + ": " + e.toString());
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (final IOException e) {
+					// do nothing
+				}
+			}
+			tmpFile.delete();
+			his.reset();
+		}
+		trim();
+	}
+
+	/**
+	 * Removes the least recently used entries above {@link #MAX_ENTRIES}.
+	 */
+	private void trim() {
+		final File[] files = mDirectory.listFiles();
+		if (files == null || files.length <= MAX_ENTRIES)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File lhs, final File rhs) {
+				final long l = lhs.lastModified();
+				final long r = rhs.lastModified();
+				return l > r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		for (int i = MAX_ENTRIES; i < files.length; ++i)
+			files[i].delete();
+	}
+
+	/**
+	 * Returns the cache key of the given HEX file and address window, or <code>null</code> if the key could not be calculated.
+	 */
+	private String getKey(final File hexFile, final int mbrSize) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			Log.w(TAG, "SHA-1 not available, image cache disabled");
+			return null;
+		}
+
+		final InputStream is = new FileInputStream(hexFile);
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int size;
+			while ((size = is.read(buffer)) > 0)
+				digest.update(buffer, 0, size);
+		} finally {
+			is.close();
+		}
+
+		final StringBuilder key = new StringBuilder();
+		for (final byte b : digest.digest())
+			key.append(String.format(Locale.US, "%02x", b & 0xFF));
+		if (mbrSize == -1)
+			key.append(String.format(Locale.US, "_%x_%x", DfuSettingsConstants.APP_CODE_BASE_START, DfuSettingsConstants.APP_CODE_BASE_END));
+		else
+			key.append(String.format(Locale.US, "_%x", mbrSize));
+		key.append("_v").append(KEY_VERSION);
+		return key.toString();
+	}
+}
@@ -0,0 +1,106 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a BIN firmware image from a {@link ByteBuffer}. The buffer may be a memory-mapped file (see {@link #map(File)}) or wrap an array that is already in memory.
+ * Packets are returned as {@link ImageSource} slices, without copying the image into an intermediate buffer.
+ */
+/* package */ class ByteBufferInputStream extends InputStream implements ImageSource {
+	private final ByteBuffer mBuffer;
+	private final PacketPool mPool = new PacketPool();
+
+	/* package */ ByteBufferInputStream(final ByteBuffer buffer) {
+		mBuffer = buffer;
+	}
+
+	/**
+	 * Maps the whole BIN file into memory.
+	 *
+	 * @param file
+	 *            the BIN file
+	 * @return the input stream reading from the mapped file
+	 * @throws java.io.IOException
+	 *             if the file could not be opened or mapped
+	 */
+	/* package */ static ByteBufferInputStream map(final File file) throws IOException {
+		final FileInputStream is = new FileInputStream(file);
+		try {
+			final FileChannel channel = is.getChannel();
+			// The mapping stays valid after the channel is closed
+			return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			is.close();
+		}
+	}
+
+	@Override
+	public byte[] nextPacket(final int maxSize) {
+		final int size = Math.min(maxSize, mBuffer.remaining());
+		if (size == 0)
+			return null;
+
+		final byte[] packet = mPool.obtain(size);
+		mBuffer.get(packet);
+		return packet;
+	}
+
+	@Override
+	public boolean isRandomAccess() {
+		return true;
+	}
+
+	@Override
+	public int read() {
+		if (!mBuffer.hasRemaining())
+			return -1;
+		return mBuffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int count) {
+		final int size = Math.min(count, mBuffer.remaining());
+		if (size == 0 && count > 0)
+			return -1;
+
+		mBuffer.get(buffer, offset, size);
+		return size;
+	}
+
+	@Override
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		mBuffer.rewind();
+	}
+}
@@ -35,6 +35,11 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -51,11 +56,14 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Locale;
 import java.util.UUID;
 
@@ -317,6 +325,11 @@ public abstract class DfuBaseService extends IntentService {
      * The average upload speed in bytes/millisecond for the current part.
      */
     public static final String EXTRA_AVG_SPEED_B_PER_MS = "no.nordicsemi.android.dfu.extra.EXTRA_AVG_SPEED_B_PER_MS";
+
+    /**
+     * The number of packets that may be sent before waiting for a packet receipt notification, as chosen for the current speed. 0 if notifications are disabled.
+     */
+    public static final String EXTRA_PRN_WINDOW = "no.nordicsemi.android.dfu.extra.EXTRA_PRN_WINDOW";
     /**
      * The broadcast message contains the following extras:
      * <ul>
@@ -338,6 +351,7 @@ public abstract class DfuBaseService extends IntentService {
      * application as part number two.</li>
      * <li>{@link #EXTRA_SPEED_B_PER_MS} - current speed in bytes/millisecond as float</li>
      * <li>{@link #EXTRA_AVG_SPEED_B_PER_MS} - the average transmission speed in bytes/millisecond as float</li>
+     * <li>{@link #EXTRA_PRN_WINDOW} - the number of packets sent before waiting for a packet receipt notification, as int</li>
      * </ul>
      */
     public static final String BROADCAST_PROGRESS = "no.nordicsemi.android.dfu.broadcast.BROADCAST_PROGRESS";
@@ -464,6 +478,10 @@ public abstract class DfuBaseService extends IntentService {
      * Thrown when the firmware file is not word-aligned. The firmware size must be dividable by 4 bytes.
      */
     public static final int ERROR_FILE_SIZE_INVALID = ERROR_MASK | 0x0C;
+    /**
+     * Thrown when no GATT callback came for an in-flight request in time. See {@link #waitForCallback(long)}.
+     */
+    public static final int ERROR_GATT_STALLED = ERROR_MASK | 0x0D;
     /**
      * Flag set then the DFU target returned a DFU error. Look for DFU specification to get error codes.
      */
@@ -581,7 +599,7 @@ public abstract class DfuBaseService extends IntentService {
     private static final int OP_CODE_ACTIVATE_AND_RESET_KEY = 0x05; // 5
     private static final int OP_CODE_RESET_KEY = 0x06; // 6
 
-    //private static final int OP_CODE_PACKET_REPORT_RECEIVED_IMAGE_SIZE_KEY = 0x07; // 7
+    private static final int OP_CODE_PACKET_REPORT_RECEIVED_IMAGE_SIZE_KEY = 0x07; // 7
     private static final int OP_CODE_PACKET_RECEIPT_NOTIF_REQ_KEY = 0x08; // 8
     private static final int OP_CODE_RESPONSE_CODE_KEY = 0x10; // 16
     private static final int OP_CODE_PACKET_RECEIPT_NOTIF_KEY = 0x11; // 11
@@ -593,7 +611,7 @@ public abstract class DfuBaseService extends IntentService {
     private static final byte[] OP_CODE_ACTIVATE_AND_RESET = new byte[]{OP_CODE_ACTIVATE_AND_RESET_KEY};
     private static final byte[] OP_CODE_RESET = new byte[]{OP_CODE_RESET_KEY};
 
-    //private static final byte[] OP_CODE_REPORT_RECEIVED_IMAGE_SIZE = new byte[] { OP_CODE_PACKET_REPORT_RECEIVED_IMAGE_SIZE_KEY };
+    private static final byte[] OP_CODE_REPORT_RECEIVED_IMAGE_SIZE = new byte[]{OP_CODE_PACKET_REPORT_RECEIVED_IMAGE_SIZE_KEY};
     private static final byte[] OP_CODE_PACKET_RECEIPT_NOTIF_REQ = new byte[]{OP_CODE_PACKET_RECEIPT_NOTIF_REQ_KEY, 0x00, 0x00};
 
     private static final UUID DEVICE_INFORMATION_SERVICE_UUID = new UUID(0x0000180A00001000l, 0x800000805F9B34FBl);
@@ -622,8 +640,21 @@ public abstract class DfuBaseService extends IntentService {
     private static final int NOTIFICATIONS = 1;
     private static final int INDICATIONS = 2;
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
-    private static final int MAX_PACKET_SIZE = 20; // the maximum number of bytes in one packet is 20. May be less.
-    private final byte[] mBuffer = new byte[MAX_PACKET_SIZE];
+    private static final int MAX_PACKET_SIZE = 20; // the maximum number of bytes in one packet is 20 unless a bigger MTU has been negotiated. May be less.
+    private static final int PREFERRED_MTU = 247;
+    private static final int ATT_HEADER_SIZE = 3;
+    private static final long MTU_REQUEST_TIMEOUT = 5000;
+    private byte[] mBuffer = new byte[MAX_PACKET_SIZE];
+
+    /**
+     * The number of bytes sent in one packet. It is {@link #MAX_PACKET_SIZE} unless a bigger MTU has been negotiated with the DFU target.
+     */
+    private int mPacketSize = MAX_PACKET_SIZE;
+
+    /**
+     * Set while the service waits for the MTU to be changed. A late MTU callback must not complete other requests.
+     */
+    private volatile boolean mMtuRequestPending;
 
     /**
      * Lock used in synchronization purposes
@@ -631,6 +662,29 @@ public abstract class DfuBaseService extends IntentService {
     private final Object mLock = new Object();
     private BluetoothAdapter mBluetoothAdapter;
     private InputStream mInputStream;
+    /**
+     * Reads the image ahead during the upload, so GATT callbacks only take decoded packets. <code>null</code> if the image is kept in memory.
+     */
+    private volatile PacketPrefetcher mPrefetcher;
+    private BinImageCache mImageCache;
+
+    /**
+     * Progress of the upload confirmed by the DFU target, used to resume the upload after a link loss.
+     */
+    private UploadCheckpoint mCheckpoint;
+    /**
+     * Identity of the image being sent, see {@link UploadCheckpoint#identify(String, Uri, int)}.
+     */
+    private String mImageId;
+    private int mUploadResumes;
+    /**
+     * Maximum number of reconnections made in one service call to resume the upload after a link loss.
+     */
+    private static final int MAX_UPLOAD_RESUMES = 3;
+    /**
+     * Maximum time in milliseconds to wait for the response to the Report Received Image Size request. Not every bootloader sends it.
+     */
+    private static final long RESUME_REQUEST_TIMEOUT = 2000;
     private String mDeviceAddress;
     private String mDeviceName;
 
@@ -678,10 +732,60 @@ public abstract class DfuBaseService extends IntentService {
     /**
      * Number of bytes confirmed by the notification.
      */
-    @SuppressWarnings("unused")
     private int mBytesConfirmed;
     private int mPacketsSentSinceNotification;
 
+    /**
+     * Adapts the number of packets sent before waiting for a packet receipt notification. <code>null</code> if notifications are disabled.
+     */
+    private PrnWindowController mPrnWindow;
+
+    /**
+     * Set when the window of not confirmed packets is full and the next packet will be sent when a packet receipt notification arrives.
+     */
+    private boolean mPacketWriteStalled;
+
+    /**
+     * Set when the window smaller than the PRN interval is full. No packet receipt notification will arrive, so the upload thread asks the DFU target
+     * for the number of bytes received instead, see {@link #confirmReceivedPackets(BluetoothGatt, BluetoothGattCharacteristic)}.
+     */
+    private boolean mReceivedSizeRequestNeeded;
+
+    /**
+     * Copies of the recently written packets, sent again when their write has been lost.
+     */
+    private PacketHistory mPacketHistory;
+    /**
+     * Number of bytes of the image taken from the input stream, and the offset of the next packet to be written. They differ while lost packets are sent again.
+     */
+    private int mBytesRead, mNextPacketOffset;
+    /**
+     * Time of the last packet write, and whether its write callback is still expected.
+     */
+    private volatile long mPacketWriteTime;
+    private volatile boolean mPacketCallbackPending;
+    /**
+     * Set when the last packet could not be written, so it has not been queued and may simply be written again.
+     */
+    private volatile boolean mPacketWriteFailed;
+    /**
+     * Set while lost packets are being found and until the callback of the first packet sent again arrives. Packet receipt notifications do not send
+     * packets then.
+     */
+    private volatile boolean mPacketRecovery;
+    private volatile int mPacketResends;
+    /**
+     * Generation of packet writes, incremented when lost packets are being found. Every write is tagged with the generation it was made in, and the tags of
+     * writes waiting for their callbacks are kept in order, as the callbacks come. A callback of a write made before the recovery is dropped, so it neither
+     * counts nor sends a packet. Both are guarded by {@link #mLock}.
+     */
+    private int mPacketGeneration;
+    private final ArrayDeque<Integer> mPacketWriteGenerations = new ArrayDeque<>();
+    /**
+     * Time in milliseconds after which a packet write without the callback is considered lost, see {@link #getLostPacketTimeout(int)}.
+     */
+    private volatile long mLostPacketTimeout;
+
     /**
      * This value is used to calculate the current transfer speed.
      */
@@ -699,6 +803,12 @@ public abstract class DfuBaseService extends IntentService {
     private int mFileType;
     private long mLastProgressTime, mStartTime;
 
+    /**
+     * Connection priority requested by {@link #requestConnectionPriority(BluetoothGatt, int)} and the time of the request.
+     */
+    private int mConnectionPriority;
+    private long mConnectionPriorityTime;
+
     /**
      * Flag sent when a request has been sent that will cause the DFU target to reset. Often, after sending such command, Android throws a connection state error. If this flag is set the error will be
      * ignored.
@@ -743,8 +853,69 @@ public abstract class DfuBaseService extends IntentService {
     private boolean mPaused;
     private boolean mAborted;
 
+    /**
+     * Time in milliseconds without any GATT callback after which an in-flight request is considered stalled.
+     */
+    private static final long OPERATION_STALL_TIMEOUT = 10000;
+    /**
+     * Same as {@link #OPERATION_STALL_TIMEOUT}, but for connecting and disconnecting. Android itself may report a connection timeout only after 30 seconds.
+     */
+    private static final long CONNECTION_STALL_TIMEOUT = 35000;
+    /**
+     * Maximum number of fresh connections made in one service call after the GATT stalled. When exceeded, {@link #ERROR_GATT_STALLED} is reported.
+     */
+    private static final int MAX_STALL_RECONNECTS = 2;
+    /**
+     * Number of connection intervals after which a packet write without the callback is considered lost. The callback comes as soon as the packet is queued,
+     * which with a full TX queue takes a few connection events.
+     */
+    private static final int LOST_PACKET_CONNECTION_INTERVALS = 20;
+    /**
+     * Minimum time in milliseconds after which a packet write without the callback is considered lost.
+     */
+    private static final long MIN_LOST_PACKET_TIMEOUT = 500;
+    /**
+     * Interval in milliseconds of checking for lost packets during the upload.
+     */
+    private static final long LOST_PACKET_CHECK_INTERVAL = 250;
+    /**
+     * Delay in milliseconds before a packet that could not be written is written again, so the TX queue may be drained.
+     */
+    private static final long PACKET_WRITE_RETRY_DELAY = 20;
+    /**
+     * Maximum number of lost packet recoveries without a packet receipt notification in between. When exceeded, the upload is handled as stalled
+     * and continued on a fresh connection.
+     */
+    private static final int MAX_PACKET_RESENDS = 10;
+    /**
+     * The number of packets kept in {@link #mPacketHistory} when packet receipt notifications are disabled.
+     */
+    private static final int PACKET_HISTORY_SIZE = 64;
+
+    /**
+     * Time of the last GATT callback, see {@link #waitForCallback(long)}.
+     */
+    private volatile long mLastCallbackTime;
+    private int mStallReconnects;
+
     private long delayForInitDeviceFirmware;
 
+    /**
+     * Maximum time in milliseconds to wait for the device rebooted to the bootloader mode to advertise.
+     */
+    private static final long BOOTLOADER_ADVERTISING_TIMEOUT = 10000;
+    /**
+     * Maximum time in milliseconds to wait for the device rebooted to the application after the upload, before the completion is reported.
+     */
+    private static final long APPLICATION_ADVERTISING_TIMEOUT = 1400;
+
+    /**
+     * Flag set when the awaited device has been found by the scan, see {@link #waitForAdvertising(String, long)}.
+     */
+    private boolean mDeviceFound;
+    private ScanCallback mScanCallback;
+    private BluetoothAdapter.LeScanCallback mLeScanCallback;
+
     private volatile BluetoothGatt gatt = null;
     private volatile BluetoothDevice device = null;
 
@@ -832,6 +1003,7 @@ public abstract class DfuBaseService extends IntentService {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+            mLastCallbackTime = SystemClock.elapsedRealtime();
             // Check whether an error occurred
             logi("onConnectionStateChange() :: Start");
             if (status == BluetoothGatt.GATT_SUCCESS) {
@@ -904,6 +1076,7 @@ public abstract class DfuBaseService extends IntentService {
 
         @Override
         public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            mLastCallbackTime = SystemClock.elapsedRealtime();
             // Notify waiting thread
             logi("onServicesDiscovered() :: Start");
             if (status == BluetoothGatt.GATT_SUCCESS) {
@@ -920,6 +1093,7 @@ public abstract class DfuBaseService extends IntentService {
 
         @Override
         public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+            mLastCallbackTime = SystemClock.elapsedRealtime();
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid())) {
                     if (SERVICE_CHANGED_UUID.equals(descriptor.getCharacteristic().getUuid())) {
@@ -938,8 +1112,32 @@ public abstract class DfuBaseService extends IntentService {
             }
         }
 
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            mLastCallbackTime = SystemClock.elapsedRealtime();
+            if (!mMtuRequestPending)
+                return;
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                sendLogBroadcast(LOG_LEVEL_INFO, "MTU changed to: " + mtu);
+                // The bootloader writes flash in words, so every packet but the last one must be word aligned
+                mPacketSize = Math.max(MAX_PACKET_SIZE, (mtu - ATT_HEADER_SIZE) & ~3);
+            } else {
+                // The peer refused the request, the default packet size is used
+                logw("MTU request failed: " + status);
+                mPacketSize = MAX_PACKET_SIZE;
+            }
+            mRequestCompleted = true;
+
+            // Notify waiting thread
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+
         @Override
         public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+            mLastCallbackTime = SystemClock.elapsedRealtime();
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid())) {
@@ -963,6 +1161,7 @@ public abstract class DfuBaseService extends IntentService {
 
         @Override
         public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            mLastCallbackTime = SystemClock.elapsedRealtime();
             if (status == BluetoothGatt.GATT_SUCCESS) {
 				/*
 				 * This method is called when either a CONTROL POINT or PACKET characteristic has been written.
@@ -975,18 +1174,43 @@ public abstract class DfuBaseService extends IntentService {
 				 */
                 if (DFU_PACKET_UUID.equals(characteristic.getUuid())) {
                     if (mImageSizeSent && mInitPacketSent) {
+                        synchronized (mLock) {
+                            final Integer generation = mPacketWriteGenerations.poll();
+                            if (generation == null || generation != mPacketGeneration) {
+                                // Written before the lost packets were found, packets are counted again from the offset reported by the DFU target
+                                logw("Dropping packet write callback of generation " + generation);
+                                return;
+                            }
+                            mPacketCallbackPending = false;
+                            // The first packet sent again has been queued, the upload goes on
+                            mPacketRecovery = false;
+                        }
+
                         // If the PACKET characteristic was written with image data, update counters
                         mBytesSent += characteristic.getValue().length;
                         mPacketsSentSinceNotification++;
+                        if (mPrnWindow != null)
+                            mPrnWindow.onPacketSent(mBytesSent);
 
                         // If a packet receipt notification is expected, or the last packet was sent, do nothing. There onCharacteristicChanged listener will catch either
                         // a packet confirmation (if there are more bytes to send) or the image received notification (it upload process was completed)
-                        final boolean notificationExpected = mPacketsBeforeNotification > 0 && mPacketsSentSinceNotification == mPacketsBeforeNotification;
                         final boolean lastPacketTransferred = mBytesSent == mImageSizeInBytes;
-
-                        if (notificationExpected || lastPacketTransferred)
+                        if (lastPacketTransferred)
                             return;
 
+                        if (mPrnWindow != null) {
+                            synchronized (mLock) {
+                                if (!mPrnWindow.canSend(mBytesSent, mBytesConfirmed, mPacketSize)) {
+                                    mPacketWriteStalled = true;
+                                    if (mPrnWindow.isBelowReceiptInterval()) {
+                                        mReceivedSizeRequestNeeded = true;
+                                        mLock.notifyAll();
+                                    }
+                                    return;
+                                }
+                            }
+                        }
+
                         // When neither of them is true, send the next packet
                         try {
                             waitIfPaused();
@@ -1001,9 +1225,9 @@ public abstract class DfuBaseService extends IntentService {
                                 }
                             }
 
-                            final byte[] buffer = mBuffer;
-                            final int size = mInputStream.read(buffer);
-                            writePacket(gatt, characteristic, buffer, size);
+                            final byte[] packet = nextPacket();
+                            if (packet != null)
+                                writePacket(gatt, characteristic, packet);
                             updateProgressNotification();
                             return;
                         } catch (final HexFileValidationException e) {
@@ -1048,6 +1272,7 @@ public abstract class DfuBaseService extends IntentService {
 
         @Override
         public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            mLastCallbackTime = SystemClock.elapsedRealtime();
             if (status == BluetoothGatt.GATT_SUCCESS) {
 				/*
 				 * This method is called when the DFU Version characteristic has been read.
@@ -1068,14 +1293,26 @@ public abstract class DfuBaseService extends IntentService {
 
         @Override
         public void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            mLastCallbackTime = SystemClock.elapsedRealtime();
             final int responseType = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
             switch (responseType) {
                 case OP_CODE_PACKET_RECEIPT_NOTIF_KEY:
                     final BluetoothGattCharacteristic packetCharacteristic = gatt.getService(DFU_SERVICE_UUID).getCharacteristic(DFU_PACKET_UUID);
 
                     try {
-                        mBytesConfirmed = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 1);
-                        mPacketsSentSinceNotification = 0;
+                        synchronized (mLock) {
+                            mBytesConfirmed = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 1);
+                            mPacketsSentSinceNotification = 0;
+                            mCheckpoint.confirm(mBytesConfirmed);
+                            mPacketResends = 0;
+                            if (mPrnWindow != null)
+                                mPrnWindow.onReceipt(mBytesConfirmed);
+
+                            // Packets are still being sent if the window has not been filled, the next packet will be sent from onCharacteristicWrite
+                            if (!mPacketWriteStalled || mBytesSent == mImageSizeInBytes || mPacketRecovery)
+                                break;
+                            mPacketWriteStalled = mReceivedSizeRequestNeeded = false;
+                        }
 
                         waitIfPaused();
                         // The writing might have been aborted (mAborted = true), an error might have occurred.
@@ -1085,9 +1322,9 @@ public abstract class DfuBaseService extends IntentService {
                             break;
                         }
 
-                        final byte[] buffer = mBuffer;
-                        final int size = mInputStream.read(buffer);
-                        writePacket(gatt, packetCharacteristic, buffer, size);
+                        final byte[] packet = nextPacket();
+                        if (packet != null)
+                            writePacket(gatt, packetCharacteristic, packet);
                         updateProgressNotification();
                         return;
                     } catch (final HexFileValidationException e) {
@@ -1166,6 +1403,8 @@ public abstract class DfuBaseService extends IntentService {
         super.onCreate();
 
         initialize();
+        mImageCache = new BinImageCache(this);
+        mCheckpoint = new UploadCheckpoint(this);
 
         final LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
         final IntentFilter actionFilter = makeDfuActionIntentFilter();
@@ -1207,6 +1446,8 @@ public abstract class DfuBaseService extends IntentService {
 
         logi("DFUBaseService onHandleIntent phase = " + phase);
         mServicePhase = 0;
+        mStallReconnects = 0;
+        mUploadResumes = 0;
 
         if ((phase & FLASHING_WITH_PAIR_CODE) != 0) {
             mServicePhase = FLASHING_WITH_PAIR_CODE;
@@ -1227,13 +1468,7 @@ public abstract class DfuBaseService extends IntentService {
         updateProgressNotification(PROGRESS_CONNECTING);
 
         if (delayForInitDeviceFirmware != 0) {
-            try {
-                synchronized (mLock) {
-                    mLock.wait(delayForInitDeviceFirmware);
-                }
-            } catch (InterruptedException e) {
-                Log.e(TAG, e.toString());
-            }
+            waitForAdvertising(deviceAddress, delayForInitDeviceFirmware);
             delayForInitDeviceFirmware = 0;
         }
 
@@ -1241,8 +1476,13 @@ public abstract class DfuBaseService extends IntentService {
         mBytesSent = 0;
         mBytesConfirmed = 0;
         mPacketsSentSinceNotification = 0;
+        mPrnWindow = null;
+        mPacketWriteStalled = mReceivedSizeRequestNeeded = false;
         mError = 0;
         mLastProgressTime = 0;
+        mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        mConnectionPriorityTime = SystemClock.elapsedRealtime();
+        mLostPacketTimeout = getLostPacketTimeout(mConnectionPriority);
         mAborted = false;
         mPaused = false;
         mNotificationsEnabled = false;
@@ -1341,7 +1581,13 @@ public abstract class DfuBaseService extends IntentService {
             sendProgressBroadcast(PROGRESS_WAITING_REBOOT);
             //Wait for the device to reboot.
             waitUntilDisconnected();
-            waitUntilConnected();
+            waitForAdvertising(mDeviceAddress, BOOTLOADER_ADVERTISING_TIMEOUT);
+            /*
+             * The refresh stays forced. The micro:bit now runs the bootloader, which has other services than the application, and the
+             * system cache holds the services of the application discovered by the last connection. The services layout stored by the
+             * application describes the application as well, so it can not be used to skip the refresh. Without the refresh the DFU service
+             * is not found and phase 3 has to disconnect, refresh and connect again, which takes longer.
+             */
             logi("Refreshing the cache before discoverServices() for Android version " + Build.VERSION.SDK_INT);
             refreshDeviceCache(gatt, true);
             do {
@@ -1452,6 +1698,7 @@ public abstract class DfuBaseService extends IntentService {
                 }
 
                 mFileType = fileType;
+                mImageId = UploadCheckpoint.identify(filePath, fileUri, fileType);
                 // Set the Init packet stream in case of a ZIP file
                 if (MIME_TYPE_ZIP.equals(mimeType)) {
                     final ArchiveInputStream zhis = (ArchiveInputStream) is;
@@ -1572,6 +1819,11 @@ public abstract class DfuBaseService extends IntentService {
             try {
                 updateProgressNotification(PROGRESS_STARTING);
 
+                // Try to send bigger packets. The packet size falls back to 20 bytes if the DFU target does not support a bigger MTU.
+                requestMtu(gatt);
+                // Packets are sent in every connection event, so a shorter connection interval shortens the upload
+                requestConnectionPriority(gatt, BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+
                 // Read the version number if available. The version number consists of 2 bytes: major and minor. Therefore f.e. the version 5 (00-05) can be read as 0.5.
                 int version = 0;
                 if (versionCharacteristic != null) {
@@ -1711,234 +1963,20 @@ public abstract class DfuBaseService extends IntentService {
                     byte[] response;
                     int status;
 
-					/*
-					 * The first version of DFU supported only an Application update.
-					 * Initializing procedure:
-					 * [DFU Start (0x01)] -> DFU Control Point
-					 * [App size in bytes (UINT32)] -> DFU Packet
-					 * ---------------------------------------------------------------------
-					 * Since SDK 6.0 and Soft Device 7.0+ the DFU supports upgrading Soft Device, Bootloader and Application.
-					 * Initializing procedure:
-					 * [DFU Start (0x01), <Update Mode>] -> DFU Control Point
-					 * [SD size in bytes (UINT32), Bootloader size in bytes (UINT32), Application size in bytes (UINT32)] -> DFU Packet
-					 * where <Upload Mode> is a bit mask:
-					 * 0x01 - Soft Device update
-					 * 0x02 - Bootloader update
-					 * 0x04 - Application update
-					 * so that
-					 * 0x03 - Soft Device and Bootloader update
-					 * If <Upload Mode> equals 5, 6 or 7 DFU target may return OPERATION_NOT_SUPPORTED [10, 01, 03]. In that case service will try to send
-					 * Soft Device and/or Bootloader first, reconnect to the new Bootloader and send the Application in the second connection.
-					 * --------------------------------------------------------------------
-					 * If DFU target supports only the old DFU, a response [10, 01, 03] will be send as a notification on DFU Control Point characteristic, where:
-					 * 10 - Response for...
-					 * 01 - DFU Start command
-					 * 03 - Operation Not Supported
-					 * (see table below)
-					 * In that case:
-					 * 1. If this is application update - service will try to upload using the old DFU protocol.
-					 * 2. In case of SD or BL update an error is returned.
-					 */
-
-                    // Obtain size of image(s)
-                    int softDeviceImageSize = (fileType & TYPE_SOFT_DEVICE) > 0 ? imageSizeInBytes : 0;
-                    int bootloaderImageSize = (fileType & TYPE_BOOTLOADER) > 0 ? imageSizeInBytes : 0;
-                    int appImageSize = (fileType & TYPE_APPLICATION) > 0 ? imageSizeInBytes : 0;
-                    // The sizes above may be overwritten if a ZIP file was passed
-                    if (MIME_TYPE_ZIP.equals(mimeType)) {
-                        final ArchiveInputStream zhis = (ArchiveInputStream) is;
-                        softDeviceImageSize = zhis.softDeviceImageSize();
-                        bootloaderImageSize = zhis.bootloaderImageSize();
-                        appImageSize = zhis.applicationImageSize();
-                    }
-
-                    try {
-                        OP_CODE_START_DFU[1] = (byte) fileType;
-
-                        // Send Start DFU command to Control Point
-                        logi("Sending Start DFU command (Op Code = 1, Upload Mode = " + fileType + ")");
-                        writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU);
-                        sendLogBroadcast(LOG_LEVEL_APPLICATION, "DFU Start sent (Op Code = 1, Upload Mode = " + fileType + ")");
-
-                        // Send image size in bytes to DFU Packet
-                        logi("Sending image size array to DFU Packet (" + softDeviceImageSize + "b, " + bootloaderImageSize + "b, " + appImageSize + "b)");
-                        writeImageSize(gatt, packetCharacteristic, softDeviceImageSize, bootloaderImageSize, appImageSize);
-                        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Firmware image size sent (" + softDeviceImageSize + "b, " + bootloaderImageSize + "b, " + appImageSize + "b)");
-                        sendStatsBinFileSize(appImageSize);
-
-                        // A notification will come with confirmation. Let's wait for it a bit
-                        response = readNotificationResponse();
-
-						/*
-						 * The response received from the DFU device contains:
-						 * +---------+--------+----------------------------------------------------+
-						 * | byte no | value  | description                                        |
-						 * +---------+--------+----------------------------------------------------+
-						 * | 0       | 16     | Response code                                      |
-						 * | 1       | 1      | The Op Code of a request that this response is for |
-						 * | 2       | STATUS | See DFU_STATUS_* for status codes                  |
-						 * +---------+--------+----------------------------------------------------+
-						 */
-                        status = getStatusCode(response, OP_CODE_START_DFU_KEY);
-                        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Response received (Op Code = " + response[1] + " Status = " + status + ")");
-                        if (status != DFU_STATUS_SUCCESS)
-                            throw new RemoteDfuException("Starting DFU failed", status);
-                    } catch (final RemoteDfuException e) {
-                        try {
-                            Log.e(TAG, e.toString());
-
-                            if (e.getErrorNumber() != DFU_STATUS_NOT_SUPPORTED)
-                                throw e;
-
-                            // If user wants to send the Soft Device and/or the Bootloader + Application we may try to send the Soft Device/Bootloader files first,
-                            // and then reconnect and send the application in the second connection.
-                            if ((fileType & TYPE_APPLICATION) > 0 && (fileType & (TYPE_SOFT_DEVICE | TYPE_BOOTLOADER)) > 0) {
-                                // Clear the remote error flag
-                                mRemoteErrorOccurred = false;
-
-                                logw("DFU target does not support (SD/BL)+App update");
-                                sendLogBroadcast(LOG_LEVEL_WARNING, "DFU target does not support (SD/BL)+App update");
-
-                                fileType &= ~TYPE_APPLICATION; // clear application bit
-                                mFileType = fileType;
-                                OP_CODE_START_DFU[1] = (byte) fileType;
-                                mPartsTotal = 2;
-
-                                // Set new content type in the ZIP Input Stream and update sizes of images
-                                final ArchiveInputStream zhis = (ArchiveInputStream) is;
-                                zhis.setContentType(fileType);
-                                try {
-                                    appImageSize = 0;
-                                    mImageSizeInBytes = is.available();
-                                } catch (final IOException e1) {
-                                    Log.e(TAG, e.toString());
-                                    // never happen
-                                }
-
-                                // Send Start DFU command to Control Point
-                                sendLogBroadcast(LOG_LEVEL_VERBOSE, "Sending only SD/BL");
-                                logi("Resending Start DFU command (Op Code = 1, Upload Mode = " + fileType + ")");
-                                writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU);
-                                sendLogBroadcast(LOG_LEVEL_APPLICATION, "DFU Start sent (Op Code = 1, Upload Mode = " + fileType + ")");
-
-                                // Send image size in bytes to DFU Packet
-                                logi("Sending image size array to DFU Packet: [" + softDeviceImageSize + "b, " + bootloaderImageSize + "b, " + appImageSize + "b]");
-                                writeImageSize(gatt, packetCharacteristic, softDeviceImageSize, bootloaderImageSize, appImageSize);
-                                sendLogBroadcast(LOG_LEVEL_APPLICATION, "Firmware image size sent [" + softDeviceImageSize + "b, " + bootloaderImageSize + "b, " + appImageSize + "b]");
-                                sendStatsBinFileSize(appImageSize);
-
-                                // A notification will come with confirmation. Let's wait for it a bit
-                                response = readNotificationResponse();
-                                status = getStatusCode(response, OP_CODE_START_DFU_KEY);
-                                sendLogBroadcast(LOG_LEVEL_APPLICATION, "Response received (Op Code = " + response[1] + " Status = " + status + ")");
-                                if (status != DFU_STATUS_SUCCESS)
-                                    throw new RemoteDfuException("Starting DFU failed", status);
-                            } else
-                                throw e;
-                        } catch (final RemoteDfuException e1) {
-                            Log.e(TAG, e1.toString());
-
-                            if (e1.getErrorNumber() != DFU_STATUS_NOT_SUPPORTED)
-                                throw e1;
-
-                            // If operation is not supported by DFU target we may try to upload application with legacy mode, using the old DFU protocol
-                            if (fileType == TYPE_APPLICATION) {
-                                // Clear the remote error flag
-                                mRemoteErrorOccurred = false;
-
-                                // The DFU target does not support DFU v.2 protocol
-                                logw("DFU target does not support DFU v.2");
-                                sendLogBroadcast(LOG_LEVEL_WARNING, "DFU target does not support DFU v.2");
-
-                                // Send Start DFU command to Control Point
-                                sendLogBroadcast(LOG_LEVEL_VERBOSE, "Switching to DFU v.1");
-                                logi("Resending Start DFU command (Op Code = 1)");
-                                writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU); // If has 2 bytes, but the second one is ignored
-                                sendLogBroadcast(LOG_LEVEL_APPLICATION, "DFU Start sent (Op Code = 1)");
-
-                                // Send image size in bytes to DFU Packet
-                                logi("Sending application image size to DFU Packet: " + imageSizeInBytes + " bytes");
-                                writeImageSize(gatt, packetCharacteristic, mImageSizeInBytes);
-                                sendLogBroadcast(LOG_LEVEL_APPLICATION, "Firmware image size sent (" + imageSizeInBytes + " bytes)");
-                                sendStatsBinFileSize(imageSizeInBytes);
-
-                                // A notification will come with confirmation. Let's wait for it a bit
-                                response = readNotificationResponse();
-                                status = getStatusCode(response, OP_CODE_START_DFU_KEY);
-                                sendLogBroadcast(LOG_LEVEL_APPLICATION, "Response received (Op Code = " + response[1] + ", Status = " + status + ")");
-                                if (status != DFU_STATUS_SUCCESS)
-                                    throw new RemoteDfuException("Starting DFU failed", status);
-                            } else
-                                throw e1;
-                        }
-                    }
-
-                    // Since SDK 6.1 this delay is no longer required as the Receive Start DFU notification is postponed until the memory is clear.
-
-                    //		if ((fileType & TYPE_SOFT_DEVICE) > 0) {
-                    //			// In the experimental version of bootloader (SDK 6.0.0) we must wait some time until we can proceed with Soft Device update. Bootloader must prepare the RAM for the new firmware.
-                    //			// Most likely this step will not be needed in the future as the notification received a moment before will be postponed until Bootloader is ready.
-                    //			synchronized (this) {
-                    //				try {
-                    //					wait(6000);
-                    //				} catch (final InterruptedException e) {
-                    //					// do nothing
-                    //				}
-                    //			}
-                    //		}
-
-					/*
-					 * If the DFU Version characteristic is present and the version returned from it is greater or equal to 0.5, the Extended Init Packet is required.
-					 * For older versions, or if the DFU Version characteristic is not present (pre SDK 7.0.0), the Init Packet (which could have contained only the firmware CRC) was optional.
-					 * To calculate the CRC (CRC-CCTII-16 0xFFFF) the following application may be used: http://www.lammertbies.nl/comm/software/index.html -> CRC library.
-					 *
-					 * The Init Packet is read from the *.dat file as a binary file. This service you allows to specify the init packet file in two ways.
-					 * Since SDK 8.0 and the DFU Library v0.6 using the Distribution packet (ZIP) is recommended. The distribution packet can be created using the
-					 * *nrf utility* tool, available together with Master Control Panel v 3.8.0. See the DFU documentation at http://developer.nordicsemi.com for more details.
-					 * An init file may be also provided as a separate file using the {@link #EXTRA_INIT_FILE_PATH} or {@link #EXTRA_INIT_FILE_URI} or in the ZIP file
-					 * with the deprecated fixed naming convention:
-					 *
-					 *    a) If the ZIP file contain a softdevice.hex (or .bin) and/or bootloader.hex (or .bin) the 'system.dat' must also be included.
-					 *       In case when both files are present the CRC should be calculated from the two BIN contents merged together.
-					 *       This means: if there are softdevice.hex and bootloader.hex files in the ZIP file you have to convert them to BIN
-					 *       (e.g. using: http://hex2bin.sourceforge.net/ application), copy them into a single file where the soft device is placed as the first one and calculate
-					 *       the CRC for the whole file.
-					 *
-					 *    b) If the ZIP file contains a application.hex (or .bin) file the 'application.dat' file must be included and contain the Init packet for the application.
-					 */
-                    // Send DFU Init Packet
-                    if (initIs != null) {
-                        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Writing Initialize DFU Parameters...");
-
-                        logi("Sending the Initialize DFU Parameters START (Op Code = 2, Value = 0)");
-                        writeOpCode(gatt, controlPointCharacteristic, OP_CODE_INIT_DFU_PARAMS_START);
-
-                        try {
-                            byte[] data = new byte[20];
-                            int size;
-                            while ((size = initIs.read(data, 0, data.length)) != -1) {
-                                writeInitPacket(gatt, packetCharacteristic, data, size);
-                            }
-                        } catch (final IOException e) {
-                            loge("Error while reading Init packet file");
-                            throw new DfuException("Error while reading Init packet file", ERROR_FILE_ERROR);
-                        }
-
-                        logi("Sending the Initialize DFU Parameters COMPLETE (Op Code = 2, Value = 1)");
-                        writeOpCode(gatt, controlPointCharacteristic, OP_CODE_INIT_DFU_PARAMS_COMPLETE);
-                        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Initialize DFU Parameters completed");
-
-                        // A notification will come with confirmation. Let's wait for it a bit
-                        response = readNotificationResponse();
-                        status = getStatusCode(response, OP_CODE_INIT_DFU_PARAMS_KEY);
-                        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Response received (Op Code = " + response[1] + ", Status = " + status + ")");
-                        if (status != DFU_STATUS_SUCCESS)
-                            throw new RemoteDfuException("Device returned error after sending init packet", status);
-                    } else
+                    // After a link loss the DFU target may still hold the part of the image received before, then only the rest is sent
+                    final int resumeOffset = getResumeOffset(gatt, controlPointCharacteristic, deviceAddress);
+                    if (resumeOffset == 0) {
+                        startUpload(gatt, controlPointCharacteristic, packetCharacteristic, is, initIs, fileType, mimeType, imageSizeInBytes);
+                    } else {
+                        // The image size and the Init packet have been sent in the previous connection
+                        mImageSizeSent = true;
                         mInitPacketSent = true;
+                    }
 
                     // Send the number of packets of firmware before receiving a receipt notification
                     final int numberOfPacketsBeforeNotification = mPacketsBeforeNotification;
+                    mPrnWindow = numberOfPacketsBeforeNotification > 0 ? new PrnWindowController(numberOfPacketsBeforeNotification) : null;
+                    mPacketWriteStalled = mReceivedSizeRequestNeeded = false;
                     if (numberOfPacketsBeforeNotification > 0) {
                         logi("Sending the number of packets before notifications (Op Code = 8, Value = " + numberOfPacketsBeforeNotification + ")");
                         setNumberOfPackets(OP_CODE_PACKET_RECEIPT_NOTIF_REQ, numberOfPacketsBeforeNotification);
@@ -1946,10 +1984,21 @@ public abstract class DfuBaseService extends IntentService {
                         sendLogBroadcast(LOG_LEVEL_APPLICATION, "Packet Receipt Notif Req (Op Code = 8) sent (Value = " + numberOfPacketsBeforeNotification + ")");
                     }
 
-                    // Initialize firmware upload
-                    logi("Sending Receive Firmware Image request (Op Code = 3)");
-                    writeOpCode(gatt, controlPointCharacteristic, OP_CODE_RECEIVE_FIRMWARE_IMAGE);
-                    sendLogBroadcast(LOG_LEVEL_APPLICATION, "Receive Firmware Image request sent");
+                    if (resumeOffset == 0) {
+                        // Initialize firmware upload
+                        logi("Sending Receive Firmware Image request (Op Code = 3)");
+                        writeOpCode(gatt, controlPointCharacteristic, OP_CODE_RECEIVE_FIRMWARE_IMAGE);
+                        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Receive Firmware Image request sent");
+                        mCheckpoint.start(deviceAddress, mImageId, mImageSizeInBytes);
+                    } else {
+                        // The DFU target is still receiving the image, skip the part it already has
+                        try {
+                            skipImage(is, resumeOffset);
+                        } catch (final IOException e) {
+                            throw new DfuException("Error while reading file", ERROR_FILE_IO_EXCEPTION);
+                        }
+                        mBytesSent = mBytesConfirmed = mLastBytesSent = resumeOffset;
+                    }
 
                     // Send the firmware. The method below sends the first packet and waits until the whole firmware is sent.
                     final long startTime = mLastProgressTime = mStartTime = SystemClock.elapsedRealtime();
@@ -1975,6 +2024,8 @@ public abstract class DfuBaseService extends IntentService {
 
                     logi("Transfer of " + mBytesSent + " bytes has taken " + (endTime - startTime) + " ms");
                     sendLogBroadcast(LOG_LEVEL_APPLICATION, "Upload completed in " + (endTime - startTime) + " ms");
+                    mCheckpoint.clear();
+                    requestConnectionPriority(gatt, BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
 
                     // Send Validate request
                     logi("Sending Validate request (Op Code = 4)");
@@ -2041,15 +2092,8 @@ public abstract class DfuBaseService extends IntentService {
 					 * second time to send the Application only (using the new Bootloader). In the first case we do not send PROGRESS_COMPLETED notification.
 					 */
                     if (mPartCurrent == mPartsTotal) {
-                        // Delay this event a little bit. Android needs some time to prepare for reconnection.
-                        synchronized (mLock) {
-                            try {
-                                mLock.wait(1400);
-                            } catch (final InterruptedException e) {
-                                Log.e(TAG, e.toString());
-                                // do nothing
-                            }
-                        }
+                        // Delay this event until the device advertises again, so the application may reconnect at once.
+                        waitForAdvertising(deviceAddress, APPLICATION_ADVERTISING_TIMEOUT);
 
                         updateProgressNotification(PROGRESS_COMPLETED);
                         logi("phase 3 complete");
@@ -2075,6 +2119,7 @@ public abstract class DfuBaseService extends IntentService {
                 } catch (final UnknownResponseException e) {
                     final int error = ERROR_INVALID_RESPONSE;
                     loge(e.getMessage());
+                    mCheckpoint.clear();
                     sendLogBroadcast(LOG_LEVEL_ERROR, e.getMessage());
 
                     logi("Sending Reset command (Op Code = 6)");
@@ -2084,6 +2129,7 @@ public abstract class DfuBaseService extends IntentService {
                 } catch (final RemoteDfuException e) {
                     final int error = ERROR_REMOTE_MASK | e.getErrorNumber();
                     loge(e.getMessage());
+                    mCheckpoint.clear();
                     sendLogBroadcast(LOG_LEVEL_ERROR, String.format("Remote DFU error: %s", GattError.parse(error)));
 
                     logi("Sending Reset command (Op Code = 6)");
@@ -2093,6 +2139,7 @@ public abstract class DfuBaseService extends IntentService {
                 }
             } catch (final UploadAbortedException e) {
                 logi("Upload aborted");
+                mCheckpoint.clear();
                 sendLogBroadcast(LOG_LEVEL_WARNING, "Upload aborted");
                 if (mConnectionState == STATE_CONNECTED_AND_READY)
                     try {
@@ -2108,12 +2155,34 @@ public abstract class DfuBaseService extends IntentService {
                 terminateConnection(gatt, PROGRESS_ABORTED);
             } catch (final DeviceDisconnectedException e) {
                 sendLogBroadcast(LOG_LEVEL_ERROR, "Device has disconnected");
-                // TODO reconnect n times?
                 loge(e.getMessage());
                 close(gatt);
+                if (mCheckpoint.hasProgress() && mUploadResumes < MAX_UPLOAD_RESUMES) {
+                    mUploadResumes++;
+                    sendLogBroadcast(LOG_LEVEL_WARNING, "Reconnecting to resume the upload (" + mUploadResumes + "/" + MAX_UPLOAD_RESUMES + ")");
+
+                    logi("Restarting service");
+                    final Intent newIntent = new Intent();
+                    newIntent.fillIn(intent, Intent.FILL_IN_COMPONENT | Intent.FILL_IN_PACKAGE);
+                    return newIntent;
+                }
                 updateProgressNotification(ERROR_DEVICE_DISCONNECTED);
             } catch (final DfuException e) {
                 int error = e.getErrorNumber();
+                if (error == ERROR_GATT_STALLED && mStallReconnects < MAX_STALL_RECONNECTS) {
+                    mStallReconnects++;
+                    loge(e.getMessage());
+                    sendLogBroadcast(LOG_LEVEL_WARNING, "GATT stalled, closing it and reconnecting (" + mStallReconnects + "/" + MAX_STALL_RECONNECTS + ")");
+                    close(gatt);
+
+                    logi("Restarting service");
+                    final Intent newIntent = new Intent();
+                    newIntent.fillIn(intent, Intent.FILL_IN_COMPONENT | Intent.FILL_IN_PACKAGE);
+                    return newIntent;
+                }
+                // The upload will not be resumed, a new one starts over
+                mCheckpoint.clear();
+
                 // Connection state errors and other Bluetooth GATT callbacks share the same error numbers. Therefore we are using bit masks to identify the type.
                 if ((error & ERROR_CONNECTION_STATE_MASK) > 0) {
                     error &= ~ERROR_CONNECTION_STATE_MASK;
@@ -2152,6 +2221,258 @@ public abstract class DfuBaseService extends IntentService {
         return null;
     }
 
+    /**
+     * Starts the DFU procedure on the target: sends the Start DFU command with the image sizes, falling back to sending the Soft Device and/or Bootloader
+     * alone, or to the DFU v.1 protocol, if the target does not support the requested upload mode, and then the Init packet, if there is one.
+     *
+     * @param gatt                       the GATT device
+     * @param controlPointCharacteristic the DFU Control Point characteristic
+     * @param packetCharacteristic       the DFU Packet characteristic
+     * @param is                         the firmware image stream
+     * @param initIs                     the Init packet stream, or <code>null</code>
+     * @param fileType                   the requested upload mode, see {@link #TYPE_AUTO}
+     * @param mimeType                   the MIME type of the firmware file
+     * @param imageSizeInBytes           the size of the firmware image
+     * @throws DeviceDisconnectedException
+     * @throws DfuException
+     * @throws UploadAbortedException
+     * @throws RemoteDfuException         if the target refused the request
+     * @throws UnknownResponseException   if the target sent an invalid response
+     */
+    private void startUpload(final BluetoothGatt gatt, final BluetoothGattCharacteristic controlPointCharacteristic, final BluetoothGattCharacteristic packetCharacteristic,
+                             final InputStream is, final InputStream initIs, int fileType, final String mimeType, final int imageSizeInBytes) throws DeviceDisconnectedException,
+            DfuException, UploadAbortedException, RemoteDfuException, UnknownResponseException {
+        // Set up the temporary variable that will hold the responses
+        byte[] response;
+        int status;
+
+		/*
+		 * The first version of DFU supported only an Application update.
+		 * Initializing procedure:
+		 * [DFU Start (0x01)] -> DFU Control Point
+		 * [App size in bytes (UINT32)] -> DFU Packet
+		 * ---------------------------------------------------------------------
+		 * Since SDK 6.0 and Soft Device 7.0+ the DFU supports upgrading Soft Device, Bootloader and Application.
+		 * Initializing procedure:
+		 * [DFU Start (0x01), <Update Mode>] -> DFU Control Point
+		 * [SD size in bytes (UINT32), Bootloader size in bytes (UINT32), Application size in bytes (UINT32)] -> DFU Packet
+		 * where <Upload Mode> is a bit mask:
+		 * 0x01 - Soft Device update
+		 * 0x02 - Bootloader update
+		 * 0x04 - Application update
+		 * so that
+		 * 0x03 - Soft Device and Bootloader update
+		 * If <Upload Mode> equals 5, 6 or 7 DFU target may return OPERATION_NOT_SUPPORTED [10, 01, 03]. In that case service will try to send
+		 * Soft Device and/or Bootloader first, reconnect to the new Bootloader and send the Application in the second connection.
+		 * --------------------------------------------------------------------
+		 * If DFU target supports only the old DFU, a response [10, 01, 03] will be send as a notification on DFU Control Point characteristic, where:
+		 * 10 - Response for...
+		 * 01 - DFU Start command
+		 * 03 - Operation Not Supported
+		 * (see table below)
+		 * In that case:
+		 * 1. If this is application update - service will try to upload using the old DFU protocol.
+		 * 2. In case of SD or BL update an error is returned.
+		 */
+
+        // Obtain size of image(s)
+        int softDeviceImageSize = (fileType & TYPE_SOFT_DEVICE) > 0 ? imageSizeInBytes : 0;
+        int bootloaderImageSize = (fileType & TYPE_BOOTLOADER) > 0 ? imageSizeInBytes : 0;
+        int appImageSize = (fileType & TYPE_APPLICATION) > 0 ? imageSizeInBytes : 0;
+        // The sizes above may be overwritten if a ZIP file was passed
+        if (MIME_TYPE_ZIP.equals(mimeType)) {
+            final ArchiveInputStream zhis = (ArchiveInputStream) is;
+            softDeviceImageSize = zhis.softDeviceImageSize();
+            bootloaderImageSize = zhis.bootloaderImageSize();
+            appImageSize = zhis.applicationImageSize();
+        }
+
+        try {
+            OP_CODE_START_DFU[1] = (byte) fileType;
+
+            // Send Start DFU command to Control Point
+            logi("Sending Start DFU command (Op Code = 1, Upload Mode = " + fileType + ")");
+            writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU);
+            sendLogBroadcast(LOG_LEVEL_APPLICATION, "DFU Start sent (Op Code = 1, Upload Mode = " + fileType + ")");
+
+            // Send image size in bytes to DFU Packet
+            logi("Sending image size array to DFU Packet (" + softDeviceImageSize + "b, " + bootloaderImageSize + "b, " + appImageSize + "b)");
+            writeImageSize(gatt, packetCharacteristic, softDeviceImageSize, bootloaderImageSize, appImageSize);
+            sendLogBroadcast(LOG_LEVEL_APPLICATION, "Firmware image size sent (" + softDeviceImageSize + "b, " + bootloaderImageSize + "b, " + appImageSize + "b)");
+            sendStatsBinFileSize(appImageSize);
+
+            // A notification will come with confirmation. Let's wait for it a bit
+            response = readNotificationResponse();
+
+			/*
+			 * The response received from the DFU device contains:
+			 * +---------+--------+----------------------------------------------------+
+			 * | byte no | value  | description                                        |
+			 * +---------+--------+----------------------------------------------------+
+			 * | 0       | 16     | Response code                                      |
+			 * | 1       | 1      | The Op Code of a request that this response is for |
+			 * | 2       | STATUS | See DFU_STATUS_* for status codes                  |
+			 * +---------+--------+----------------------------------------------------+
+			 */
+            status = getStatusCode(response, OP_CODE_START_DFU_KEY);
+            sendLogBroadcast(LOG_LEVEL_APPLICATION, "Response received (Op Code = " + response[1] + " Status = " + status + ")");
+            if (status != DFU_STATUS_SUCCESS)
+                throw new RemoteDfuException("Starting DFU failed", status);
+        } catch (final RemoteDfuException e) {
+            try {
+                Log.e(TAG, e.toString());
+
+                if (e.getErrorNumber() != DFU_STATUS_NOT_SUPPORTED)
+                    throw e;
+
+                // If user wants to send the Soft Device and/or the Bootloader + Application we may try to send the Soft Device/Bootloader files first,
+                // and then reconnect and send the application in the second connection.
+                if ((fileType & TYPE_APPLICATION) > 0 && (fileType & (TYPE_SOFT_DEVICE | TYPE_BOOTLOADER)) > 0) {
+                    // Clear the remote error flag
+                    mRemoteErrorOccurred = false;
+
+                    logw("DFU target does not support (SD/BL)+App update");
+                    sendLogBroadcast(LOG_LEVEL_WARNING, "DFU target does not support (SD/BL)+App update");
+
+                    fileType &= ~TYPE_APPLICATION; // clear application bit
+                    mFileType = fileType;
+                    OP_CODE_START_DFU[1] = (byte) fileType;
+                    mPartsTotal = 2;
+
+                    // Set new content type in the ZIP Input Stream and update sizes of images
+                    final ArchiveInputStream zhis = (ArchiveInputStream) is;
+                    zhis.setContentType(fileType);
+                    try {
+                        appImageSize = 0;
+                        mImageSizeInBytes = is.available();
+                    } catch (final IOException e1) {
+                        Log.e(TAG, e.toString());
+                        // never happen
+                    }
+
+                    // Send Start DFU command to Control Point
+                    sendLogBroadcast(LOG_LEVEL_VERBOSE, "Sending only SD/BL");
+                    logi("Resending Start DFU command (Op Code = 1, Upload Mode = " + fileType + ")");
+                    writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU);
+                    sendLogBroadcast(LOG_LEVEL_APPLICATION, "DFU Start sent (Op Code = 1, Upload Mode = " + fileType + ")");
+
+                    // Send image size in bytes to DFU Packet
+                    logi("Sending image size array to DFU Packet: [" + softDeviceImageSize + "b, " + bootloaderImageSize + "b, " + appImageSize + "b]");
+                    writeImageSize(gatt, packetCharacteristic, softDeviceImageSize, bootloaderImageSize, appImageSize);
+                    sendLogBroadcast(LOG_LEVEL_APPLICATION, "Firmware image size sent [" + softDeviceImageSize + "b, " + bootloaderImageSize + "b, " + appImageSize + "b]");
+                    sendStatsBinFileSize(appImageSize);
+
+                    // A notification will come with confirmation. Let's wait for it a bit
+                    response = readNotificationResponse();
+                    status = getStatusCode(response, OP_CODE_START_DFU_KEY);
+                    sendLogBroadcast(LOG_LEVEL_APPLICATION, "Response received (Op Code = " + response[1] + " Status = " + status + ")");
+                    if (status != DFU_STATUS_SUCCESS)
+                        throw new RemoteDfuException("Starting DFU failed", status);
+                } else
+                    throw e;
+            } catch (final RemoteDfuException e1) {
+                Log.e(TAG, e1.toString());
+
+                if (e1.getErrorNumber() != DFU_STATUS_NOT_SUPPORTED)
+                    throw e1;
+
+                // If operation is not supported by DFU target we may try to upload application with legacy mode, using the old DFU protocol
+                if (fileType == TYPE_APPLICATION) {
+                    // Clear the remote error flag
+                    mRemoteErrorOccurred = false;
+
+                    // The DFU target does not support DFU v.2 protocol
+                    logw("DFU target does not support DFU v.2");
+                    sendLogBroadcast(LOG_LEVEL_WARNING, "DFU target does not support DFU v.2");
+
+                    // Send Start DFU command to Control Point
+                    sendLogBroadcast(LOG_LEVEL_VERBOSE, "Switching to DFU v.1");
+                    logi("Resending Start DFU command (Op Code = 1)");
+                    writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU); // If has 2 bytes, but the second one is ignored
+                    sendLogBroadcast(LOG_LEVEL_APPLICATION, "DFU Start sent (Op Code = 1)");
+
+                    // Send image size in bytes to DFU Packet
+                    logi("Sending application image size to DFU Packet: " + imageSizeInBytes + " bytes");
+                    writeImageSize(gatt, packetCharacteristic, mImageSizeInBytes);
+                    sendLogBroadcast(LOG_LEVEL_APPLICATION, "Firmware image size sent (" + imageSizeInBytes + " bytes)");
+                    sendStatsBinFileSize(imageSizeInBytes);
+
+                    // A notification will come with confirmation. Let's wait for it a bit
+                    response = readNotificationResponse();
+                    status = getStatusCode(response, OP_CODE_START_DFU_KEY);
+                    sendLogBroadcast(LOG_LEVEL_APPLICATION, "Response received (Op Code = " + response[1] + ", Status = " + status + ")");
+                    if (status != DFU_STATUS_SUCCESS)
+                        throw new RemoteDfuException("Starting DFU failed", status);
+                } else
+                    throw e1;
+            }
+        }
+
+        // Since SDK 6.1 this delay is no longer required as the Receive Start DFU notification is postponed until the memory is clear.
+
+        //		if ((fileType & TYPE_SOFT_DEVICE) > 0) {
+        //			// In the experimental version of bootloader (SDK 6.0.0) we must wait some time until we can proceed with Soft Device update. Bootloader must prepare the RAM for the new firmware.
+        //			// Most likely this step will not be needed in the future as the notification received a moment before will be postponed until Bootloader is ready.
+        //			synchronized (this) {
+        //				try {
+        //					wait(6000);
+        //				} catch (final InterruptedException e) {
+        //					// do nothing
+        //				}
+        //			}
+        //		}
+
+		/*
+		 * If the DFU Version characteristic is present and the version returned from it is greater or equal to 0.5, the Extended Init Packet is required.
+		 * For older versions, or if the DFU Version characteristic is not present (pre SDK 7.0.0), the Init Packet (which could have contained only the firmware CRC) was optional.
+		 * To calculate the CRC (CRC-CCTII-16 0xFFFF) the following application may be used: http://www.lammertbies.nl/comm/software/index.html -> CRC library.
+		 *
+		 * The Init Packet is read from the *.dat file as a binary file. This service you allows to specify the init packet file in two ways.
+		 * Since SDK 8.0 and the DFU Library v0.6 using the Distribution packet (ZIP) is recommended. The distribution packet can be created using the
+		 * *nrf utility* tool, available together with Master Control Panel v 3.8.0. See the DFU documentation at http://developer.nordicsemi.com for more details.
+		 * An init file may be also provided as a separate file using the {@link #EXTRA_INIT_FILE_PATH} or {@link #EXTRA_INIT_FILE_URI} or in the ZIP file
+		 * with the deprecated fixed naming convention:
+		 *
+		 *    a) If the ZIP file contain a softdevice.hex (or .bin) and/or bootloader.hex (or .bin) the 'system.dat' must also be included.
+		 *       In case when both files are present the CRC should be calculated from the two BIN contents merged together.
+		 *       This means: if there are softdevice.hex and bootloader.hex files in the ZIP file you have to convert them to BIN
+		 *       (e.g. using: http://hex2bin.sourceforge.net/ application), copy them into a single file where the soft device is placed as the first one and calculate
+		 *       the CRC for the whole file.
+		 *
+		 *    b) If the ZIP file contains a application.hex (or .bin) file the 'application.dat' file must be included and contain the Init packet for the application.
+		 */
+        // Send DFU Init Packet
+        if (initIs != null) {
+            sendLogBroadcast(LOG_LEVEL_APPLICATION, "Writing Initialize DFU Parameters...");
+
+            logi("Sending the Initialize DFU Parameters START (Op Code = 2, Value = 0)");
+            writeOpCode(gatt, controlPointCharacteristic, OP_CODE_INIT_DFU_PARAMS_START);
+
+            try {
+                byte[] data = new byte[20];
+                int size;
+                while ((size = initIs.read(data, 0, data.length)) != -1) {
+                    writeInitPacket(gatt, packetCharacteristic, data, size);
+                }
+            } catch (final IOException e) {
+                loge("Error while reading Init packet file");
+                throw new DfuException("Error while reading Init packet file", ERROR_FILE_ERROR);
+            }
+
+            logi("Sending the Initialize DFU Parameters COMPLETE (Op Code = 2, Value = 1)");
+            writeOpCode(gatt, controlPointCharacteristic, OP_CODE_INIT_DFU_PARAMS_COMPLETE);
+            sendLogBroadcast(LOG_LEVEL_APPLICATION, "Initialize DFU Parameters completed");
+
+            // A notification will come with confirmation. Let's wait for it a bit
+            response = readNotificationResponse();
+            status = getStatusCode(response, OP_CODE_INIT_DFU_PARAMS_KEY);
+            sendLogBroadcast(LOG_LEVEL_APPLICATION, "Response received (Op Code = " + response[1] + ", Status = " + status + ")");
+            if (status != DFU_STATUS_SUCCESS)
+                throw new RemoteDfuException("Device returned error after sending init packet", status);
+        } else
+            mInitPacketSent = true;
+    }
+
     /**
      * Sets number of data packets that will be send before the notification will be received.
      *
@@ -2173,16 +2494,15 @@ public abstract class DfuBaseService extends IntentService {
      * @return the input stream with binary image content
      */
     private InputStream openInputStream(final String filePath, final String mimeType, final int mbrSize, final int types) throws IOException {
-        final InputStream is = new FileInputStream(filePath);
-        if (MIME_TYPE_ZIP.equals(mimeType))
-            return new ArchiveInputStream(is, mbrSize, types);
-
-        if (filePath.toLowerCase(Locale.US).endsWith("hex")) {
-            //return new HexInputStream(is, mbrSize);
-            return new HexInputStream(is);
+        if (!MIME_TYPE_ZIP.equals(mimeType) && filePath.toLowerCase(Locale.US).endsWith("hex")) {
+            // The BIN content is taken from the image cache if this HEX file has been flashed before
+            return mImageCache.open(new File(filePath), -1);
         }
 
-        return is;
+        if (!MIME_TYPE_ZIP.equals(mimeType))
+            return ByteBufferInputStream.map(new File(filePath));
+
+        return new ArchiveInputStream(new File(filePath), mbrSize, types);
     }
 
     /**
@@ -2241,7 +2561,7 @@ public abstract class DfuBaseService extends IntentService {
             mConnectionState = STATE_CONNECTING;
             synchronized (mLock) {
                 while (((mConnectionState == STATE_CONNECTING || mConnectionState == STATE_CONNECTED) && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(CONNECTION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2325,7 +2645,7 @@ public abstract class DfuBaseService extends IntentService {
             synchronized (mLock) {
                 while ((mConnectionState != STATE_DISCONNECTED) && (mConnectionState != STATE_CLOSED) && mError == 0) {
                     logi("waitUntilDisconnected : waiting");
-                    mLock.wait();
+                    waitForCallback(CONNECTION_STALL_TIMEOUT);
                     logi("waitUntilDisconnected : wait done");
                 }
             }
@@ -2364,6 +2684,98 @@ public abstract class DfuBaseService extends IntentService {
         }
     }
 
+    /**
+     * Waits until the device with given address advertises, but not longer than given time. A low latency scan filtered by the address is used, so the
+     * service reconnects as soon as the device is ready instead of sleeping for a fixed time. If the scan can not be started the whole time is waited.
+     *
+     * @param address the device address
+     * @param timeout the maximum time to wait in milliseconds
+     * @return <code>true</code> if the device has been found, <code>false</code> otherwise
+     */
+    private boolean waitForAdvertising(final String address, final long timeout) {
+        logi("waitForAdvertising");
+        final long start = SystemClock.elapsedRealtime();
+        mDeviceFound = false;
+        final boolean scanning = startScan(address);
+
+        try {
+            synchronized (mLock) {
+                long left;
+                while (!mDeviceFound && !mAborted && (left = start + timeout - SystemClock.elapsedRealtime()) > 0)
+                    mLock.wait(left);
+            }
+        } catch (final InterruptedException e) {
+            loge("Sleeping interrupted", e);
+        }
+
+        if (scanning)
+            stopScan();
+
+        final long time = SystemClock.elapsedRealtime() - start;
+        logi("waitForAdvertising : " + (mDeviceFound ? "device found after " : "device not found in ") + time + " ms");
+        sendLogBroadcast(LOG_LEVEL_VERBOSE, (mDeviceFound ? "Device found after " : "Device not found in ") + time + " ms");
+        return mDeviceFound;
+    }
+
+    @SuppressLint("NewApi")
+    private boolean startScan(final String address) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                final BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+                if (scanner == null)
+                    return false;
+
+                mScanCallback = new ScanCallback() {
+                    @Override
+                    public void onScanResult(final int callbackType, final ScanResult result) {
+                        onDeviceFound();
+                    }
+                };
+                final ScanFilter filter = new ScanFilter.Builder().setDeviceAddress(address).build();
+                final ScanSettings settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
+                scanner.startScan(Collections.singletonList(filter), settings, mScanCallback);
+                return true;
+            }
+
+            mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+                @Override
+                public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
+                    if (address.equals(device.getAddress()))
+                        onDeviceFound();
+                }
+            };
+            return mBluetoothAdapter.startLeScan(mLeScanCallback);
+        } catch (final RuntimeException e) {
+            // Thrown if the adapter is turned off or the scan is not permitted
+            loge("Scan not started", e);
+            return false;
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private void stopScan() {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                final BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+                if (scanner != null)
+                    scanner.stopScan(mScanCallback);
+            } else {
+                mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            }
+        } catch (final RuntimeException e) {
+            loge("Scan not stopped", e);
+        }
+        mScanCallback = null;
+        mLeScanCallback = null;
+    }
+
+    private void onDeviceFound() {
+        synchronized (mLock) {
+            mDeviceFound = true;
+            mLock.notifyAll();
+        }
+    }
+
     private void gattConnect(final BluetoothGatt gatt) {
         try {
             if (gatt.connect()) {
@@ -2448,7 +2860,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2465,6 +2877,105 @@ public abstract class DfuBaseService extends IntentService {
         return characteristic.getStringValue(0);
     }
 
+    /**
+     * Requests connection parameters of the given priority and logs how long the previous priority has been used. Unlike the MTU request it has no callback,
+     * so this method does not wait. Nothing is requested if not supported by the Android version.
+     *
+     * @param gatt     the GATT device
+     * @param priority the connection priority, f.e. {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}
+     */
+    @SuppressLint("NewApi")
+    private void requestConnectionPriority(final BluetoothGatt gatt, final int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mConnectionState != STATE_CONNECTED_AND_READY || priority == mConnectionPriority)
+            return;
+
+        final long now = SystemClock.elapsedRealtime();
+        if (!gatt.requestConnectionPriority(priority)) {
+            logw("Connection priority request not sent");
+            return;
+        }
+
+        logi("Connection priority " + mConnectionPriority + " -> " + priority + " after " + (now - mConnectionPriorityTime) + " ms");
+        sendLogBroadcast(LOG_LEVEL_VERBOSE, "Connection priority requested: " + priority);
+        mConnectionPriority = priority;
+        mConnectionPriorityTime = now;
+        mLostPacketTimeout = getLostPacketTimeout(priority);
+    }
+
+    /**
+     * Returns the time after which a packet write without the callback is considered lost, {@link #LOST_PACKET_CONNECTION_INTERVALS} of the longest
+     * connection interval Android requests for the given priority.
+     *
+     * @param priority the connection priority, f.e. {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}
+     * @return the timeout in milliseconds
+     */
+    private static long getLostPacketTimeout(final int priority) {
+        final long interval;
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                interval = 15;
+                break;
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                interval = 125;
+                break;
+            default:
+                interval = 50;
+                break;
+        }
+        return Math.max(MIN_LOST_PACKET_TIMEOUT, interval * LOST_PACKET_CONNECTION_INTERVALS);
+    }
+
+    /**
+     * Requests a bigger MTU and sets {@link #mPacketSize} to the negotiated value. This method is SYNCHRONOUS and waits until the
+     * {@link android.bluetooth.BluetoothGattCallback#onMtuChanged(android.bluetooth.BluetoothGatt, int, int)} is called, but no longer than {@link #MTU_REQUEST_TIMEOUT}.
+     * The packet size remains {@link #MAX_PACKET_SIZE} if the request fails, times out or is not supported by the Android version.
+     *
+     * @param gatt the GATT device
+     * @throws DeviceDisconnectedException
+     * @throws UploadAbortedException
+     */
+    @SuppressLint("NewApi")
+    private void requestMtu(final BluetoothGatt gatt) throws DeviceDisconnectedException, UploadAbortedException {
+        mPacketSize = MAX_PACKET_SIZE;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+        if (mConnectionState != STATE_CONNECTED_AND_READY)
+            throw new DeviceDisconnectedException("Unable to request MTU", mConnectionState);
+
+        mRequestCompleted = false;
+        mMtuRequestPending = true;
+        logi("Requesting MTU " + PREFERRED_MTU + "...");
+        sendLogBroadcast(LOG_LEVEL_VERBOSE, "Requesting MTU " + PREFERRED_MTU + "...");
+        if (!gatt.requestMtu(PREFERRED_MTU)) {
+            mMtuRequestPending = false;
+            logw("MTU request not sent");
+            return;
+        }
+
+        // We have to wait until the MTU is changed, but not for too long as the MTU is optional
+        try {
+            final long end = SystemClock.elapsedRealtime() + MTU_REQUEST_TIMEOUT;
+            synchronized (mLock) {
+                long left;
+                while (!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && !mAborted && (left = end - SystemClock.elapsedRealtime()) > 0)
+                    mLock.wait(left);
+            }
+        } catch (final InterruptedException e) {
+            loge("Sleeping interrupted", e);
+        }
+        mMtuRequestPending = false;
+
+        if (mAborted)
+            throw new UploadAbortedException();
+
+        if (mConnectionState != STATE_CONNECTED_AND_READY)
+            throw new DeviceDisconnectedException("Unable to request MTU", mConnectionState);
+
+        if (!mRequestCompleted)
+            logw("MTU request timed out");
+        logi("Packet size: " + mPacketSize);
+    }
+
     /**
      * Reads the DFU Version characteristic if such exists. Otherwise it returns 0.
      *
@@ -2494,7 +3005,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2551,7 +3062,7 @@ public abstract class DfuBaseService extends IntentService {
             synchronized (mLock) {
                 while ((((type == NOTIFICATIONS && !mNotificationsEnabled) || (type == INDICATIONS && !mServiceChangedIndicationsEnabled))
                         && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2600,7 +3111,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2668,7 +3179,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2693,7 +3204,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused) {
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
                 }
             }
         } catch (final InterruptedException e) {
@@ -2733,7 +3244,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mImageSizeSent && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2788,7 +3299,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mImageSizeSent && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2839,7 +3350,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mInitPacketSent && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2870,12 +3381,41 @@ public abstract class DfuBaseService extends IntentService {
             DfuException, UploadAbortedException {
         mReceivedData = null;
         mError = 0;
+        mBytesRead = mNextPacketOffset = mBytesSent;
+        // Packets not confirmed never exceed the window, one more is kept for the packet of a lost write callback
+        mPacketHistory = new PacketHistory(mPrnWindow != null ? mPrnWindow.getMaxWindow() + 1 : PACKET_HISTORY_SIZE);
+        mPacketCallbackPending = mPacketWriteFailed = mPacketRecovery = false;
+        mPacketResends = 0;
+        synchronized (mLock) {
+            mPacketGeneration = 0;
+            mPacketWriteGenerations.clear();
+            mReceivedSizeRequestNeeded = false;
+        }
 
-        final byte[] buffer = mBuffer;
+        // Images decoded or mapped into memory are sent directly, other images are read ahead while being sent
+        if (!(inputStream instanceof ImageSource) || !((ImageSource) inputStream).isRandomAccess())
+            mPrefetcher = new PacketPrefetcher(inputStream, mPacketSize);
+        try {
+            return sendFirmwareImage(gatt, packetCharacteristic);
+        } finally {
+            final PacketPrefetcher prefetcher = mPrefetcher;
+            mPrefetcher = null;
+            if (prefetcher != null)
+                prefetcher.close();
+        }
+    }
+
+    /**
+     * Sends the first packet of the firmware image and waits until the whole image is sent. See {@link #uploadFirmwareImage(BluetoothGatt, BluetoothGattCharacteristic, InputStream)}.
+     */
+    private byte[] sendFirmwareImage(final BluetoothGatt gatt, final BluetoothGattCharacteristic packetCharacteristic) throws DeviceDisconnectedException,
+            DfuException, UploadAbortedException {
         try {
-            final int size = inputStream.read(buffer);
+            final byte[] packet = nextPacket();
+            if (packet == null)
+                throw new DfuException("Firmware image is empty", ERROR_FILE_SIZE_INVALID);
             sendLogBroadcast(LOG_LEVEL_VERBOSE, "Sending firmware to characteristic " + packetCharacteristic.getUuid() + "...");
-            writePacket(gatt, packetCharacteristic, buffer, size);
+            writePacket(gatt, packetCharacteristic, packet);
         } catch (final HexFileValidationException e) {
             throw new DfuException("HEX file not valid", ERROR_FILE_INVALID);
         } catch (final IOException e) {
@@ -2883,10 +3423,28 @@ public abstract class DfuBaseService extends IntentService {
         }
 
         try {
-            synchronized (mLock) {
-                while ((mReceivedData == null && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
-            }
+            boolean packetLost, sizeRequested;
+            do {
+                packetLost = sizeRequested = false;
+                synchronized (mLock) {
+                    while ((mReceivedData == null && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused) {
+                        if (!mPaused && isPacketLost()) {
+                            packetLost = true;
+                            break;
+                        }
+                        if (!mPaused && mReceivedSizeRequestNeeded) {
+                            sizeRequested = true;
+                            break;
+                        }
+                        waitForPacketCallback();
+                    }
+                }
+
+                if (packetLost)
+                    resendLostPackets(gatt, packetCharacteristic);
+                else if (sizeRequested)
+                    confirmReceivedPackets(gatt, packetCharacteristic);
+            } while (packetLost || sizeRequested);
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
         }
@@ -2903,6 +3461,253 @@ public abstract class DfuBaseService extends IntentService {
         return mReceivedData;
     }
 
+    /**
+     * Returns whether the last packet write has been lost: either the packet could not be written, or its write callback has not come in {@link #mLostPacketTimeout}.
+     */
+    private boolean isPacketLost() {
+        return mPacketWriteFailed || (mPacketCallbackPending && SystemClock.elapsedRealtime() - mPacketWriteTime >= mLostPacketTimeout);
+    }
+
+    /**
+     * Waits on {@link #mLock} during the upload, at most {@link #LOST_PACKET_CHECK_INTERVAL}, so lost packets are found. Like {@link #waitForCallback(long)} sets
+     * {@link #ERROR_GATT_STALLED} if there was neither a GATT callback nor a packet write for {@link #OPERATION_STALL_TIMEOUT}.
+     */
+    private void waitForPacketCallback() throws InterruptedException {
+        if (mPaused) {
+            mLock.wait();
+            return;
+        }
+
+        mLock.wait(LOST_PACKET_CHECK_INTERVAL);
+        final long idle = SystemClock.elapsedRealtime() - Math.max(mLastCallbackTime, mPacketWriteTime);
+        if (!mPaused && mError == 0 && idle >= OPERATION_STALL_TIMEOUT) {
+            logw("No GATT callback for " + idle + " ms");
+            sendLogBroadcast(LOG_LEVEL_WARNING, "GATT request stalled, cancelling it");
+            mError = ERROR_GATT_STALLED;
+        }
+    }
+
+    /**
+     * Sends the lost packets again and continues the upload. A packet that could not be written has not been queued, so it is written again. When a write callback
+     * has been lost it is not known whether the packet has been sent, so the DFU target is asked for the number of bytes received (Op Code = 7) and the packets
+     * from that offset are taken from {@link #mPacketHistory}.
+     * <p>
+     * Writes made before are of the previous generation, so their late callbacks are dropped. The recovery ends when the callback of the packet sent again arrives.
+     * </p>
+     *
+     * @param gatt                 the GATT device (DFU target)
+     * @param packetCharacteristic the DFU PACKET characteristic
+     * @throws DeviceDisconnectedException
+     * @throws DfuException                with {@link #ERROR_GATT_STALLED} if the packets can not be sent again, the upload is then continued on a fresh connection
+     * @throws UploadAbortedException
+     */
+    private void resendLostPackets(final BluetoothGatt gatt, final BluetoothGattCharacteristic packetCharacteristic) throws DeviceDisconnectedException, DfuException,
+            UploadAbortedException {
+        if (++mPacketResends > MAX_PACKET_RESENDS)
+            throw new DfuException("Too many lost packets", ERROR_GATT_STALLED);
+
+        synchronized (mLock) {
+            mPacketRecovery = true;
+            mPacketGeneration++;
+        }
+        int offset;
+        if (mPacketWriteFailed) {
+            logw("Packet could not be written, writing it again");
+            offset = mNextPacketOffset;
+            try {
+                synchronized (mLock) {
+                    mLock.wait(PACKET_WRITE_RETRY_DELAY);
+                }
+            } catch (final InterruptedException e) {
+                loge("Sleeping interrupted", e);
+            }
+        } else {
+            logw("Packet write callback lost after " + mBytesSent + " bytes");
+            sendLogBroadcast(LOG_LEVEL_WARNING, "Packet write callback lost, checking received data");
+            final BluetoothGattCharacteristic controlPointCharacteristic = gatt.getService(DFU_SERVICE_UUID).getCharacteristic(DFU_CONTROL_POINT_UUID);
+            offset = readReceivedImageSize(gatt, controlPointCharacteristic);
+            // Callbacks come in order, so a packet write callback not received before the one of the request is lost for good
+            synchronized (mLock) {
+                mPacketWriteGenerations.clear();
+            }
+            if (offset < mBytesConfirmed || offset > mBytesRead || (offset < mBytesRead && mPacketHistory.get(offset) == null))
+                throw new DfuException("Lost packets can not be sent again, received " + offset + " bytes", ERROR_GATT_STALLED);
+        }
+
+        synchronized (mLock) {
+            mBytesSent = mNextPacketOffset = offset;
+            mPacketsSentSinceNotification = 0;
+            mPacketCallbackPending = mPacketWriteFailed = mPacketWriteStalled = mReceivedSizeRequestNeeded = false;
+        }
+        if (mPrnWindow != null)
+            mPrnWindow.onError();
+        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Sending again from " + offset + " bytes");
+
+        try {
+            final byte[] packet = nextPacket();
+            if (packet != null)
+                writePacket(gatt, packetCharacteristic, packet);
+            else
+                mPacketRecovery = false;
+        } catch (final HexFileValidationException e) {
+            throw new DfuException("HEX file not valid", ERROR_FILE_INVALID);
+        } catch (final IOException e) {
+            throw new DfuException("Error while reading file", ERROR_FILE_IO_EXCEPTION);
+        }
+    }
+
+    /**
+     * Asks the DFU target for the number of bytes received (Op Code = 7) when the window, shrunk below the PRN interval, is full. The reported offset confirms
+     * the packets like a packet receipt notification would and the upload goes on.
+     *
+     * @param gatt                 the GATT device (DFU target)
+     * @param packetCharacteristic the DFU PACKET characteristic
+     * @throws DeviceDisconnectedException
+     * @throws DfuException                with {@link #ERROR_GATT_STALLED} if the target did not report a valid offset, the upload is then continued on a fresh connection
+     * @throws UploadAbortedException
+     */
+    private void confirmReceivedPackets(final BluetoothGatt gatt, final BluetoothGattCharacteristic packetCharacteristic) throws DeviceDisconnectedException, DfuException,
+            UploadAbortedException {
+        synchronized (mLock) {
+            mReceivedSizeRequestNeeded = false;
+        }
+        final BluetoothGattCharacteristic controlPointCharacteristic = gatt.getService(DFU_SERVICE_UUID).getCharacteristic(DFU_CONTROL_POINT_UUID);
+        final int offset = readReceivedImageSize(gatt, controlPointCharacteristic);
+
+        synchronized (mLock) {
+            if (offset < mBytesConfirmed || offset > mBytesSent)
+                throw new DfuException("Invalid number of bytes received: " + offset, ERROR_GATT_STALLED);
+
+            mBytesConfirmed = offset;
+            mCheckpoint.confirm(offset);
+            if (mPrnWindow != null)
+                mPrnWindow.onReceipt(offset);
+
+            // A packet receipt notification or a lost packet might have moved the upload on in the meantime
+            if (!mPacketWriteStalled || mPacketRecovery)
+                return;
+            if (mPrnWindow != null && !mPrnWindow.canSend(mBytesSent, mBytesConfirmed, mPacketSize)) {
+                mReceivedSizeRequestNeeded = true;
+                return;
+            }
+            mPacketWriteStalled = false;
+        }
+
+        try {
+            final byte[] packet = nextPacket();
+            if (packet != null)
+                writePacket(gatt, packetCharacteristic, packet);
+            updateProgressNotification();
+        } catch (final HexFileValidationException e) {
+            throw new DfuException("HEX file not valid", ERROR_FILE_INVALID);
+        } catch (final IOException e) {
+            throw new DfuException("Error while reading file", ERROR_FILE_IO_EXCEPTION);
+        }
+    }
+
+    /**
+     * Returns the offset the interrupted upload of the current image may be resumed from. If there is a checkpoint of this image for the device, the DFU target
+     * is asked for the number of bytes received so far (Op Code = 7). The upload is resumed only if the target still holds at least the confirmed part of the image.
+     * Bootloaders that start the DFU procedure over after a link loss report 0 bytes, refuse the request or do not answer, then the whole image is sent again.
+     *
+     * @param gatt                       the GATT device
+     * @param controlPointCharacteristic the DFU Control Point characteristic
+     * @param address                    the device address
+     * @return the number of bytes already received by the DFU target, or 0 if the upload has to be started from the beginning
+     * @throws DeviceDisconnectedException
+     * @throws DfuException
+     * @throws UploadAbortedException
+     */
+    private int getResumeOffset(final BluetoothGatt gatt, final BluetoothGattCharacteristic controlPointCharacteristic, final String address) throws DeviceDisconnectedException,
+            DfuException, UploadAbortedException {
+        final int confirmed = mCheckpoint.getOffset(address, mImageId, mImageSizeInBytes);
+        if (confirmed == 0)
+            return 0;
+
+        final int received = readReceivedImageSize(gatt, controlPointCharacteristic);
+
+        // Packets are word aligned, and the target must still expect more data
+        if (received < confirmed || received >= mImageSizeInBytes || (received & 3) != 0) {
+            logi("Upload can not be resumed: confirmed " + confirmed + " bytes, received " + received + " bytes");
+            sendLogBroadcast(LOG_LEVEL_WARNING, "Upload can not be resumed, sending the whole image");
+            mCheckpoint.clear();
+            return 0;
+        }
+
+        logi("Resuming upload from " + received + " bytes");
+        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Resuming upload from " + received + " bytes (" + confirmed + " bytes confirmed)");
+        return received;
+    }
+
+    /**
+     * Asks the DFU target for the number of bytes of the current image it has received (Op Code = 7). This method is SYNCHRONOUS and waits at most
+     * {@link #RESUME_REQUEST_TIMEOUT} for the response.
+     *
+     * @param gatt                       the GATT device
+     * @param controlPointCharacteristic the DFU Control Point characteristic
+     * @return the number of bytes received, or -1 if the target refused the request or did not answer
+     * @throws DeviceDisconnectedException
+     * @throws DfuException
+     * @throws UploadAbortedException
+     */
+    private int readReceivedImageSize(final BluetoothGatt gatt, final BluetoothGattCharacteristic controlPointCharacteristic) throws DeviceDisconnectedException,
+            DfuException, UploadAbortedException {
+        logi("Sending Report Received Image Size request (Op Code = 7)");
+        writeOpCode(gatt, controlPointCharacteristic, OP_CODE_REPORT_RECEIVED_IMAGE_SIZE);
+        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Report Received Image Size request sent");
+
+        try {
+            final long end = SystemClock.elapsedRealtime() + RESUME_REQUEST_TIMEOUT;
+            synchronized (mLock) {
+                long left;
+                while (mReceivedData == null && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted && (left = end - SystemClock.elapsedRealtime()) > 0)
+                    mLock.wait(left);
+            }
+        } catch (final InterruptedException e) {
+            loge("Sleeping interrupted", e);
+        }
+
+        if (mAborted)
+            throw new UploadAbortedException();
+
+        if (mConnectionState != STATE_CONNECTED_AND_READY)
+            throw new DeviceDisconnectedException("Unable to read received image size", mConnectionState);
+
+        final byte[] response = mReceivedData;
+        mReceivedData = null;
+        // A bootloader which has started over refuses the request
+        mRemoteErrorOccurred = false;
+
+        if (response != null && response.length == 7 && response[0] == OP_CODE_RESPONSE_CODE_KEY && response[1] == OP_CODE_PACKET_REPORT_RECEIVED_IMAGE_SIZE_KEY
+                && response[2] == DFU_STATUS_SUCCESS)
+            return (response[3] & 0xFF) | ((response[4] & 0xFF) << 8) | ((response[5] & 0xFF) << 16) | ((response[6] & 0xFF) << 24);
+        return -1;
+    }
+
+    /**
+     * Skips the given number of bytes of the firmware image.
+     *
+     * @param inputStream the firmware image stream
+     * @param count       the number of bytes to skip
+     * @throws IOException if the stream could not be read or is shorter
+     */
+    private void skipImage(final InputStream inputStream, final int count) throws IOException {
+        int left = count;
+        while (left > 0) {
+            final int size;
+            if (inputStream instanceof ImageSource) {
+                final byte[] packet = ((ImageSource) inputStream).nextPacket(Math.min(left, mPacketSize));
+                size = packet != null ? packet.length : -1;
+            } else {
+                // InputStream#skip(long) of a ZIP stream would skip the compressed data
+                size = inputStream.read(new byte[Math.min(left, mPacketSize)]);
+            }
+            if (size <= 0)
+                throw new IOException("Image shorter than " + count + " bytes");
+            left -= size;
+        }
+    }
+
     //Duplicate of String parse(final byte[] data)
     //TODO Remove this
     public static String bytesToHex(byte[] bytes) {
@@ -2916,31 +3721,119 @@ public abstract class DfuBaseService extends IntentService {
     }
 
     /**
-     * Writes the buffer to the characteristic. The maximum size of the buffer is 20 bytes. This method is ASYNCHRONOUS and returns immediately after adding the data to TX queue.
+     * Returns the next packet of the firmware image being uploaded. Packets sent again are taken from {@link #mPacketHistory}, new ones from the
+     * {@link PacketPrefetcher} if the image is read ahead.
+     *
+     * @return the next packet or <code>null</code> if the whole image has been read
+     * @throws IOException if the image could not be read
+     */
+    private byte[] nextPacket() throws IOException {
+        if (mNextPacketOffset < mBytesRead) {
+            final byte[] packet = mPacketHistory.get(mNextPacketOffset);
+            if (packet == null)
+                throw new IOException("Packet at " + mNextPacketOffset + " is no longer available");
+            mNextPacketOffset += packet.length;
+            return packet;
+        }
+
+        final PacketPrefetcher prefetcher = mPrefetcher;
+        final byte[] packet = prefetcher != null ? prefetcher.nextPacket(mPacketSize) : readPacket(mInputStream);
+        if (packet != null) {
+            mPacketHistory.add(mBytesRead, packet);
+            mBytesRead += packet.length;
+            mNextPacketOffset = mBytesRead;
+        }
+        return packet;
+    }
+
+    /**
+     * Returns the next packet of the firmware image. An {@link ImageSource} returns packets without allocating memory, other streams are read
+     * into the packet buffer, which is copied only if the packet is shorter than the buffer.
+     *
+     * @param inputStream the firmware image stream
+     * @return the next packet or <code>null</code> if the whole image has been read
+     * @throws IOException if the stream could not be read
+     */
+    private byte[] readPacket(final InputStream inputStream) throws IOException {
+        if (inputStream instanceof ImageSource)
+            return ((ImageSource) inputStream).nextPacket(mPacketSize);
+
+        if (mBuffer.length != mPacketSize)
+            mBuffer = new byte[mPacketSize];
+        final byte[] buffer = mBuffer;
+        final int size = inputStream.read(buffer);
+        if (size <= 0)
+            return null;
+        if (size == buffer.length)
+            return buffer;
+
+        final byte[] packet = new byte[size];
+        System.arraycopy(buffer, 0, packet, 0, size);
+        return packet;
+    }
+
+    /**
+     * Writes the packet to the characteristic. The maximum size of the packet is 20 bytes, or MTU - 3 if a bigger MTU has been negotiated. This method is ASYNCHRONOUS and returns immediately after adding the data to TX queue.
      *
      * @param gatt           the GATT device
      * @param characteristic the characteristic to write to. Should be the DFU PACKET
-     * @param buffer         the buffer with 1-20 bytes
-     * @param size           the number of bytes from the buffer to send
+     * @param packet         the packet with 1-{@link #mPacketSize} bytes, all of them are sent
      */
-    private void writePacket(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] buffer, final int size) {
-        byte[] locBuffer = buffer;
-        if (buffer.length != size) {
-            locBuffer = new byte[size];
-            System.arraycopy(buffer, 0, locBuffer, 0, size);
+    private void writePacket(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] packet) {
+        //logi("Sending Packet - " + bytesToHex(packet));
+        characteristic.setValue(packet);
+        mPacketWriteTime = SystemClock.elapsedRealtime();
+        mPacketCallbackPending = true;
+        synchronized (mLock) {
+            mPacketWriteGenerations.add(mPacketGeneration);
         }
-
-        //logi("Sending Packet - " + bytesToHex(locBuffer));
-        characteristic.setValue(locBuffer);
-        gatt.writeCharacteristic(characteristic);
-        // FIXME BLE buffer overflow
-        // after writing to the device with WRITE_NO_RESPONSE property the onCharacteristicWrite callback is received immediately after writing data to a buffer.
-        // The real sending is much slower than adding to the buffer. This method does not return false if writing didn't succeed.. just the callback is not invoked.
+        if (!gatt.writeCharacteristic(characteristic)) {
+            logw("Packet could not be written");
+            if (mPrnWindow != null)
+                mPrnWindow.onError();
+            // The packet has not been queued, the upload thread writes it again
+            synchronized (mLock) {
+                mPacketWriteGenerations.pollLast();
+                mNextPacketOffset -= packet.length;
+                mPacketCallbackPending = false;
+                mPacketWriteFailed = true;
+                mLock.notifyAll();
+            }
+        }
+        // After writing to the device with WRITE_NO_RESPONSE property the onCharacteristicWrite callback is received immediately after writing data to a buffer.
+        // The real sending is much slower than adding to the buffer. On some chipsets the packet, or just its callback, is lost without an error.
+        // Such packets are found by the upload thread, see resendLostPackets(...).
         //
         // More info: this works fine on Nexus 5 (Android 4.4) (4.3 seconds) and on Samsung S4 (Android 4.3) (20 seconds) so this is a driver issue.
         // Nexus 4 and 7 uses Qualcomm chip, Nexus 5 and Samsung uses Broadcom chips.
     }
 
+    /**
+     * Waits on {@link #mLock} for a GATT callback. Must be called holding the lock, in a loop that ends when {@link #mError} is set.
+     * <p>
+     * This is the watchdog of in-flight requests. If no GATT callback comes in the given time while the upload is not paused, the request is cancelled by
+     * setting {@link #ERROR_GATT_STALLED}, so the waiting method throws {@link DfuException}. The GATT is closed then and phase 3 is restarted on a fresh
+     * connection, at most {@link #MAX_STALL_RECONNECTS} times.
+     * </p>
+     *
+     * @param timeout the time in milliseconds without any GATT callback
+     * @throws InterruptedException
+     */
+    private void waitForCallback(final long timeout) throws InterruptedException {
+        if (mPaused) {
+            mLock.wait();
+            return;
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        mLock.wait(timeout);
+        if (!mPaused && mError == 0 && SystemClock.elapsedRealtime() - Math.max(start, mLastCallbackTime) >= timeout) {
+            logw("No GATT callback for " + timeout + " ms");
+            sendLogBroadcast(LOG_LEVEL_WARNING, "GATT request stalled, cancelling it");
+            mError = ERROR_GATT_STALLED;
+        }
+    }
+
     private void waitIfPaused() {
         synchronized (mLock) {
             try {
@@ -3057,7 +3950,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((mReceivedData == null && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    waitForCallback(OPERATION_STALL_TIMEOUT);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -3142,6 +4035,7 @@ public abstract class DfuBaseService extends IntentService {
         broadcast.putExtra(EXTRA_PARTS_TOTAL, mPartsTotal);
         broadcast.putExtra(EXTRA_SPEED_B_PER_MS, speed);
         broadcast.putExtra(EXTRA_AVG_SPEED_B_PER_MS, avgSpeed);
+        broadcast.putExtra(EXTRA_PRN_WINDOW, mPrnWindow != null ? mPrnWindow.getWindow() : 0);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
     }
 
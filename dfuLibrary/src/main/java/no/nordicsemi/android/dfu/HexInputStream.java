@@ -24,11 +24,11 @@ package no.nordicsemi.android.dfu;
 
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import no.nordicsemi.android.dfu.exception.HexFileValidationException;
 
@@ -39,211 +39,256 @@ import no.nordicsemi.android.dfu.exception.HexFileValidationException;
  * In nRF51 chips memory a SoftDevice starts at address 0x1000. From 0x0000 to 0x1000 there is MBR sector (since SoftDevice 7.0.0) which should not be transmitted using DFU. Therefore this class skips
  * all data from addresses below 0x1000.
  * </p>
+ * <p>
+ * The HEX file is decoded in a single pass when the stream is created. The source is read in blocks of {@link #BLOCK_SIZE} bytes, each pair of
+ * HEX characters is converted using a lookup table and the checksum of every record is validated. The BIN content is kept in memory, so
+ * {@link #sizeInBytes()} is known up front and {@link #readPacket(byte[])} is a plain array copy.
+ * </p>
+ * <p>
+ * A hole between two runs of data records is filled with 0xFF, the value of erased flash, so every record stays at its address. A data record placed
+ * below the end of the previous one can not be represented in the BIN content and the file is rejected.
+ * </p>
  */
-public class HexInputStream extends FilterInputStream {
-	private final int LINE_LENGTH = 128;
-
-	private final byte[] localBuf;
-	private int localPos;
-	private int pos;
-	private int size;
-	private int lastAddress;
-	private int available, bytesRead;
+public class HexInputStream extends FilterInputStream implements ImageSource {
+	private static final String TAG = "HexInputStrem";
+
+	/** Number of bytes read from the underlying stream at once. */
+	private static final int BLOCK_SIZE = 8192;
+	/** Initial capacity of the BIN buffer, grown when needed. */
+	private static final int INITIAL_BIN_SIZE = 32 * 1024;
+	/** The value of erased flash. */
+	private static final byte ERASED = (byte) 0xFF;
+	/** Maps an ASCII character to its HEX nibble value, or -1 if the character is not a HEX digit. */
+	private static final byte[] HEX_VALUES = new byte[256];
+
+	static {
+		for (int i = 0; i < HEX_VALUES.length; ++i)
+			HEX_VALUES[i] = -1;
+		for (int i = '0'; i <= '9'; ++i)
+			HEX_VALUES[i] = (byte) (i - '0');
+		for (int i = 'A'; i <= 'F'; ++i)
+			HEX_VALUES[i] = (byte) (i - 'A' + 10);
+		for (int i = 'a'; i <= 'f'; ++i)
+			HEX_VALUES[i] = (byte) (i - 'a' + 10);
+	}
+
 	private final int MBRSize;
 
+	/** Decoding state, only used while the constructor is parsing the HEX file. */
+	private byte[] block;
+	private int blockPos, blockLength;
+
+	private byte[] bin;
+	private int available, bytesRead;
+	private final PacketPool pool = new PacketPool();
+
+	protected HexInputStream(final InputStream in) throws HexFileValidationException, IOException {
+		super(in);
+		this.MBRSize = -1;
+		decode(true);
+		Log.d(TAG, "calculateBinSizeAlternative = " + this.available / 1024 + "Kb");
+	}
 
-    protected HexInputStream(final InputStream in) throws HexFileValidationException, IOException {
-        super(new BufferedInputStream(in));
-        this.localBuf = new byte[LINE_LENGTH];
-        this.localPos = LINE_LENGTH; // we are at the end of the local buffer, new one must be obtained
-        this.size = localBuf.length;
-        this.lastAddress = 0;
-        this.MBRSize = -1;
-        this.available = calculateBinSizeAlternative();
-        Log.d("HexInputStrem", "calculateBinSizeAlternative = " + this.available/1024 + "Kb");
-    }
-
-    /**
-     * Creates the HEX Input Stream. The constructor calculates the size of the BIN content which is available through {@link #sizeInBytes()}. If HEX file is invalid then the bin size is 0.
-     *
-     * @param in
-     *            the input stream to read from
-     * @param mbrSize
-     *            The MBR (Master Boot Record) size in bytes. Data with addresses below than number will be trimmed and not transferred to DFU target.
-     * @throws HexFileValidationException
-     *             if HEX file is invalid. F.e. there is no semicolon (':') on the beginning of each line.
-     * @throws java.io.IOException
-     *             if the stream is closed or another IOException occurs.
-     */
-    protected HexInputStream(final InputStream in, final int mbrSize) throws HexFileValidationException, IOException {
-        super(new BufferedInputStream(in));
-        this.localBuf = new byte[LINE_LENGTH];
-        this.localPos = LINE_LENGTH; // we are at the end of the local buffer, new one must be obtained
-        this.size = localBuf.length;
-        this.lastAddress = 0;
-        this.MBRSize = mbrSize;
-
-        this.available = calculateBinSize(mbrSize);
-        Log.d("HexInputStrem", "calculateBinSize = " + this.available/1024 + "Kb");
-    }
+	/**
+	 * Creates the HEX Input Stream. The constructor calculates the size of the BIN content which is available through {@link #sizeInBytes()}. If HEX file is invalid then the bin size is 0.
+	 *
+	 * @param in
+	 *            the input stream to read from
+	 * @param mbrSize
+	 *            The MBR (Master Boot Record) size in bytes. Data with addresses below than number will be trimmed and not transferred to DFU target.
+	 * @throws HexFileValidationException
+	 *             if HEX file is invalid. F.e. there is no semicolon (':') on the beginning of each line.
+	 * @throws java.io.IOException
+	 *             if the stream is closed or another IOException occurs.
+	 */
+	protected HexInputStream(final InputStream in, final int mbrSize) throws HexFileValidationException, IOException {
+		super(in);
+		this.MBRSize = mbrSize;
+		decode(true);
+		Log.d(TAG, "calculateBinSize = " + this.available / 1024 + "Kb");
+	}
 
 	protected HexInputStream(final byte[] data, final int mbrSize) throws HexFileValidationException, IOException {
 		super(new ByteArrayInputStream(data));
-		this.localBuf = new byte[LINE_LENGTH];
-		this.localPos = LINE_LENGTH; // we are at the end of the local buffer, new one must be obtained
-		this.size = localBuf.length;
-		this.lastAddress = 0;
 		this.MBRSize = mbrSize;
+		decode(true);
+		Log.d(TAG, "calculateBinSize = " + this.available / 1024 + "Kb");
+	}
 
-		this.available = calculateBinSize(mbrSize);
-        Log.d("HexInputStrem", "calculateBinSize = " + this.available/1024 + "Kb");
+	private HexInputStream(final InputStream in, final int mbrSize, final boolean keepBin) throws HexFileValidationException, IOException {
+		super(in);
+		this.MBRSize = mbrSize;
+		decode(keepBin);
 	}
 
-    private int calculateBinSizeAlternative() throws IOException {
-        int binSize = 0;
-        final InputStream in = this.in;
-        in.mark(in.available());
-
-        int b, lineSize, offset, type;
-        int lastBaseAddress = 0; // last Base Address, default 0
-        int lastAddress;
-        try {
-            b = in.read();
-            while (true) {
-                checkComma(b);
-
-                lineSize = readByte(in); // reading the length of the data in this line
-                offset = readAddress(in);// reading the offset
-                type = readByte(in); // reading the line type
-                switch (type) {
-                    case 0x01:
-                        // end of file
-                        return binSize;
-                    case 0x04: {
-                        // extended linear address record
-					/*
-					 * The HEX file may contain jump to different addresses. The MSB of LBA (Linear Base Address) is given using the line type 4.
-					 * We only support files where bytes are located together, no jumps are allowed. Therefore the newULBA may be only lastULBA + 1 (or any, if this is the first line of the HEX)
-					 */
-                        final int newULBA = readAddress(in);
-                        if (binSize > 0 && newULBA != (lastBaseAddress >> 16) + 1)
-                            return binSize;
-                        lastBaseAddress = newULBA << 16;
-						skip(in, 2 /* check sum */);
-                        break;
-                    }
-                    case 0x02: {
-                        // extended segment address record
-                        final int newSBA = readAddress(in) << 4;
-                        if (binSize > 0 && (newSBA >> 16) != (lastBaseAddress >> 16) + 1)
-                            return binSize;
-                        lastBaseAddress = newSBA;
-                        skip(in, 2 /* check sum */);
-                        break;
-                    }
-                    case 0x00:
-                        // data type line
-                        lastAddress = lastBaseAddress + offset;
-                        if (lastAddress >= DfuSettingsConstants.APP_CODE_BASE_START && lastAddress < DfuSettingsConstants.APP_CODE_BASE_END)
-                        {
-                            //Log.d("HexInputStrem", "Found FOTA Start address");
-                            binSize += lineSize;
-                        }
-                        // no break!
-                    default:
-                        skip(in, lineSize * 2 /* 2 hex per one byte */+ 2 /* check sum */);
-                        break;
-                }
-                // skip end of line
-                while (true) {
-                    b = in.read();
-
-                    if (b != '\n' && b != '\r') {
-                        break;
-                    }
-                }
-            }
-        } finally {
-            in.reset();
-        }
-    }
-
-    private int calculateBinSize(final int mbrSize) throws IOException {
-		int binSize = 0;
-		final InputStream in = this.in;
-		in.mark(in.available());
+	/**
+	 * Calculates the size of the BIN content of the HEX file without keeping the content in memory. The stream is read to the end of the HEX file.
+	 *
+	 * @param in
+	 *            the input stream to read from
+	 * @param mbrSize
+	 *            The MBR (Master Boot Record) size in bytes, see {@link #HexInputStream(InputStream, int)}.
+	 * @return the number of bytes a HexInputStream created from the same HEX file will return
+	 * @throws HexFileValidationException
+	 *             if HEX file is invalid
+	 * @throws java.io.IOException
+	 *             if the stream is closed or another IOException occurs.
+	 */
+	/* package */ static int calculateBinSize(final InputStream in, final int mbrSize) throws HexFileValidationException, IOException {
+		return new HexInputStream(in, mbrSize, false).available;
+	}
+
+	/**
+	 * Decodes the whole HEX file into the BIN buffer, or only counts the BIN bytes if <code>keepBin</code> is <code>false</code>. Data records outside of the address window are skipped: below the MBR when the MBR size
+	 * was given, or outside of {@link DfuSettingsConstants#APP_CODE_BASE_START} - {@link DfuSettingsConstants#APP_CODE_BASE_END} otherwise.
+	 *
+	 * @throws HexFileValidationException
+	 *             if a record does not start with ':', contains a non HEX character, has an invalid checksum, overlaps the previous data or the file ends
+	 *             without the End Of File record.
+	 * @throws java.io.IOException
+	 *             if the stream is closed or another IOException occurs.
+	 */
+	private void decode(final boolean keepBin) throws IOException {
+		block = new byte[BLOCK_SIZE];
+		bin = keepBin ? new byte[INITIAL_BIN_SIZE] : null;
+		final byte[] record = new byte[255];
 
-		int b, lineSize, offset, type;
-		int lastBaseAddress = 0; // last Base Address, default 0 
-		int lastAddress;
+		int binSize = 0;
+		int lastBaseAddress = 0; // last Base Address, default 0
+		int binEndAddress = -1; // address following the last data byte in BIN
+		int padding = 0;
 		try {
-			b = in.read();
+			loop:
 			while (true) {
+				// skip end of line
+				int b;
+				do {
+					b = readChar();
+				} while (b == '\n' || b == '\r');
 				checkComma(b);
 
-				lineSize = readByte(in); // reading the length of the data in this line
-				offset = readAddress(in);// reading the offset
-				type = readByte(in); // reading the line type
-				switch (type) {
-				case 0x01:
-					// end of file
-					return binSize;
-				case 0x04: {
-					// extended linear address record
-					/*
-					 * The HEX file may contain jump to different addresses. The MSB of LBA (Linear Base Address) is given using the line type 4.
-					 * We only support files where bytes are located together, no jumps are allowed. Therefore the newULBA may be only lastULBA + 1 (or any, if this is the first line of the HEX)
-					 */
-					final int newULBA = readAddress(in);
-					if (binSize > 0 && newULBA != (lastBaseAddress >> 16) + 1)
-						return binSize;
-					lastBaseAddress = newULBA << 16;
-					skip(in, 2 /* check sum */);
-					break;
-				}
-				case 0x02: {
-					// extended segment address record
-					final int newSBA = readAddress(in) << 4;
-					if (binSize > 0 && (newSBA >> 16) != (lastBaseAddress >> 16) + 1)
-						return binSize;
-					lastBaseAddress = newSBA;
-					skip(in, 2 /* check sum */);
-					break;
+				/*
+				 * Each line starts with comma (':')
+				 * Data is written in HEX, so each 2 ASCII letters give one byte.
+				 * After the comma there is one byte (2 HEX signs) with line length (normally 10 -> 0x10 -> 16 bytes -> 32 HEX characters)
+				 * After that there is a 2 byte of an address and 1 byte of the record type. 00 is the valid data.
+				 * Then goes n bytes of data followed by 1 byte (2 HEX chars) of checksum. The sum of all bytes of the record, including the checksum, must be 0.
+				 */
+				final int lineSize = readByte();
+				final int addressHigh = readByte();
+				final int addressLow = readByte();
+				final int type = readByte();
+				int checksum = lineSize + addressHigh + addressLow + type;
+				for (int i = 0; i < lineSize; ++i) {
+					final int value = readByte();
+					record[i] = (byte) value;
+					checksum += value;
 				}
-				case 0x00:
-					// data type line
- 					lastAddress = lastBaseAddress + offset;
-					if (lastAddress >= mbrSize) // we must skip all data from below last MBR address (default 0x1000) as those are the MBR. The Soft Device starts at the end of MBR (0x1000), the app and bootloader farther more
-						binSize += lineSize;
-					// no break!
-				default:
-					skip(in, lineSize * 2 /* 2 hex per one byte */ + 2 /* check sum */);
-					break;
-				}
-				// skip end of line
-				while (true) {
-					b = in.read();
+				checksum += readByte();
+				if ((checksum & 0xFF) != 0)
+					throw new HexFileValidationException("Invalid checksum");
 
-					if (b != '\n' && b != '\r') {
+				switch (type) {
+					case 0x00: {
+						// data type line
+						final int address = lastBaseAddress + (addressHigh << 8 | addressLow);
+						final boolean inWindow;
+						if (MBRSize == -1) // This is for fixed address case
+							inWindow = address >= DfuSettingsConstants.APP_CODE_BASE_START && address < DfuSettingsConstants.APP_CODE_BASE_END;
+						else // we must skip all data from below last MBR address (default 0x1000) as those are the MBR
+							inWindow = address >= MBRSize;
+						if (inWindow) {
+							final int hole = binEndAddress == -1 ? 0 : address - binEndAddress;
+							if (hole < 0)
+								throw new HexFileValidationException("Data record at 0x" + Integer.toHexString(address) + " overlaps the previous data");
+							if (hole > 0 && keepBin) {
+								ensureCapacity(binSize + hole);
+								Arrays.fill(bin, binSize, binSize + hole, ERASED);
+							}
+							binSize += hole;
+							padding += hole;
+							if (keepBin) {
+								ensureCapacity(binSize + lineSize);
+								System.arraycopy(record, 0, bin, binSize, lineSize);
+							}
+							binSize += lineSize;
+							binEndAddress = address + lineSize;
+						}
+						break;
+					}
+					case 0x01:
+						// end of file
+						break loop;
+					case 0x02: {
+						// extended segment address record
+						final int newSBA = (record[0] & 0xFF) << 12 | (record[1] & 0xFF) << 4;
+						if (binSize > 0 && (newSBA >> 16) != (lastBaseAddress >> 16) + 1)
+							break loop;
+						lastBaseAddress = newSBA;
+						break;
+					}
+					case 0x04: {
+						// extended linear address record
+						/*
+						 * The HEX file may contain jump to different addresses. The MSB of LBA (Linear Base Address) is given using the line type 4.
+						 * We only support files where bytes are located together, no jumps are allowed. Therefore the newULBA may be only lastULBA + 1 (or any, if this is the first line of the HEX)
+						 */
+						final int newULBA = (record[0] & 0xFF) << 8 | (record[1] & 0xFF);
+						if (binSize > 0 && newULBA != (lastBaseAddress >> 16) + 1)
+							break loop;
+						lastBaseAddress = newULBA << 16;
 						break;
 					}
+					default:
+						// other record types do not carry BIN data
+						break;
 				}
 			}
 		} finally {
-			in.reset();
+			block = null;
 		}
+		available = binSize;
+		if (padding > 0 && keepBin)
+			Log.d(TAG, padding + " bytes of holes filled");
+	}
+
+	private void ensureCapacity(final int capacity) {
+		if (capacity <= bin.length)
+			return;
+		final byte[] newBin = new byte[Math.max(capacity, bin.length * 2)];
+		System.arraycopy(bin, 0, newBin, 0, bin.length);
+		bin = newBin;
 	}
 
-    private long skip(final InputStream in, final long offset) throws IOException {
-        long skipped = in.skip(offset);
-		int attempts = 10;
-        // try to skip 10 times as skip(..) method does not guarantee to skip exactly given number of bytes
-        while (skipped < offset && attempts > 0) {
-			skipped += in.skip(offset - skipped);
-			attempts--;
+	/**
+	 * Returns the next ASCII character from the block buffer, refilling it from the underlying stream when empty.
+	 *
+	 * @return the next character or -1 if the end of the stream has been reached
+	 */
+	private int readChar() throws IOException {
+		if (blockPos == blockLength) {
+			blockLength = in.read(block, 0, block.length);
+			blockPos = 0;
+			if (blockLength <= 0) {
+				blockLength = 0;
+				return -1;
+			}
 		}
-        return skipped;
-    }
+		return block[blockPos++] & 0xFF;
+	}
+
+	private int readByte() throws IOException {
+		final int first = readChar();
+		final int second = readChar();
+		if (first == -1 || second == -1)
+			throw new HexFileValidationException("Unexpected end of HEX file");
+
+		final int high = HEX_VALUES[first];
+		final int low = HEX_VALUES[second];
+		if ((high | low) < 0)
+			throw new HexFileValidationException("Invalid HEX character");
+		return high << 4 | low;
+	}
 
 	@Override
 	public int available() {
@@ -257,18 +302,27 @@ public class HexInputStream extends FilterInputStream {
 	 * @throws java.io.IOException
 	 */
 	public int readPacket(byte[] buffer) throws HexFileValidationException, IOException {
-		int i = 0;
-		while (i < buffer.length) {
-			if (localPos < size) {
-				buffer[i++] = localBuf[localPos++];
-				continue;
-			}
+		final int size = Math.min(buffer.length, available - bytesRead);
+		System.arraycopy(bin, bytesRead, buffer, 0, size);
+		bytesRead += size;
+		return size;
+	}
 
-			bytesRead += size = readLine();
-			if (size == 0)
-				break; // end of file reached
-		}
-		return i;
+	@Override
+	public byte[] nextPacket(final int maxSize) {
+		final int size = Math.min(maxSize, available - bytesRead);
+		if (size == 0)
+			return null;
+
+		final byte[] packet = pool.obtain(size);
+		System.arraycopy(bin, bytesRead, packet, 0, size);
+		bytesRead += size;
+		return packet;
+	}
+
+	@Override
+	public boolean isRandomAccess() {
+		return true;
 	}
 
 	@Override
@@ -283,7 +337,13 @@ public class HexInputStream extends FilterInputStream {
 
 	@Override
 	public int read(byte[] buffer, int offset, int count) throws IOException {
-		throw new UnsupportedOperationException("Please, use readPacket() method instead");
+		final int size = Math.min(count, available - bytesRead);
+		if (size == 0 && count > 0)
+			return -1;
+
+		System.arraycopy(bin, bytesRead, buffer, offset, size);
+		bytesRead += size;
+		return size;
 	}
 
 	/**
@@ -309,142 +369,18 @@ public class HexInputStream extends FilterInputStream {
 		return sizeInBytes / packetSize + ((sizeInBytes % packetSize) > 0 ? 1 : 0);
 	}
 
-	/**
-	 * Reads new line from the input stream. Input stream must be a HEX file. The first line is always skipped.
-	 * 
-	 * @return the number of data bytes in the new line. 0 if end of file.
-	 * @throws java.io.IOException
-	 *             if this stream is closed or another IOException occurs.
-	 */
-	private int readLine() throws IOException {
-		// end of file reached
-		if (pos == -1)
-			return 0;
-		final InputStream in = this.in;
-
-		// temporary value
-		int b;
-
-		int lineSize, type, offset;
-		do {
-			// skip end of line
-			while (true) {
-				b = in.read();
-				pos++;
-
-				if (b != '\n' && b != '\r') {
-					break;
-				}
-			}
-
-			/*
-			 * Each line starts with comma (':')
-			 * Data is written in HEX, so each 2 ASCII letters give one byte.
-			 * After the comma there is one byte (2 HEX signs) with line length (normally 10 -> 0x10 -> 16 bytes -> 32 HEX characters)
-			 * After that there is a 4 byte of an address. This part may be skipped.
-			 * There is a packet type after the address (1 byte = 2 HEX characters). 00 is the valid data. Other values can be skipped when
-			 * converting to BIN file.
-			 * Then goes n bytes of data followed by 1 byte (2 HEX chars) of checksum, which is also skipped in BIN file.
-			 */
-			checkComma(b); // checking the comma at the beginning
-			lineSize = readByte(in); // reading the length of the data in this line
-			pos += 2;
-			offset = readAddress(in);// reading the offset
-			pos += 4;
-			type = readByte(in); // reading the line type
-			pos += 2;
-
-			// if the line type is no longer data type (0x00), we've reached the end of the file
-			switch (type) {
-			case 0x00:
-				// data type
-                if (MBRSize == -1){ //This is for fixed address case
-                    int fullAddress = lastAddress + offset ;
-                    if (fullAddress < DfuSettingsConstants.APP_CODE_BASE_START || fullAddress >= DfuSettingsConstants.APP_CODE_BASE_END){ //Skip Non Fota
-                        type = -1; // some other than 0
-                        pos += skip(in, lineSize * 2 /* 2 hex per one byte */ + 2 /* check sum */);
-                    }
-
-                } else {
-                    if (lastAddress + offset < MBRSize) { // skip MBR
-                        type = -1; // some other than 0
-                        pos += skip(in, lineSize * 2 /* 2 hex per one byte */ + 2 /* check sum */);
-                    }
-                }
-				break;
-			case 0x01:
-				// end of file
-				pos = -1;
-				return 0;
-			case 0x02: {
-				// extended segment address
-				final int address = readAddress(in) << 4;
-				pos += 4;
-				if (bytesRead > 0 && (address >> 16) != (lastAddress >> 16) + 1)
-					return 0;
-				lastAddress = address;
-				pos += skip(in, 2 /* check sum */);
-				break;
-			}
-			case 0x04: {
-				// extended linear address
-				final int address = readAddress(in);
-				pos += 4;
-				if (bytesRead > 0 && address != (lastAddress >> 16) + 1)
-					return 0;
-				lastAddress = address << 16;
-				pos += skip(in, 2 /* check sum */);
-				break;
-			}
-			default:
-				pos += skip(in, lineSize * 2 /* 2 hex per one byte */ + 2 /* check sum */);
-				break;
-			}
-		} while (type != 0);
-
-		// otherwise read lineSize bytes or fill the whole buffer
-		for (int i = 0; i < localBuf.length && i < lineSize; ++i) {
-			b = readByte(in);
-			pos += 2;
-			localBuf[i] = (byte) b;
-		}
-		pos += skip(in, 2); // skip the checksum
-		localPos = 0;
-
-		return lineSize;
-	}
-
 	@Override
 	public synchronized void reset() throws IOException {
-		super.reset();
-
-		pos = 0;
 		bytesRead = 0;
-		localPos = 0;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
 	}
 
 	private void checkComma(final int comma) throws HexFileValidationException {
 		if (comma != ':')
 			throw new HexFileValidationException("Not a HEX file");
 	}
-
-	private int readByte(final InputStream in) throws IOException {
-		final int first = asciiToInt(in.read());
-		final int second = asciiToInt(in.read());
-
-		return first << 4 | second;
-	}
-
-	private int readAddress(final InputStream in) throws IOException {
-		return readByte(in) << 8 | readByte(in);
-	}
-
-	private int asciiToInt(final int ascii) {
-		if (ascii >= 'A')
-			return ascii - 0x37;
-
-		if (ascii >= '0')
-			return ascii - '0';
-		return -1;
-	}
 }
@@ -0,0 +1,51 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import java.io.IOException;
+
+/**
+ * A source of firmware image packets. The packets are returned as arrays owned by the source, so no memory has to be allocated for each packet sent.
+ */
+/* package */ interface ImageSource {
+
+	/**
+	 * Returns the next packet of the firmware image. The length of the returned array is the packet length. The array is reused by the source,
+	 * so its content must not be used after this method is called again.
+	 *
+	 * @param maxSize
+	 *            the maximum packet size
+	 * @return the next packet, or <code>null</code> if the whole image has been read
+	 * @throws java.io.IOException
+	 *             if the image could not be read
+	 */
+	byte[] nextPacket(final int maxSize) throws IOException;
+
+	/**
+	 * Returns whether the whole image is already in memory, decoded or mapped, so {@link #nextPacket(int)} only copies the packet. Otherwise the image
+	 * is read or decoded while packets are taken and it is worth reading it ahead, see {@link PacketPrefetcher}.
+	 *
+	 * @return <code>true</code> if packets are taken from an image in memory
+	 */
+	boolean isRandomAccess();
+}
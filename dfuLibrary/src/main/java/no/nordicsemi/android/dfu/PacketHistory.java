@@ -0,0 +1,83 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import java.util.Arrays;
+
+/**
+ * Keeps copies of the recently written firmware packets, so they can be sent again when their write has been lost.
+ * <p>
+ * With write without response the write callback only means that the packet has been queued, and on some chipsets the packet, or just its callback,
+ * is lost without an error. The DFU target then reports how many bytes it has received and the packets from that offset are taken from the history.
+ * The history is a ring, only the last {@code capacity} packets are kept.
+ * </p>
+ */
+/* package */ class PacketHistory {
+	private final byte[][] mPackets;
+	private final int[] mOffsets;
+	private int mNext;
+
+	/**
+	 * Creates the history.
+	 *
+	 * @param capacity
+	 *            the number of packets kept
+	 */
+	/* package */ PacketHistory(final int capacity) {
+		mPackets = new byte[capacity][];
+		mOffsets = new int[capacity];
+		Arrays.fill(mOffsets, -1);
+	}
+
+	/**
+	 * Adds a copy of the packet, replacing the oldest one.
+	 *
+	 * @param offset
+	 *            the offset of the packet in the firmware image
+	 * @param packet
+	 *            the packet, it is copied as it may be reused by its source
+	 */
+	/* package */ void add(final int offset, final byte[] packet) {
+		byte[] copy = mPackets[mNext];
+		if (copy == null || copy.length != packet.length)
+			copy = mPackets[mNext] = new byte[packet.length];
+		System.arraycopy(packet, 0, copy, 0, packet.length);
+		mOffsets[mNext] = offset;
+		mNext = (mNext + 1) % mPackets.length;
+	}
+
+	/**
+	 * Returns the packet starting at the given offset.
+	 *
+	 * @param offset
+	 *            the offset of the packet in the firmware image
+	 * @return the packet, or <code>null</code> if it is not in the history
+	 */
+	/* package */ byte[] get(final int offset) {
+		for (int i = 0; i < mOffsets.length; ++i) {
+			if (mOffsets[i] == offset)
+				return mPackets[i];
+		}
+		return null;
+	}
+}
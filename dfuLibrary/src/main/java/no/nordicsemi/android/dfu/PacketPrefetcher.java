@@ -0,0 +1,202 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the firmware image ahead on a separate thread into a ring of packets ready to be sent.
+ * <p>
+ * Packets are sent from GATT callbacks. Reading the next packet there puts the image decoding, f.e. inflating a ZIP entry, between two packet writes,
+ * so the link sits idle while it is done. The prefetcher keeps up to {@link #SLOTS} - 1 packets decoded, so a callback only takes the next one.
+ * A packet returned by {@link #nextPacket(int)} stays valid until the method is called again, as required by {@link ImageSource}.
+ * </p>
+ */
+/* package */ class PacketPrefetcher implements ImageSource, Runnable {
+	private static final String TAG = "DfuPacketPrefetcher";
+
+	/** The number of packet buffers in the ring. */
+	private static final int SLOTS = 16;
+	/** The maximum time in milliseconds to wait for the reading thread to finish when closing. */
+	private static final long CLOSE_TIMEOUT = 1000;
+
+	private final InputStream mInputStream;
+	private final int mPacketSize;
+	private final byte[][] mSlots;
+	private final int[] mLengths = new int[SLOTS];
+	private final PacketPool mPool = new PacketPool();
+	private final Thread mThread;
+
+	/** Packets are read into slots from mWriteIndex and taken from mReadIndex, both grow monotonically. */
+	private int mWriteIndex, mReadIndex;
+	/** Set when the packet at mReadIndex has been returned and is released by the next call. */
+	private boolean mPacketTaken;
+	private boolean mFinished, mClosed;
+	private IOException mError;
+
+	/**
+	 * Creates the prefetcher and starts reading packets.
+	 *
+	 * @param inputStream
+	 *            the firmware image stream, read only by the prefetcher from now on
+	 * @param packetSize
+	 *            the size of packets, only the last packet of the image may be shorter
+	 */
+	/* package */ PacketPrefetcher(final InputStream inputStream, final int packetSize) {
+		mInputStream = inputStream;
+		mPacketSize = packetSize;
+		mSlots = new byte[SLOTS][packetSize];
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				final byte[] slot;
+				synchronized (this) {
+					while (mWriteIndex - mReadIndex == SLOTS && !mClosed)
+						wait();
+					if (mClosed)
+						return;
+					slot = mSlots[mWriteIndex % SLOTS];
+				}
+
+				// Read outside of the lock, the callback may take ready packets meanwhile
+				final int length = read(slot);
+
+				synchronized (this) {
+					if (length <= 0) {
+						mFinished = true;
+						notifyAll();
+						return;
+					}
+					mLengths[mWriteIndex % SLOTS] = length;
+					mWriteIndex++;
+					notifyAll();
+				}
+			}
+		} catch (final IOException e) {
+			synchronized (this) {
+				mError = e;
+				notifyAll();
+			}
+		} catch (final InterruptedException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Reads the next packet into the slot.
+	 *
+	 * @return the number of bytes read, 0 at the end of the image
+	 */
+	private int read(final byte[] slot) throws IOException {
+		if (mInputStream instanceof ImageSource) {
+			final byte[] packet = ((ImageSource) mInputStream).nextPacket(mPacketSize);
+			if (packet == null)
+				return 0;
+			System.arraycopy(packet, 0, slot, 0, packet.length);
+			return packet.length;
+		}
+
+		int length = 0;
+		while (length < slot.length) {
+			final int size = mInputStream.read(slot, length, slot.length - length);
+			if (size <= 0)
+				break;
+			length += size;
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the next packet. Waits only if the reading thread has not caught up with the upload.
+	 *
+	 * @param maxSize
+	 *            ignored, the packets have the size given in the constructor
+	 * @return the next packet, or <code>null</code> if the whole image has been sent or the prefetcher has been closed
+	 * @throws java.io.IOException
+	 *             if the image could not be read
+	 */
+	@Override
+	public synchronized byte[] nextPacket(final int maxSize) throws IOException {
+		if (mPacketTaken) {
+			mPacketTaken = false;
+			mReadIndex++;
+			notifyAll();
+		}
+
+		try {
+			while (mReadIndex == mWriteIndex && !mFinished && mError == null && !mClosed)
+				wait();
+		} catch (final InterruptedException e) {
+			Log.w(TAG, "Waiting for packet interrupted");
+		}
+
+		if (mClosed)
+			return null;
+		if (mReadIndex == mWriteIndex) {
+			if (mError != null)
+				throw mError;
+			return null;
+		}
+
+		mPacketTaken = true;
+		final int slot = mReadIndex % SLOTS;
+		final byte[] packet = mSlots[slot];
+		final int length = mLengths[slot];
+		if (length == packet.length)
+			return packet;
+
+		// Only the last packet is shorter
+		final byte[] lastPacket = mPool.obtain(length);
+		System.arraycopy(packet, 0, lastPacket, 0, length);
+		return lastPacket;
+	}
+
+	@Override
+	public boolean isRandomAccess() {
+		return true;
+	}
+
+	/**
+	 * Stops reading. Must be called before the image stream is closed.
+	 */
+	/* package */ void close() {
+		synchronized (this) {
+			mClosed = true;
+			notifyAll();
+		}
+
+		try {
+			mThread.join(CLOSE_TIMEOUT);
+		} catch (final InterruptedException e) {
+			Log.w(TAG, "Waiting for prefetcher interrupted");
+		}
+	}
+}
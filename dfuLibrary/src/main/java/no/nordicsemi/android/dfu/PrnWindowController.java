@@ -0,0 +1,164 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import android.os.SystemClock;
+
+/**
+ * Controls how many packets may be sent before the service waits for a Packet Receipt Notification (PRN).
+ * <p>
+ * The DFU target sends a PRN after every {@code packetsPerReceipt} packets. The window starts at this value and, similar to TCP congestion control,
+ * grows by one packet for each receipt that arrives quickly and is halved when the receipt latency grows or a packet write fails. The window never
+ * exceeds {@link #MAX_RECEIPTS_IN_WINDOW} receipt intervals, so at most one receipt is outstanding when the next one is due.
+ * </p>
+ * <p>
+ * The window may shrink below the receipt interval, down to {@link #MIN_WINDOW}. The target would not send a PRN then, so the service has to ask it for
+ * the number of bytes received instead, see {@link #isBelowReceiptInterval()}.
+ * </p>
+ */
+/* package */ class PrnWindowController {
+	/** The maximum window, in number of PRN intervals. */
+	private static final int MAX_RECEIPTS_IN_WINDOW = 2;
+	/** The minimum window, in packets. */
+	private static final int MIN_WINDOW = 1;
+	/** A receipt with the latency below the minimum latency multiplied by this value allows the window to grow. */
+	private static final int GROW_LATENCY_FACTOR = 2;
+	/** A receipt with the latency above the minimum latency multiplied by this value shrinks the window. */
+	private static final int SHRINK_LATENCY_FACTOR = 4;
+
+	private final int mReceiptInterval;
+	private final int mMaxWindow;
+	private int mWindow;
+
+	/** Offsets of the end of the recently sent packets and times when they were sent, used to measure the receipt latency. */
+	private final int[] mPacketEnds;
+	private final long[] mPacketTimes;
+	private int mPacketIndex;
+	private long mMinLatency = Long.MAX_VALUE;
+
+	/**
+	 * Creates the controller.
+	 *
+	 * @param packetsPerReceipt
+	 *            the number of packets after which the DFU target sends a PRN, must be greater than 0
+	 */
+	/* package */ PrnWindowController(final int packetsPerReceipt) {
+		mReceiptInterval = packetsPerReceipt;
+		mMaxWindow = packetsPerReceipt * MAX_RECEIPTS_IN_WINDOW;
+		mWindow = packetsPerReceipt;
+		mPacketEnds = new int[mMaxWindow + 1];
+		mPacketTimes = new long[mMaxWindow + 1];
+	}
+
+	/**
+	 * Returns the current window, the number of packets that may be sent and not yet confirmed.
+	 */
+	/* package */ int getWindow() {
+		return mWindow;
+	}
+
+	/**
+	 * Returns the maximum window, in packets.
+	 */
+	/* package */ int getMaxWindow() {
+		return mMaxWindow;
+	}
+
+	/**
+	 * Returns whether the window is smaller than the PRN interval. When it gets full, no PRN will arrive and the number of bytes received has to be
+	 * read from the DFU target.
+	 */
+	/* package */ boolean isBelowReceiptInterval() {
+		return mWindow < mReceiptInterval;
+	}
+
+	/**
+	 * Returns whether another packet may be sent.
+	 *
+	 * @param bytesSent
+	 *            the number of bytes sent
+	 * @param bytesConfirmed
+	 *            the number of bytes confirmed by the last PRN
+	 * @param packetSize
+	 *            the packet size
+	 * @return <code>true</code> if the window allows sending another packet
+	 */
+	/* package */ boolean canSend(final int bytesSent, final int bytesConfirmed, final int packetSize) {
+		final int packetsInFlight = (bytesSent - bytesConfirmed + packetSize - 1) / packetSize;
+		return packetsInFlight < mWindow;
+	}
+
+	/**
+	 * Records the time the packet has been sent.
+	 *
+	 * @param bytesSent
+	 *            the number of bytes sent, including this packet
+	 */
+	/* package */ void onPacketSent(final int bytesSent) {
+		mPacketEnds[mPacketIndex] = bytesSent;
+		mPacketTimes[mPacketIndex] = elapsedRealtime();
+		mPacketIndex = (mPacketIndex + 1) % mPacketEnds.length;
+	}
+
+	/**
+	 * Updates the window based on the latency of the receipt.
+	 *
+	 * @param bytesConfirmed
+	 *            the number of bytes confirmed by the PRN, or reported by the DFU target when asked
+	 */
+	/* package */ void onReceipt(final int bytesConfirmed) {
+		long sentTime = -1;
+		for (int i = 0; i < mPacketEnds.length; ++i) {
+			if (mPacketEnds[i] == bytesConfirmed) {
+				sentTime = mPacketTimes[i];
+				break;
+			}
+		}
+		if (sentTime < 0)
+			return; // the packet is not known, f.e. it was sent before the window has been shrunk
+
+		final long latency = elapsedRealtime() - sentTime;
+		if (latency < mMinLatency)
+			mMinLatency = latency;
+
+		// 1 ms is added as the latency of a fast connection may be below the clock resolution
+		if (latency > (mMinLatency + 1) * SHRINK_LATENCY_FACTOR)
+			mWindow = Math.max(MIN_WINDOW, mWindow / 2);
+		else if (latency <= (mMinLatency + 1) * GROW_LATENCY_FACTOR)
+			mWindow = Math.min(mMaxWindow, mWindow + 1);
+	}
+
+	/**
+	 * Halves the window after a packet could not be written or has been lost.
+	 */
+	/* package */ void onError() {
+		mWindow = Math.max(MIN_WINDOW, mWindow / 2);
+	}
+
+	/**
+	 * Returns the time in milliseconds used to measure the receipt latency. Tests override it with a controlled clock.
+	 */
+	/* package */ long elapsedRealtime() {
+		return SystemClock.elapsedRealtime();
+	}
+}
@@ -0,0 +1,125 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import java.io.File;
+
+/**
+ * Persists the progress of the firmware upload confirmed by Packet Receipt Notifications, so an upload interrupted by a link loss may be resumed
+ * instead of being started over, also by the next service call.
+ * <p>
+ * The checkpoint is bound to the device address and to the identity of the image, see {@link #identify(String, Uri, int)}. To limit the number
+ * of writes the confirmed offset is stored only every {@link #SAVE_INTERVAL} bytes.
+ * </p>
+ */
+/* package */ class UploadCheckpoint {
+	private static final String PREFS_NAME = "dfu_upload_checkpoint";
+	private static final String KEY_ADDRESS = "address";
+	private static final String KEY_IMAGE = "image";
+	private static final String KEY_SIZE = "size";
+	private static final String KEY_OFFSET = "offset";
+
+	/** The number of confirmed bytes between two writes of the checkpoint. */
+	private static final int SAVE_INTERVAL = 4096;
+
+	private final SharedPreferences mPreferences;
+	private int mSavedOffset;
+
+	/* package */ UploadCheckpoint(final Context context) {
+		mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		mSavedOffset = mPreferences.getInt(KEY_OFFSET, 0);
+	}
+
+	/**
+	 * Returns the identity of the image. A file is identified by its path, length and modification time, so a modified file never matches an old
+	 * checkpoint.
+	 *
+	 * @param filePath
+	 *            the file path, or <code>null</code> if the image is given as URI
+	 * @param fileUri
+	 *            the file URI
+	 * @param fileType
+	 *            the types of images sent from the file
+	 * @return the image identity
+	 */
+	/* package */ static String identify(final String filePath, final Uri fileUri, final int fileType) {
+		if (filePath != null) {
+			final File file = new File(filePath);
+			return filePath + ":" + file.length() + ":" + file.lastModified() + ":" + fileType;
+		}
+		return fileUri + ":" + fileType;
+	}
+
+	/**
+	 * Starts a new checkpoint for the upload of the whole image.
+	 */
+	/* package */ synchronized void start(final String address, final String image, final int size) {
+		mSavedOffset = 0;
+		mPreferences.edit().putString(KEY_ADDRESS, address).putString(KEY_IMAGE, image).putInt(KEY_SIZE, size).putInt(KEY_OFFSET, 0).apply();
+	}
+
+	/**
+	 * Records the number of bytes confirmed by the DFU target.
+	 *
+	 * @param offset
+	 *            the number of bytes confirmed by the last Packet Receipt Notification
+	 */
+	/* package */ synchronized void confirm(final int offset) {
+		if (offset - mSavedOffset < SAVE_INTERVAL)
+			return;
+
+		mSavedOffset = offset;
+		mPreferences.edit().putInt(KEY_OFFSET, offset).apply();
+	}
+
+	/**
+	 * Returns the confirmed offset of the interrupted upload of the given image to the given device.
+	 *
+	 * @return the confirmed number of bytes, or 0 if there is no checkpoint for the image and the device
+	 */
+	/* package */ synchronized int getOffset(final String address, final String image, final int size) {
+		if (!image.equals(mPreferences.getString(KEY_IMAGE, null)) || !address.equals(mPreferences.getString(KEY_ADDRESS, null))
+				|| size != mPreferences.getInt(KEY_SIZE, 0))
+			return 0;
+		return mSavedOffset;
+	}
+
+	/**
+	 * @return <code>true</code> if a part of an image has been confirmed since the checkpoint was started
+	 */
+	/* package */ synchronized boolean hasProgress() {
+		return mSavedOffset > 0;
+	}
+
+	/**
+	 * Removes the checkpoint, f.e. when the upload has completed or failed for other reason than a link loss.
+	 */
+	/* package */ synchronized void clear() {
+		mSavedOffset = 0;
+		mPreferences.edit().clear().apply();
+	}
+}
@@ -215,6 +215,9 @@ public class GattError {
 			case DfuBaseService.ERROR_BLUETOOTH_DISABLED:
 				return "BLUETOOTH ADAPTER DISABLED";
 
+			case DfuBaseService.ERROR_GATT_STALLED:
+				return "DFU GATT REQUEST STALLED";
+
 			default:
 				if ((DfuBaseService.ERROR_REMOTE_MASK & error) > 0) {
 					switch (error & (~DfuBaseService.ERROR_REMOTE_MASK)) {
@@ -0,0 +1,179 @@
+package no.nordicsemi.android.dfu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import no.nordicsemi.android.dfu.exception.HexFileValidationException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HexInputStreamTest {
+	private static final int MBR_SIZE = 0x1000;
+
+	@Test
+	public void concatenatesContiguousRecords() throws IOException {
+		final String hex = data(0x1000, bytes(16, 0x00)) + data(0x1010, bytes(16, 0x10)) + eof();
+
+		final byte[] bin = decode(hex);
+
+		assertArrayEquals(concat(bytes(16, 0x00), bytes(16, 0x10)), bin);
+	}
+
+	@Test
+	public void fillsSmallHoleWithErasedFlash() throws IOException {
+		final String hex = data(0x1000, bytes(16, 0x00)) + data(0x1020, bytes(16, 0x20)) + eof();
+
+		final byte[] bin = decode(hex);
+
+		assertArrayEquals(concat(bytes(16, 0x00), erased(16), bytes(16, 0x20)), bin);
+	}
+
+	@Test
+	public void fillsBigHoleWithErasedFlash() throws IOException {
+		final String hex = data(0x1000, bytes(16, 0x00)) + data(0x9000, bytes(16, 0x20)) + eof();
+
+		final byte[] bin = decode(hex);
+
+		assertEquals(0x8010, bin.length);
+		assertArrayEquals(erased(0x8000 - 16), Arrays.copyOfRange(bin, 16, 0x8000));
+		assertArrayEquals(bytes(16, 0x20), Arrays.copyOfRange(bin, 0x8000, 0x8010));
+	}
+
+	@Test
+	public void fillsHoleAcrossLinearAddress() throws IOException {
+		final String hex = linearAddress(0x0000) + data(0xFFF0, bytes(16, 0x00)) + linearAddress(0x0001) + data(0x0010, bytes(16, 0x20)) + eof();
+
+		final byte[] bin = decode(hex);
+
+		assertArrayEquals(concat(bytes(16, 0x00), erased(16), bytes(16, 0x20)), bin);
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void rejectsOverlappingRecord() throws IOException {
+		decode(data(0x1000, bytes(16, 0x00)) + data(0x1008, bytes(16, 0x10)) + eof());
+	}
+
+	@Test
+	public void countsSameSizeAsDecoded() throws IOException {
+		final String hex = data(0x0FF0, bytes(16, 0x00)) + data(0x1000, bytes(16, 0x10)) + data(0x1100, bytes(8, 0x20)) + eof();
+
+		final int size = HexInputStream.calculateBinSize(new ByteArrayInputStream(hex.getBytes("US-ASCII")), MBR_SIZE);
+
+		assertEquals(decode(hex).length, size);
+	}
+
+	@Test
+	public void skipsRecordsBelowMbr() throws IOException {
+		final String hex = data(0x0FF0, bytes(16, 0x00)) + data(0x1000, bytes(16, 0x10)) + eof();
+
+		final byte[] bin = decode(hex);
+
+		assertArrayEquals(bytes(16, 0x10), bin);
+	}
+
+	@Test
+	public void decodesLowerCaseDigits() throws IOException {
+		final String hex = data(0x1000, bytes(16, 0xA0)) + eof();
+
+		final byte[] bin = decode(hex.toLowerCase());
+
+		assertArrayEquals(bytes(16, 0xA0), bin);
+	}
+
+	@Test
+	public void appliesExtendedLinearAddress() throws IOException {
+		final String hex = linearAddress(0x0001) + data(0x0000, bytes(16, 0x00)) + data(0x0010, bytes(16, 0x10)) + eof();
+
+		final byte[] bin = decode(hex);
+
+		assertArrayEquals(concat(bytes(16, 0x00), bytes(16, 0x10)), bin);
+	}
+
+	@Test
+	public void stopsAtNotFollowingLinearAddress() throws IOException {
+		final String hex = data(0x1000, bytes(16, 0x00)) + linearAddress(0x0003) + data(0x0000, bytes(16, 0x10)) + eof();
+
+		final byte[] bin = decode(hex);
+
+		assertArrayEquals(bytes(16, 0x00), bin);
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void rejectsInvalidChecksum() throws IOException {
+		final String record = data(0x1000, bytes(16, 0x00));
+		final String corrupted = record.substring(0, record.length() - 4) + "00\r\n";
+
+		decode(corrupted + eof());
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void rejectsRecordWithoutColon() throws IOException {
+		decode(data(0x1000, bytes(16, 0x00)).substring(1) + eof());
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void rejectsFileWithoutEndOfFile() throws IOException {
+		decode(data(0x1000, bytes(16, 0x00)));
+	}
+
+	private static byte[] decode(final String hex) throws IOException {
+		final HexInputStream is = new HexInputStream(hex.getBytes("US-ASCII"), MBR_SIZE);
+		final byte[] bin = new byte[is.sizeInBytes()];
+		assertEquals(bin.length, is.readPacket(bin));
+		return bin;
+	}
+
+	private static String data(final int address, final byte[] data) {
+		return record(address, 0x00, data);
+	}
+
+	private static String linearAddress(final int upperAddress) {
+		return record(0, 0x04, new byte[] { (byte) (upperAddress >> 8), (byte) upperAddress });
+	}
+
+	private static String eof() {
+		return record(0, 0x01, new byte[0]);
+	}
+
+	private static String record(final int address, final int type, final byte[] data) {
+		final StringBuilder line = new StringBuilder(":");
+		int checksum = data.length + (address >> 8 & 0xFF) + (address & 0xFF) + type;
+		line.append(String.format("%02X%04X%02X", data.length, address & 0xFFFF, type));
+		for (final byte b : data) {
+			line.append(String.format("%02X", b & 0xFF));
+			checksum += b & 0xFF;
+		}
+		line.append(String.format("%02X", -checksum & 0xFF));
+		return line.append("\r\n").toString();
+	}
+
+	private static byte[] bytes(final int count, final int first) {
+		final byte[] data = new byte[count];
+		for (int i = 0; i < count; ++i)
+			data[i] = (byte) (first + i);
+		return data;
+	}
+
+	private static byte[] erased(final int count) {
+		final byte[] data = new byte[count];
+		Arrays.fill(data, (byte) 0xFF);
+		return data;
+	}
+
+	private static byte[] concat(final byte[]... parts) {
+		int size = 0;
+		for (final byte[] part : parts)
+			size += part.length;
+		final byte[] result = new byte[size];
+		int offset = 0;
+		for (final byte[] part : parts) {
+			System.arraycopy(part, 0, result, offset, part.length);
+			offset += part.length;
+		}
+		return result;
+	}
+}
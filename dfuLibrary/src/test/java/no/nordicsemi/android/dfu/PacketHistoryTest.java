@@ -0,0 +1,45 @@
+package no.nordicsemi.android.dfu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class PacketHistoryTest {
+
+	@Test
+	public void returnsPacketAtOffset() {
+		final PacketHistory history = new PacketHistory(4);
+		history.add(0, new byte[] { 1, 2 });
+		history.add(2, new byte[] { 3, 4 });
+
+		assertArrayEquals(new byte[] { 1, 2 }, history.get(0));
+		assertArrayEquals(new byte[] { 3, 4 }, history.get(2));
+		assertNull(history.get(4));
+	}
+
+	@Test
+	public void keepsCopyOfPacket() {
+		final PacketHistory history = new PacketHistory(4);
+		final byte[] packet = { 1, 2 };
+		history.add(0, packet);
+
+		packet[0] = 9;
+
+		assertNotSame(packet, history.get(0));
+		assertArrayEquals(new byte[] { 1, 2 }, history.get(0));
+	}
+
+	@Test
+	public void dropsOldestPacket() {
+		final PacketHistory history = new PacketHistory(2);
+		history.add(0, new byte[] { 1 });
+		history.add(1, new byte[] { 2 });
+		history.add(2, new byte[] { 3, 4 });
+
+		assertNull(history.get(0));
+		assertArrayEquals(new byte[] { 2 }, history.get(1));
+		assertArrayEquals(new byte[] { 3, 4 }, history.get(2));
+	}
+}
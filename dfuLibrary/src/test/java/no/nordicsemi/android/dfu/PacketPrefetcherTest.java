@@ -0,0 +1,96 @@
+package no.nordicsemi.android.dfu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PacketPrefetcherTest {
+	private static final int PACKET_SIZE = 20;
+
+	@Test
+	public void returnsImageInPackets() throws IOException {
+		// More packets than slots in the ring
+		final byte[] image = image(50 * PACKET_SIZE + 7);
+		final PacketPrefetcher prefetcher = new PacketPrefetcher(new ByteArrayInputStream(image), PACKET_SIZE);
+		try {
+			int offset = 0;
+			byte[] packet;
+			while ((packet = prefetcher.nextPacket(PACKET_SIZE)) != null) {
+				assertEquals(Math.min(PACKET_SIZE, image.length - offset), packet.length);
+				for (int i = 0; i < packet.length; ++i)
+					assertEquals(image[offset + i], packet[i]);
+				offset += packet.length;
+			}
+			assertEquals(image.length, offset);
+		} finally {
+			prefetcher.close();
+		}
+	}
+
+	@Test
+	public void returnsNullForEmptyImage() throws IOException {
+		final PacketPrefetcher prefetcher = new PacketPrefetcher(new ByteArrayInputStream(new byte[0]), PACKET_SIZE);
+		try {
+			assertNull(prefetcher.nextPacket(PACKET_SIZE));
+		} finally {
+			prefetcher.close();
+		}
+	}
+
+	@Test
+	public void readsPacketsOfImageSource() throws IOException {
+		final HexInputStream is = new HexInputStream(hex(), 0x1000);
+		final PacketPrefetcher prefetcher = new PacketPrefetcher(is, 16);
+		try {
+			assertArrayEquals(image(16), prefetcher.nextPacket(16));
+			assertNull(prefetcher.nextPacket(16));
+		} finally {
+			prefetcher.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void reportsReadError() throws IOException {
+		final InputStream failing = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Read failed");
+			}
+		};
+		final PacketPrefetcher prefetcher = new PacketPrefetcher(failing, PACKET_SIZE);
+		try {
+			prefetcher.nextPacket(PACKET_SIZE);
+		} finally {
+			prefetcher.close();
+		}
+	}
+
+	@Test
+	public void returnsNullWhenClosed() throws IOException {
+		final PacketPrefetcher prefetcher = new PacketPrefetcher(new ByteArrayInputStream(image(PACKET_SIZE)), PACKET_SIZE);
+
+		prefetcher.close();
+
+		assertNull(prefetcher.nextPacket(PACKET_SIZE));
+	}
+
+	private static byte[] image(final int size) {
+		final byte[] image = new byte[size];
+		for (int i = 0; i < size; ++i)
+			image[i] = (byte) i;
+		return image;
+	}
+
+	/**
+	 * Returns a HEX file with a single record of 16 bytes 0x00 - 0x0F at 0x1000.
+	 */
+	private static byte[] hex() throws IOException {
+		return (":10100000000102030405060708090A0B0C0D0E0F68\r\n:00000001FF\r\n").getBytes("US-ASCII");
+	}
+}
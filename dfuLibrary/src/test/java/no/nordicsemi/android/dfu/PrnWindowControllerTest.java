@@ -0,0 +1,176 @@
+package no.nordicsemi.android.dfu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrnWindowControllerTest {
+	private static final int PACKETS_PER_RECEIPT = 4;
+	private static final int PACKET_SIZE = 20;
+
+	/** The controlled clock of the tested controllers, in milliseconds. */
+	private long mNow = 1000;
+	/** The number of bytes sent by {@link #sendAndConfirm(PrnWindowController, int, long)}. */
+	private int mBytesSent;
+
+	@Test
+	public void startsAtReceiptInterval() {
+		final PrnWindowController window = createController();
+
+		assertEquals(PACKETS_PER_RECEIPT, window.getWindow());
+		assertEquals(2 * PACKETS_PER_RECEIPT, window.getMaxWindow());
+		assertFalse(window.isBelowReceiptInterval());
+	}
+
+	@Test
+	public void limitsPacketsInFlight() {
+		final PrnWindowController window = createController();
+
+		assertTrue(window.canSend(3 * PACKET_SIZE, 0, PACKET_SIZE));
+		assertFalse(window.canSend(4 * PACKET_SIZE, 0, PACKET_SIZE));
+		assertTrue(window.canSend(5 * PACKET_SIZE, 2 * PACKET_SIZE, PACKET_SIZE));
+		// A shorter last packet counts as a whole one
+		assertFalse(window.canSend(3 * PACKET_SIZE + 1, 0, PACKET_SIZE));
+	}
+
+	@Test
+	public void growsByOnePerReceipt() {
+		final PrnWindowController window = createController();
+
+		sendAndConfirm(window, 1);
+
+		assertEquals(PACKETS_PER_RECEIPT + 1, window.getWindow());
+	}
+
+	@Test
+	public void growsUpToMaxWindow() {
+		final PrnWindowController window = createController();
+
+		sendAndConfirm(window, 10 * PACKETS_PER_RECEIPT);
+
+		assertEquals(window.getMaxWindow(), window.getWindow());
+	}
+
+	@Test
+	public void ignoresReceiptOfUnknownPacket() {
+		final PrnWindowController window = createController();
+		window.onPacketSent(PACKET_SIZE);
+
+		window.onReceipt(PACKET_SIZE + 1);
+
+		assertEquals(PACKETS_PER_RECEIPT, window.getWindow());
+	}
+
+	@Test
+	public void halvesOnError() {
+		final PrnWindowController window = createController();
+		sendAndConfirm(window, PACKETS_PER_RECEIPT);
+
+		window.onError();
+
+		assertEquals(PACKETS_PER_RECEIPT, window.getWindow());
+	}
+
+	@Test
+	public void shrinksBelowReceiptIntervalOnErrors() {
+		final PrnWindowController window = createController();
+
+		window.onError();
+		assertEquals(PACKETS_PER_RECEIPT / 2, window.getWindow());
+		assertTrue(window.isBelowReceiptInterval());
+
+		for (int i = 0; i < 8; ++i)
+			window.onError();
+		assertEquals(1, window.getWindow());
+		assertTrue(window.canSend(0, 0, PACKET_SIZE));
+		assertFalse(window.canSend(PACKET_SIZE, 0, PACKET_SIZE));
+	}
+
+	@Test
+	public void growsBackAfterErrors() {
+		final PrnWindowController window = createController();
+		window.onError();
+		window.onError();
+
+		sendAndConfirm(window, PACKETS_PER_RECEIPT - 1);
+
+		assertEquals(PACKETS_PER_RECEIPT, window.getWindow());
+		assertFalse(window.isBelowReceiptInterval());
+	}
+
+	@Test
+	public void growsOnReceiptCloseToMinLatency() {
+		final PrnWindowController window = createController();
+		sendAndConfirm(window, 1, 10);
+
+		sendAndConfirm(window, 1, 20);
+
+		assertEquals(PACKETS_PER_RECEIPT + 2, window.getWindow());
+	}
+
+	@Test
+	public void keepsWindowOnModerateLatency() {
+		final PrnWindowController window = createController();
+		sendAndConfirm(window, 1, 10);
+
+		sendAndConfirm(window, 1, 30);
+
+		assertEquals(PACKETS_PER_RECEIPT + 1, window.getWindow());
+	}
+
+	@Test
+	public void halvesOnSlowReceipt() {
+		final PrnWindowController window = createController();
+		sendAndConfirm(window, 1, 10);
+
+		sendAndConfirm(window, 1, 100);
+
+		assertEquals((PACKETS_PER_RECEIPT + 1) / 2, window.getWindow());
+		assertTrue(window.isBelowReceiptInterval());
+	}
+
+	@Test
+	public void measuresLatencyFromConfirmedPacket() {
+		final PrnWindowController window = createController();
+		sendAndConfirm(window, 1, 10);
+
+		// The second packet is sent long after the first one, but only the latency of the confirmed packet counts
+		window.onPacketSent(2 * PACKET_SIZE);
+		mNow += 1000;
+		window.onPacketSent(3 * PACKET_SIZE);
+		mNow += 10;
+		window.onReceipt(3 * PACKET_SIZE);
+
+		assertEquals(PACKETS_PER_RECEIPT + 2, window.getWindow());
+	}
+
+	private PrnWindowController createController() {
+		return new PrnWindowController(PACKETS_PER_RECEIPT) {
+			@Override
+			long elapsedRealtime() {
+				return mNow;
+			}
+		};
+	}
+
+	/**
+	 * Sends one packet and confirms it with no latency, the given number of times.
+	 */
+	private void sendAndConfirm(final PrnWindowController window, final int receipts) {
+		sendAndConfirm(window, receipts, 0);
+	}
+
+	/**
+	 * Sends one packet and confirms it after the given latency, the given number of times.
+	 */
+	private void sendAndConfirm(final PrnWindowController window, final int receipts, final long latency) {
+		for (int i = 0; i < receipts; ++i) {
+			mBytesSent += PACKET_SIZE;
+			window.onPacketSent(mBytesSent);
+			mNow += latency;
+			window.onReceipt(mBytesSent);
+		}
+	}
+}